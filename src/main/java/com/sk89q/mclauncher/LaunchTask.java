@@ -20,12 +20,15 @@ package com.sk89q.mclauncher;
 
 import java.awt.Color;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.lang.reflect.InvocationTargetException;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.UnknownHostException;
@@ -45,12 +48,18 @@ import com.sk89q.mclauncher.config.Constants;
 import com.sk89q.mclauncher.config.Def;
 import com.sk89q.mclauncher.config.LauncherOptions;
 import com.sk89q.mclauncher.launch.GameLauncher;
+import com.sk89q.mclauncher.update.CacheServer;
 import com.sk89q.mclauncher.update.CancelledUpdateException;
+import com.sk89q.mclauncher.update.PeerCache;
+import com.sk89q.mclauncher.update.TrustCache;
 import com.sk89q.mclauncher.update.UpdateCache;
 import com.sk89q.mclauncher.update.UpdateCheck;
 import com.sk89q.mclauncher.update.UpdateException;
+import com.sk89q.mclauncher.update.UpdatePlan;
 import com.sk89q.mclauncher.update.Updater;
+import com.sk89q.mclauncher.util.BandwidthLimiter;
 import com.sk89q.mclauncher.util.ConsoleFrame;
+import com.sk89q.mclauncher.util.NioDownloadEngine;
 import com.sk89q.mclauncher.util.SettingsList;
 import com.sk89q.mclauncher.util.UIUtil;
 import com.sk89q.mclauncher.util.Util;
@@ -63,6 +72,8 @@ import com.sk89q.mclauncher.util.Util;
 public class LaunchTask extends Task {
     
     private static final Logger logger = Logger.getLogger(LaunchTask.class.getCanonicalName());
+    private static PeerCache peerCache;
+    private static TrustCache trustCache;
     
     private volatile boolean running = true;
     
@@ -443,14 +454,8 @@ public class LaunchTask extends Task {
         UpdateCache cache = new UpdateCache(cacheFile);
         
         boolean updateRequired = false;
-        String ticket = "";
         String latestVersion = "";
         
-        // We have a download ticket!
-        if (session.isValid()) {
-            ticket = session.getDownloadTicket();
-        }
-        
         URL updateUrl = configuration.getUpdateUrl();
         URL packageDefUrl = null;
         
@@ -478,7 +483,7 @@ public class LaunchTask extends Task {
             fireStatusChange("Checking for updates...");
             
             // Custom update URL, so we have to check this URL
-            UpdateCheck check = new UpdateCheck(updateUrl);
+            UpdateCheck check = new UpdateCheck(toCacheURL(updateUrl));
             try {
                 check.checkUpdateServer();
             } catch (final IOException e) {
@@ -519,13 +524,34 @@ public class LaunchTask extends Task {
             latestVersion = check.getLatestVersion();
         }
         
-        // Ask the user if s/he wants to update
+        // Find out how big the update is before asking the user if s/he
+        // wants to update
         if (!forceUpdate && updateRequired && !notInstalled) {
+            UpdatePlan plan = null;
+            try {
+                updater = createUpdater(rootDir, cache, openPackageDefinition(packageDefUrl),
+                        forceUpdate, username);
+                plan = updater.plan();
+            } catch (CancelledExecutionException e) {
+                throw e;
+            } catch (CancelledUpdateException e) {
+                throw new CancelledExecutionException();
+            } catch (ExecutionException e) {
+                logger.log(Level.WARNING, "Failed to check the size of the update", e);
+                updater = null;
+            } catch (UpdateException e) {
+                logger.log(Level.WARNING, "Failed to check the size of the update", e);
+                updater = null;
+            }
+            
+            final String message = "An update is available" + describePlan(plan) +
+                    ". Would you like to update?";
+            
             try {
                 SwingUtilities.invokeAndWait(new Runnable() {
                     public void run() {
                         if (JOptionPane.showConfirmDialog(getComponent(), 
-                                "An update is available. Would you like to update?",
+                                message,
                                 "Update available", JOptionPane.YES_NO_OPTION) == 0) {
                             wantUpdate = true;
                         }
@@ -538,41 +564,13 @@ public class LaunchTask extends Task {
         
         // Proceed with the update
         if (notInstalled || forceUpdate || (updateRequired && wantUpdate)) {
-            // We have a custom package definition URL that we have to fetch!
-            if (packageDefUrl != null) {
-                fireStatusChange("Downloading package definition for update...");
-                
-                HttpURLConnection conn = null;
-                
-                try {
-                    conn = (HttpURLConnection) packageDefUrl.openConnection();
-                    conn.setRequestMethod("GET");
-                    conn.setUseCaches(false);
-                    conn.setDoInput(true);
-                    conn.setDoOutput(false);
-                    conn.setReadTimeout(5000);
-
-                    conn.connect();
-                    
-                    if (conn.getResponseCode() != 200) {
-                        throw new IOException("Did not get expected 200 code");
-                    }
-                    
-                    update(rootDir, cache, conn.getInputStream(), forceUpdate, username, ticket);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    throw new ExecutionException("Could not fetch the update package definition file (" +
-                            e.getMessage() + "). The update cannot be performed.");
-                } finally {
-                    if (conn != null) conn.disconnect();
-                    conn = null;
-                }
-            } else {
-                // For vanilla, we bundle the package
-                update(rootDir, cache, Launcher.class.getResourceAsStream("/resources/update.xml"),
-                        forceUpdate, username, ticket);
+            if (updater == null) {
+                updater = createUpdater(rootDir, cache, openPackageDefinition(packageDefUrl),
+                        forceUpdate, username);
             }
             
+            update(updater);
+            
             // Check for cancel
             if (!running) {
                 throw new CancelledExecutionException();
@@ -589,19 +587,123 @@ public class LaunchTask extends Task {
     }
     
     /**
-     * Download the updates listed in the given package .xml file and
-     * apply them.
+     * Get the package .xml file of the update.
+     * 
+     * @param packageDefUrl URL of a custom package definition, or null for
+     *                      the bundled one
+     * @return input stream of the package .xml file
+     * @throws ExecutionException thrown if it could not be fetched
+     */
+    private InputStream openPackageDefinition(URL packageDefUrl) throws ExecutionException {
+        // For vanilla, we bundle the package
+        if (packageDefUrl == null) {
+            return Launcher.class.getResourceAsStream("/resources/update.xml");
+        }
+        
+        // We have a custom package definition URL that we have to fetch!
+        fireStatusChange("Downloading package definition for update...");
+        
+        HttpURLConnection conn = null;
+        InputStream in = null;
+        
+        try {
+            conn = (HttpURLConnection) toCacheURL(packageDefUrl).openConnection();
+            conn.setRequestMethod("GET");
+            conn.setUseCaches(false);
+            conn.setDoInput(true);
+            conn.setDoOutput(false);
+            conn.setReadTimeout(5000);
+
+            conn.connect();
+            
+            if (conn.getResponseCode() != 200) {
+                throw new IOException("Did not get expected 200 code");
+            }
+            
+            // Read it all now, as the update may not start until the
+            // user has been asked
+            in = conn.getInputStream();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+            
+            return new ByteArrayInputStream(out.toByteArray());
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new ExecutionException("Could not fetch the update package definition file (" +
+                    e.getMessage() + "). The update cannot be performed.");
+        } finally {
+            Util.close(in);
+            if (conn != null) conn.disconnect();
+            conn = null;
+        }
+    }
+    
+    /**
+     * Describe the size of an update for the update prompt.
+     * 
+     * @param plan plan of the update, or null if not known
+     * @return description in parentheses, or an empty string
+     */
+    private static String describePlan(UpdatePlan plan) {
+        if (plan == null) {
+            return "";
+        }
+        
+        StringBuilder s = new StringBuilder(" (");
+        if (plan.getChangedFiles().isEmpty()) {
+            s.append("nothing needs to be downloaded");
+        } else {
+            if (!plan.isDownloadSizeExact()) {
+                s.append("about ");
+            }
+            long size = plan.getDownloadSize();
+            if (size >= 1024 * 1024) {
+                s.append(String.format("%.1f MB", size / (1024.0 * 1024.0)));
+            } else {
+                s.append(String.format("%d KB", (size + 1023) / 1024));
+            }
+            s.append(" to download");
+            
+            long time = plan.getEstimatedTime();
+            if (time >= 0) {
+                if (time < 60) {
+                    s.append(", less than a minute");
+                } else {
+                    long minutes = (time + 59) / 60;
+                    s.append(", about ").append(minutes).append(minutes == 1 ? " minute" : " minutes");
+                }
+            }
+        }
+        
+        int removed = plan.getRemovedPaths().size();
+        if (removed > 0) {
+            s.append("; ").append(removed).append(removed == 1 ? " old file" : " old files")
+                    .append(" will be removed");
+        }
+        
+        return s.append(")").toString();
+    }
+    
+    /**
+     * Create the updater for the given package .xml file.
      * 
      * @param rootDir path to the working directory of minecraft
+     * @param cache update cache
      * @param packageStream input stream of the package .xml file
      * @param forced true to force re-download
-     * @throws ExecutionException thrown on any error
+     * @param username username for the download URLs
+     * @return updater
      */
-    private void update(File rootDir, UpdateCache cache, InputStream packageStream,
-            boolean forced, String username, String ticket) throws ExecutionException {
-        fireTitleChange("Updating Minecraft...");
+    private Updater createUpdater(File rootDir, UpdateCache cache, InputStream packageStream,
+            boolean forced, String username) {
+        SettingsList settings = new SettingsList(
+                Launcher.getInstance().getOptions().getSettings(), configuration.getSettings());
         
-        updater = new Updater(packageStream, rootDir, cache);
+        Updater updater = new Updater(packageStream, rootDir, cache);
         updater.setReinstall(forced);
         // Verify if it's the default download or if the relevant constant is enabled
         updater.setVerifying(configuration.getUpdateUrl() == null 
@@ -611,6 +713,113 @@ public class LaunchTask extends Task {
         for (ProgressListener listener : getProgressListenerList()) {
             updater.addProgressListener(listener);
         }
+        int bandwidthLimit = settings.getInt(Def.UPDATE_BANDWIDTH_LIMIT, 0);
+        if (bandwidthLimit > 0) {
+            updater.setBandwidthLimiter(new BandwidthLimiter(bandwidthLimit * 1024L));
+        }
+        updater.setCacheServer(getCacheServer(settings));
+        updater.setTrustCache(getTrustCache());
+        PeerCache peerCache = getPeerCache(settings);
+        if (peerCache != null) {
+            peerCache.share(rootDir, cache);
+            updater.setPeerCache(peerCache);
+        }
+        return updater;
+    }
+    
+    /**
+     * Get the cache of files whose signatures were verified before, which
+     * is shared by all configurations.
+     * 
+     * @return trust cache
+     */
+    private static synchronized TrustCache getTrustCache() {
+        if (trustCache == null) {
+            trustCache = new TrustCache(new File(Launcher.getLauncherDataDir(), "trust_cache.xml"));
+        }
+        return trustCache;
+    }
+    
+    /**
+     * Get the URL of the cache server that updates are downloaded through.
+     * 
+     * @param settings settings
+     * @return url, or null if updates are downloaded directly
+     */
+    private static URL getCacheServer(SettingsList settings) {
+        String value = settings.get(Def.UPDATE_CACHE_SERVER);
+        if (value == null || value.trim().length() == 0) {
+            return null;
+        }
+        
+        try {
+            return new URL(value.trim());
+        } catch (MalformedURLException e) {
+            logger.warning("Ignoring bad cache server URL '" + value + "'");
+            return null;
+        }
+    }
+    
+    /**
+     * Get the URL to fetch an update file from, which is on the cache server
+     * if one is set.
+     * 
+     * @param url url of the file
+     * @return url to fetch
+     */
+    private URL toCacheURL(URL url) {
+        URL cacheServer = getCacheServer(new SettingsList(
+                Launcher.getInstance().getOptions().getSettings(), configuration.getSettings()));
+        return cacheServer != null ? CacheServer.toCacheURL(cacheServer, url) : url;
+    }
+    
+    /**
+     * Get the peer cache that updates are shared with and fetched from,
+     * starting it the first time that it is needed.
+     * 
+     * @param settings settings
+     * @return peer cache, or null if sharing is disabled
+     */
+    private static synchronized PeerCache getPeerCache(SettingsList settings) {
+        if (!settings.getBool(Def.UPDATE_PEER_SHARING, false)) {
+            return null;
+        }
+        
+        if (peerCache == null) {
+            peerCache = new PeerCache(PeerCache.DEFAULT_PORT);
+            try {
+                peerCache.start();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not start sharing updates; " +
+                        "they will still be fetched from other launchers", e);
+            }
+        }
+        
+        String peers = settings.get(Def.UPDATE_PEERS);
+        if (peers != null) {
+            peerCache.addPeers(peers);
+        }
+        return peerCache;
+    }
+    
+    /**
+     * Download the updates listed in the package .xml file of the given
+     * updater and apply them.
+     * 
+     * @param updater the updater
+     * @throws ExecutionException thrown on any error
+     */
+    private void update(Updater updater) throws ExecutionException {
+        fireTitleChange("Updating Minecraft...");
+        
+        SettingsList settings = new SettingsList(
+                Launcher.getInstance().getOptions().getSettings(), configuration.getSettings());
+        NioDownloadEngine downloadEngine = null;
+        
+        if (settings.getBool(Def.UPDATE_NIO_ENGINE, false)) {
+            downloadEngine = new NioDownloadEngine();
+            updater.setDownloaderFactory(downloadEngine);
+        }
         try {
             updater.performUpdate();
         } catch (CancelledUpdateException e) {
@@ -620,6 +829,10 @@ public class LaunchTask extends Task {
         } catch (Throwable t) {
             logger.log(Level.SEVERE, "Update error occurred", t);
             throw new ExecutionException("An unknown error occurred.", t);
+        } finally {
+            if (downloadEngine != null) {
+                downloadEngine.close();
+            }
         }
         
         // Remind the user to disable mods
@@ -48,7 +48,10 @@ import javax.swing.SwingUtilities;
 
 import com.sk89q.mclauncher.config.Constants;
 import com.sk89q.mclauncher.config.LauncherOptions;
+import com.sk89q.mclauncher.security.RevocationCache;
 import com.sk89q.mclauncher.security.X509KeyRing;
+import com.sk89q.mclauncher.update.CacheServer;
+import com.sk89q.mclauncher.update.CacheStore;
 import com.sk89q.mclauncher.update.UpdateCache;
 import com.sk89q.mclauncher.util.BasicArgsParser;
 import com.sk89q.mclauncher.util.BasicArgsParser.ArgsContext;
@@ -132,6 +135,11 @@ public class Launcher {
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Failed to install register built-in certificates", e);
         }
+        
+        // Check revocation against CRLs kept on disk
+        RevocationCache revocationCache = new RevocationCache(new File(base, "crls"));
+        revocationCache.load();
+        keyRing.setRevocationCache(revocationCache);
     }
 
     /**
@@ -441,8 +449,18 @@ public class Launcher {
         parser.addValueArg("username");
         parser.addValueArg("password");
         parser.addFlagArg("launch");
+        parser.addFlagArg("cache-server");
+        parser.addValueArg("port");
+        parser.addValueArg("cache-dir");
+        parser.addValueArg("cache-size");
+        parser.addValueArg("allow");
         
         ArgsContext context = parser.parse(args);
+        if (context.has("cache-server")) {
+            startCacheServer(context);
+            return;
+        }
+        
         final String username = context.get("username");
         final String password = context.get("password");
         final boolean autoLaunch = context.has("launch");
@@ -484,6 +502,48 @@ public class Launcher {
         });
     }
     
+    /**
+     * Run as a cache server for the update traffic of other launchers,
+     * without showing any windows.
+     * 
+     * @param context arguments
+     */
+    private static void startCacheServer(ArgsContext context) {
+        File dir = context.get("cache-dir") != null ?
+                new File(context.get("cache-dir")) : new File(getLauncherDataDir(), "cache-server");
+        long maxSize = context.getInt("cache-size", 4096) * 1024L * 1024L;
+        CacheServer server = new CacheServer(
+                context.getInt("port", CacheServer.DEFAULT_PORT), new CacheStore(dir, maxSize));
+        
+        server.allowHost("update.year4000.net");
+        if (context.get("allow") != null) {
+            for (String host : context.get("allow").split(",")) {
+                if (host.trim().length() > 0) {
+                    server.allowHost(host.trim());
+                }
+            }
+        }
+        
+        // Allow the hosts of the bundled package for vanilla Minecraft
+        InputStream in = Launcher.class.getResourceAsStream("/resources/update.xml");
+        if (in != null) {
+            try {
+                server.allowHostsOf(in);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to read the bundled package definition", e);
+            } finally {
+                Util.close(in);
+            }
+        }
+        
+        try {
+            server.start();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to start the cache server", e);
+            System.exit(1);
+        }
+    }
+    
     /**
      * Start the launcher frame.
      */
@@ -19,8 +19,12 @@
 package com.sk89q.mclauncher;
 
 import javax.swing.JCheckBox;
+import javax.swing.JSpinner;
+import javax.swing.JTextField;
+import javax.swing.SpinnerNumberModel;
 
 import com.sk89q.mclauncher.config.Def;
+import com.sk89q.mclauncher.update.CacheServer;
 import com.sk89q.mclauncher.util.SettingsList;
 
 public class LauncherOptionsPanel extends OptionsPanel {
@@ -41,6 +45,16 @@ public class LauncherOptionsPanel extends OptionsPanel {
         createFieldGroup("Launcher Options");
         addField(Def.LAUNCHER_REOPEN, new JCheckBox("Show the launcher on Minecraft close"));
 
+        createFieldGroup("Update Options");
+        addField(Def.UPDATE_NIO_ENGINE, new JCheckBox("Download updates on a single network thread"));
+        addField(Def.UPDATE_BANDWIDTH_LIMIT, "Download speed limit (KB/s, 0 for none):",
+                new JSpinner(new SpinnerNumberModel(0, 0, 1024 * 100, 64)));
+        addField(Def.UPDATE_PEER_SHARING, new JCheckBox("Share updates with launchers on the local network"));
+        addField(Def.UPDATE_PEERS, "Other launchers to fetch updates from:", new JTextField())
+            .setToolTipText("List of host:port entries (separated by commas), in addition to the ones found on the local network.");
+        addField(Def.UPDATE_CACHE_SERVER, "Cache server URL:", new JTextField())
+            .setToolTipText("The address of a launcher started with -cache-server to download updates through, such as http://host:" + CacheServer.DEFAULT_PORT + "/");
+
         createFieldGroup("Console Options");
         addField(Def.COLORED_CONSOLE, new JCheckBox("Use colors in the console"));
         addField(Def.CONSOLE_KILLS_PROCESS, new JCheckBox("Kill Minecraft on console close"));
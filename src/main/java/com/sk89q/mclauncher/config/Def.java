@@ -43,6 +43,11 @@ public class Def {
     public static final String JAVA_WRAPPER_PROGRAM = "java.wrapper-program";
     public static final String JAVA_CONSOLE = "java.console";
     public static final String LWJGL_DEBUG = "lwjgl.debug";
+    public static final String UPDATE_NIO_ENGINE = "update.nio-engine";
+    public static final String UPDATE_BANDWIDTH_LIMIT = "update.bandwidth-limit";
+    public static final String UPDATE_PEER_SHARING = "update.peer-sharing";
+    public static final String UPDATE_PEERS = "update.peers";
+    public static final String UPDATE_CACHE_SERVER = "update.cache-server";
     
     private Def() {
     }
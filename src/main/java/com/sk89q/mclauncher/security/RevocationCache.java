@@ -0,0 +1,573 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.security;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CRLException;
+import java.security.cert.CertStore;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sk89q.mclauncher.util.Util;
+
+/**
+ * Keeps the certificate revocation lists that certificates point to on
+ * disk, so that revocation can be checked without going to the network
+ * for every verification.
+ *
+ * <p>The CRLs are given to the PKIX builder through {@link #getCertStore()}.
+ * A CRL is only fetched while a certificate is being verified if there is
+ * no current copy of it; otherwise it is fetched again in the background
+ * before it expires, conditionally on its Last-Modified date.</p>
+ *
+ * @author sk89q
+ */
+public class RevocationCache {
+
+    private static final Logger logger = Logger.getLogger(RevocationCache.class.getCanonicalName());
+
+    private static final String CRL_DISTRIBUTION_POINTS = "2.5.29.31";
+    private static final int FETCH_TIMEOUT = 5000;
+    private static final long DEFAULT_LIFETIME = 24 * 60 * 60 * 1000;
+    private static final long MIN_REFRESH_DELAY = 60 * 1000;
+    private static final long RETRY_DELAY = 15 * 60 * 1000;
+
+    private final File dir;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final Map<String, Long> failures = new HashMap<String, Long>();
+    private final Map<String, ScheduledFuture<?>> scheduled = new HashMap<String, ScheduledFuture<?>>();
+    private final Map<String, FutureTask<Void>> fetches = new HashMap<String, FutureTask<Void>>();
+    private final Map<X509Certificate, List<String>> distributionPoints =
+            new HashMap<X509Certificate, List<String>>();
+    private ScheduledThreadPoolExecutor refresher;
+    private CertStore certStore;
+    private int generation;
+
+    /**
+     * Construct the cache.
+     *
+     * @param dir folder to keep the CRLs in
+     */
+    public RevocationCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Read the CRLs that are already on disk and start refreshing them in
+     * the background.
+     */
+    public synchronized void load() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File metaFile : files) {
+            if (!metaFile.getName().endsWith(".properties")) {
+                continue;
+            }
+
+            String name = metaFile.getName().replaceAll("\\.properties$", "");
+            File crlFile = new File(dir, name + ".crl");
+            Properties props = new Properties();
+            InputStream in = null;
+            try {
+                in = new FileInputStream(metaFile);
+                props.load(in);
+                Util.close(in);
+
+                String url = props.getProperty("url");
+                if (url == null) {
+                    continue;
+                }
+
+                in = new BufferedInputStream(new FileInputStream(crlFile));
+                X509CRL crl = parse(in);
+                long fetched = Long.parseLong(props.getProperty("fetched", "0"));
+                entries.put(url, new Entry(crl, props.getProperty("last-modified"), fetched));
+                schedule(url);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Could not read the cached CRL " + crlFile, e);
+                metaFile.delete();
+                crlFile.delete();
+            } finally {
+                Util.close(in);
+            }
+        }
+
+        changed();
+        logger.info("Loaded " + entries.size() + " cached CRLs");
+    }
+
+    /**
+     * Stop refreshing CRLs in the background.
+     */
+    public synchronized void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+        scheduled.clear();
+    }
+
+    /**
+     * Get a number that changes whenever a CRL is added or replaced, so
+     * that anything remembered about a verification can be forgotten.
+     *
+     * @return generation
+     */
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Get a cert store holding the cached CRLs.
+     *
+     * @return cert store
+     * @throws InvalidAlgorithmParameterException should not be thrown
+     * @throws NoSuchAlgorithmException thrown if there is no Collection
+     *             cert store
+     */
+    public synchronized CertStore getCertStore()
+            throws InvalidAlgorithmParameterException, NoSuchAlgorithmException {
+        if (certStore == null) {
+            List<X509CRL> crls = new ArrayList<X509CRL>();
+            for (Entry entry : entries.values()) {
+                crls.add(entry.crl);
+            }
+            certStore = CertStore.getInstance("Collection",
+                    new CollectionCertStoreParameters(crls));
+        }
+        return certStore;
+    }
+
+    /**
+     * Make sure that the CRLs that the given certificates point to are
+     * cached, fetching the ones that are missing or expired, and keep them
+     * refreshed from then on. A CRL that could not be fetched is not tried
+     * again for {@value #RETRY_DELAY} ms.
+     *
+     * @param certs certificates
+     */
+    public void prepare(Iterable<X509Certificate> certs) {
+        for (X509Certificate cert : certs) {
+            for (String url : getDistributionPoints(cert)) {
+                synchronized (this) {
+                    Entry entry = entries.get(url);
+                    Long failed = failures.get(url);
+                    if ((entry != null && entry.isCurrent())
+                            || (failed != null && System.currentTimeMillis() - failed < RETRY_DELAY)) {
+                        continue;
+                    }
+                }
+
+                refresh(url);
+            }
+        }
+    }
+
+    /**
+     * Fetch a CRL and schedule the next time that it is fetched. If the
+     * CRL is already being fetched, this waits for that fetch instead of
+     * starting another one.
+     *
+     * @param url url of the CRL
+     */
+    private void refresh(final String url) {
+        FutureTask<Void> task;
+        boolean owner = false;
+
+        synchronized (this) {
+            task = fetches.get(url);
+            if (task == null) {
+                task = new FutureTask<Void>(new Callable<Void>() {
+                    public Void call() {
+                        try {
+                            fetch(url);
+                            synchronized (RevocationCache.this) {
+                                failures.remove(url);
+                            }
+                        } catch (Exception e) {
+                            logger.warning("Could not fetch the CRL at " + url + ": " + e.getMessage());
+                            synchronized (RevocationCache.this) {
+                                failures.put(url, System.currentTimeMillis());
+                            }
+                        }
+                        return null;
+                    }
+                });
+                fetches.put(url, task);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            task.run();
+            synchronized (this) {
+                fetches.remove(url);
+                schedule(url);
+            }
+        } else {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // The task handles its own errors
+            }
+        }
+    }
+
+    /**
+     * Fetch a CRL, conditionally if there is a cached copy, and store it.
+     *
+     * @param url url of the CRL
+     * @throws IOException on I/O error
+     * @throws CRLException thrown if the CRL can't be parsed
+     */
+    private void fetch(String url) throws IOException, CRLException {
+        Entry cached;
+        synchronized (this) {
+            cached = entries.get(url);
+        }
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            conn.setUseCaches(false);
+            conn.setConnectTimeout(FETCH_TIMEOUT);
+            conn.setReadTimeout(FETCH_TIMEOUT);
+            if (cached != null && cached.lastModified != null) {
+                conn.setRequestProperty("If-Modified-Since", cached.lastModified);
+            }
+
+            int code = conn.getResponseCode();
+            if (code == 304 && cached != null) {
+                synchronized (this) {
+                    Entry entry = new Entry(cached.crl, cached.lastModified,
+                            System.currentTimeMillis());
+                    entries.put(url, entry);
+                    write(url, entry, null);
+                }
+                return;
+            } else if (code != 200) {
+                throw new IOException("Did not get expected 200 code, got " + code);
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            InputStream in = conn.getInputStream();
+            try {
+                byte[] buffer = new byte[8192];
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, len);
+                }
+            } finally {
+                in.close();
+            }
+
+            byte[] data = bytes.toByteArray();
+            X509CRL crl = parse(new ByteArrayInputStream(data));
+            Entry entry = new Entry(crl, conn.getHeaderField("Last-Modified"),
+                    System.currentTimeMillis());
+
+            synchronized (this) {
+                write(url, entry, data);
+                entries.put(url, entry);
+                changed();
+            }
+            logger.info("Fetched the CRL at " + url + " (next update " + crl.getNextUpdate() + ")");
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Write a CRL to disk.
+     *
+     * @param url url of the CRL
+     * @param entry the entry
+     * @param data the encoded CRL, or null if it is already on disk
+     * @throws IOException on I/O error
+     */
+    private void write(String url, Entry entry, byte[] data) throws IOException {
+        dir.mkdirs();
+        String name = hash(url);
+
+        if (data != null) {
+            OutputStream out = new FileOutputStream(new File(dir, name + ".crl"));
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        }
+
+        Properties props = new Properties();
+        props.setProperty("url", url);
+        props.setProperty("fetched", String.valueOf(entry.fetched));
+        if (entry.lastModified != null) {
+            props.setProperty("last-modified", entry.lastModified);
+        }
+        OutputStream out = new FileOutputStream(new File(dir, name + ".properties"));
+        try {
+            props.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Schedule the next refresh of a CRL, replacing the one that was
+     * scheduled before, so that there is only ever one per CRL. A CRL is
+     * refreshed three quarters of the way through its validity, or after
+     * {@value #RETRY_DELAY} ms if the last fetch failed.
+     *
+     * @param url url of the CRL
+     */
+    private void schedule(final String url) {
+        ScheduledFuture<?> previous = scheduled.remove(url);
+        if (previous != null) {
+            previous.cancel(false);
+            // Drop the replaced refresh from the queue
+            refresher.purge();
+        }
+
+        long now = System.currentTimeMillis();
+        long refreshAt;
+        Entry entry = entries.get(url);
+        Long failed = failures.get(url);
+        if (failed != null || entry == null) {
+            refreshAt = now + RETRY_DELAY;
+        } else {
+            refreshAt = entry.getIssued() + (entry.getExpiry() - entry.getIssued()) * 3 / 4;
+        }
+
+        if (refresher == null) {
+            refresher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CRL refresher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        scheduled.put(url, refresher.schedule(new Runnable() {
+            public void run() {
+                refresh(url);
+            }
+        }, Math.max(MIN_REFRESH_DELAY, refreshAt - now), TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Forget the cert store after the CRLs have changed.
+     */
+    private void changed() {
+        certStore = null;
+        generation++;
+    }
+
+    /**
+     * Get the URLs of the CRLs that a certificate points to. Only HTTP URLs
+     * are returned.
+     *
+     * @param cert the certificate
+     * @return list of urls
+     */
+    public List<String> getDistributionPoints(X509Certificate cert) {
+        synchronized (distributionPoints) {
+            List<String> urls = distributionPoints.get(cert);
+            if (urls == null) {
+                urls = new ArrayList<String>();
+                byte[] value = cert.getExtensionValue(CRL_DISTRIBUTION_POINTS);
+                if (value != null) {
+                    try {
+                        // The value is the encoded extension in an OCTET STRING
+                        List<String> found = new ArrayList<String>();
+                        findURIs(value, 0, value.length, true, found);
+                        for (String url : found) {
+                            if (url.startsWith("http://") || url.startsWith("https://")) {
+                                urls.add(url);
+                            }
+                        }
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Could not read the CRL distribution points of " +
+                                cert.getSubjectX500Principal(), e);
+                    }
+                }
+                distributionPoints.put(cert, urls);
+            }
+            return urls;
+        }
+    }
+
+    /**
+     * Find the URIs in DER-encoded data by walking into every constructed
+     * element and picking out the uniformResourceIdentifier names (tag
+     * [6]), which is how the URLs of a CRLDistributionPoints extension are
+     * encoded.
+     *
+     * @param data the data
+     * @param offset start of the elements to read
+     * @param end end of the elements to read
+     * @param unwrap true to also walk into OCTET STRINGs
+     * @param found list to add the URIs to
+     * @throws IOException thrown if the data is not valid DER
+     */
+    private static void findURIs(byte[] data, int offset, int end, boolean unwrap,
+            List<String> found) throws IOException {
+        while (offset < end) {
+            int tag = data[offset++] & 0xff;
+            if (offset >= end) {
+                throw new IOException("Truncated DER element");
+            }
+
+            int length = data[offset++] & 0xff;
+            if ((length & 0x80) != 0) {
+                int count = length & 0x7f;
+                if (count == 0 || count > 3 || offset + count > end) {
+                    throw new IOException("Unsupported DER length");
+                }
+                length = 0;
+                for (int i = 0; i < count; i++) {
+                    length = (length << 8) | (data[offset++] & 0xff);
+                }
+            }
+            if (offset + length > end) {
+                throw new IOException("Truncated DER element");
+            }
+
+            if (tag == 0x86) {
+                found.add(new String(data, offset, length, "US-ASCII"));
+            } else if ((tag & 0x20) != 0 || (tag == 0x04 && unwrap)) {
+                findURIs(data, offset, offset + length, false, found);
+            }
+
+            offset += length;
+        }
+    }
+
+    /**
+     * Parse a CRL.
+     *
+     * @param in stream of the CRL
+     * @return the CRL
+     * @throws CRLException thrown if the CRL can't be parsed
+     */
+    private static X509CRL parse(InputStream in) throws CRLException {
+        try {
+            CertificateFactory cf = CertificateFactory.getInstance("X.509");
+            return (X509CRL) cf.generateCRL(in);
+        } catch (CertificateException e) {
+            throw new CRLException(e);
+        }
+    }
+
+    /**
+     * Get the SHA-1 digest of a URL as hex, to use as a file name.
+     *
+     * @param url url
+     * @return hex digest
+     */
+    private static String hash(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return String.format("%040x", new BigInteger(1, digest.digest(url.getBytes("UTF-8"))));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A cached CRL.
+     */
+    private static class Entry {
+        private final X509CRL crl;
+        private final String lastModified;
+        private final long fetched;
+
+        private Entry(X509CRL crl, String lastModified, long fetched) {
+            this.crl = crl;
+            this.lastModified = lastModified;
+            this.fetched = fetched;
+        }
+
+        /**
+         * Get when the CRL was issued.
+         *
+         * @return time in milliseconds
+         */
+        private long getIssued() {
+            return Math.min(fetched, crl.getThisUpdate().getTime());
+        }
+
+        /**
+         * Get when the CRL stops being current.
+         *
+         * @return time in milliseconds
+         */
+        private long getExpiry() {
+            return crl.getNextUpdate() != null ?
+                    crl.getNextUpdate().getTime() : fetched + DEFAULT_LIFETIME;
+        }
+
+        /**
+         * Returns whether the CRL is still current.
+         *
+         * @return true if current
+         */
+        private boolean isCurrent() {
+            return System.currentTimeMillis() < getExpiry();
+        }
+    }
+
+}
@@ -53,5 +53,16 @@ public class X509KeyRing {
     public X509KeyStore getKeyStore(Ring ring) {
         return rings.get(ring);
     }
+    
+    /**
+     * Set the cache of CRLs that every key store checks revocation against.
+     * 
+     * @param revocationCache the cache, or null
+     */
+    public void setRevocationCache(RevocationCache revocationCache) {
+        for (X509KeyStore keyStore : rings.values()) {
+            keyStore.setRevocationCache(revocationCache);
+        }
+    }
 
 }
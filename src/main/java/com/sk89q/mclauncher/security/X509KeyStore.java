@@ -21,12 +21,15 @@ package com.sk89q.mclauncher.security;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.math.BigInteger;
 import java.security.InvalidAlgorithmParameterException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertPathBuilder;
 import java.security.cert.CertPathBuilderException;
 import java.security.cert.CertStore;
 import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.CollectionCertStoreParameters;
@@ -34,9 +37,15 @@ import java.security.cert.PKIXBuilderParameters;
 import java.security.cert.TrustAnchor;
 import java.security.cert.X509CertSelector;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.X509TrustManager;
 
@@ -45,20 +54,40 @@ import com.sk89q.mclauncher.util.Util;
 /**
  * Presents a key store.
  * 
+ * <p>Chains that have been verified are remembered, so that the many files
+ * of a jar, which are all signed by the same chain, only need one path to
+ * be built. A chain is remembered until the first of its certificates
+ * expires, for at most {@value #MAX_VERIFIED_AGE} ms so that revocations
+ * are still noticed, or until a certificate is added to the store.</p>
+ * 
+ * <p>If a {@link RevocationCache} is set, revocation is checked against the
+ * CRLs that it has cached, and a chain is verified again whenever a newer
+ * CRL is fetched.</p>
+ * 
  * @author sk89q
  */
 public class X509KeyStore implements X509TrustManager {
     
+    private static final long MAX_VERIFIED_AGE = 60 * 60 * 1000;
+    
     private final Set<X509Certificate> rootCerts = new HashSet<X509Certificate>();
     private final Set<X509Certificate> intermediateCerts = new HashSet<X509Certificate>();
+    private final Map<String, Long> verifiedChains = new ConcurrentHashMap<String, Long>();
+    private int generation;
+    private Set<TrustAnchor> trustAnchors;
+    private CertStore intermediateStore;
+    private String fingerprint;
+    private RevocationCache revocationCache;
     
     /**
      * Add a root certificate.
      * 
      * @param cert certificate
      */
-    public void addRootCertificate(X509Certificate cert) {
-        rootCerts.add(cert);
+    public synchronized void addRootCertificate(X509Certificate cert) {
+        if (rootCerts.add(cert)) {
+            changed();
+        }
     }
 
     /**
@@ -92,8 +121,73 @@ public class X509KeyStore implements X509TrustManager {
      * @param cert
      *            certificate
      */
-    public void addIntermediateCertificate(X509Certificate cert) {
-        intermediateCerts.add(cert);
+    public synchronized void addIntermediateCertificate(X509Certificate cert) {
+        if (intermediateCerts.add(cert)) {
+            changed();
+        }
+    }
+    
+    /**
+     * Set the cache of CRLs to check revocation against.
+     * 
+     * @param revocationCache the cache, or null to leave fetching CRLs
+     *            to the JRE
+     */
+    public synchronized void setRevocationCache(RevocationCache revocationCache) {
+        this.revocationCache = revocationCache;
+        changed();
+    }
+    
+    /**
+     * Forget the verified chains and the trust anchors after the
+     * certificates have changed.
+     */
+    private void changed() {
+        generation++;
+        trustAnchors = null;
+        intermediateStore = null;
+        fingerprint = null;
+        verifiedChains.clear();
+    }
+    
+    /**
+     * Get a fingerprint of the certificates in this store, which changes
+     * if any certificate is added.
+     * 
+     * @return SHA-256 digest in hex
+     * @throws CertificateVerificationException thrown if a certificate
+     *             can't be encoded
+     */
+    public synchronized String getFingerprint() throws CertificateVerificationException {
+        if (fingerprint != null) {
+            return fingerprint;
+        }
+        
+        try {
+            // The order of the sets is not fixed, so sort the certificates
+            List<String> parts = new ArrayList<String>();
+            for (X509Certificate cert : rootCerts) {
+                parts.add("root:" + getFingerprint(cert));
+            }
+            for (X509Certificate cert : intermediateCerts) {
+                parts.add("intermediate:" + getFingerprint(cert));
+            }
+            Collections.sort(parts);
+            
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : parts) {
+                digest.update(part.getBytes("UTF-8"));
+                digest.update((byte) '\n');
+            }
+            fingerprint = new BigInteger(1, digest.digest()).toString(16);
+            return fingerprint;
+        } catch (CertificateEncodingException e) {
+            throw new CertificateVerificationException(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new CertificateVerificationException(e);
+        } catch (IOException e) {
+            throw new CertificateVerificationException(e);
+        }
     }
 
     /**
@@ -130,25 +224,67 @@ public class X509KeyStore implements X509TrustManager {
      */
     public void verify(X509Certificate[] chain) 
             throws CertificateVerificationException, CertPathBuilderException {
+        Set<TrustAnchor> trustAnchors;
+        CertStore intermediateStore;
+        RevocationCache revocationCache;
+        List<X509Certificate> intermediates;
+        int generation;
+        String key;
+        
         try {
+            synchronized (this) {
+                // Root certificates
+                if (this.trustAnchors == null) {
+                    Set<TrustAnchor> anchors = new HashSet<TrustAnchor>();
+                    for (X509Certificate rootCert : rootCerts) {
+                        anchors.add(new TrustAnchor(rootCert, null));
+                    }
+                    this.trustAnchors = Collections.unmodifiableSet(anchors);
+                }
+                
+                // Built-in intermediate certificates
+                if (this.intermediateStore == null) {
+                    this.intermediateStore = CertStore.getInstance("Collection",
+                            new CollectionCertStoreParameters(
+                                    new ArrayList<X509Certificate>(intermediateCerts)));
+                }
+                
+                trustAnchors = this.trustAnchors;
+                intermediateStore = this.intermediateStore;
+                revocationCache = this.revocationCache;
+                intermediates = new ArrayList<X509Certificate>(intermediateCerts);
+                generation = this.generation;
+            }
+            
+            // Fetch the CRLs that are missing before the chain is looked up,
+            // so that a chain verified without them is verified again
+            if (revocationCache != null) {
+                revocationCache.prepare(Arrays.asList(chain));
+                revocationCache.prepare(intermediates);
+                key = revocationCache.getGeneration() + "/" + getChainKey(chain, generation);
+            } else {
+                key = getChainKey(chain, generation);
+            }
+            
+            Long expiry = verifiedChains.get(key);
+            if (expiry != null) {
+                if (System.currentTimeMillis() < expiry) {
+                    return;
+                }
+                verifiedChains.remove(key);
+            }
+            
             X509CertSelector selector = new X509CertSelector();
             selector.setCertificate(chain[0]);
 
-            // Root certificates
-            Set<TrustAnchor> trustAnchors = new HashSet<TrustAnchor>();
-            for (X509Certificate rootCert : rootCerts) {
-                trustAnchors.add(new TrustAnchor(rootCert, null));
-            }
-
             PKIXBuilderParameters pkixParams = new PKIXBuilderParameters(
                     trustAnchors, selector);
             
             pkixParams.setRevocationEnabled(true);
-
-            // Built-in intermediate certificates
-            pkixParams.addCertStore(CertStore.getInstance(
-                    "Collection", new CollectionCertStoreParameters(
-                            intermediateCerts)));
+            pkixParams.addCertStore(intermediateStore);
+            if (revocationCache != null) {
+                pkixParams.addCertStore(revocationCache.getCertStore());
+            }
             
             // Additional intermediate certificates
             pkixParams.addCertStore(CertStore.getInstance(
@@ -160,7 +296,70 @@ public class X509KeyStore implements X509TrustManager {
             throw new CertificateVerificationException(e);
         } catch (NoSuchAlgorithmException e) {
             throw new CertificateVerificationException(e);
+        } catch (CertificateEncodingException e) {
+            throw new CertificateVerificationException(e);
+        }
+        
+        remember(key, chain);
+    }
+    
+    /**
+     * Remember that a chain was verified, until the first of its
+     * certificates expires.
+     * 
+     * @param key key of the chain
+     * @param chain the chain
+     */
+    private void remember(String key, X509Certificate[] chain) {
+        long now = System.currentTimeMillis();
+        long expiry = now + MAX_VERIFIED_AGE;
+        for (X509Certificate cert : chain) {
+            expiry = Math.min(expiry, cert.getNotAfter().getTime());
         }
+        
+        // Drop the chains that have expired
+        for (Iterator<Long> it = verifiedChains.values().iterator(); it.hasNext(); ) {
+            if (it.next() <= now) {
+                it.remove();
+            }
+        }
+        
+        verifiedChains.put(key, expiry);
+    }
+    
+    /**
+     * Get the key that a verified chain is remembered by, made of the
+     * fingerprints of its certificates and the generation of the store.
+     * 
+     * @param chain the chain
+     * @param generation number of times the certificates have changed
+     * @return key
+     * @throws CertificateEncodingException thrown on a bad certificate
+     * @throws NoSuchAlgorithmException thrown if SHA-256 is not available
+     */
+    private static String getChainKey(X509Certificate[] chain, int generation)
+            throws CertificateEncodingException, NoSuchAlgorithmException {
+        StringBuilder key = new StringBuilder();
+        key.append(generation);
+        for (X509Certificate cert : chain) {
+            key.append(":");
+            key.append(getFingerprint(cert));
+        }
+        return key.toString();
+    }
+    
+    /**
+     * Get the fingerprint of a certificate.
+     * 
+     * @param cert the certificate
+     * @return SHA-256 digest of the encoded certificate in hex
+     * @throws CertificateEncodingException thrown on a bad certificate
+     * @throws NoSuchAlgorithmException thrown if SHA-256 is not available
+     */
+    private static String getFingerprint(X509Certificate cert)
+            throws CertificateEncodingException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        return new BigInteger(1, digest.digest(cert.getEncoded())).toString(16);
     }
 
     /**
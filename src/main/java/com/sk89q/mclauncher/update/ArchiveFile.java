@@ -18,23 +18,41 @@
 
 package com.sk89q.mclauncher.update;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import com.sk89q.mclauncher.util.Util;
 
 /**
  * Represents an file archive containing other files.
  * 
+ * <p>Entries whose CRC-32 and size match the file that is already
+ * installed are not extracted again.</p>
+ * 
  * @author sk89q
  */
 public class ArchiveFile extends PackageFile {
+    
+    private Set<String> stagedEntries;
+    private Set<String> unchangedEntries = new LinkedHashSet<String>();
 
     /**
      * Construct.
@@ -65,57 +83,280 @@ public class ArchiveFile extends PackageFile {
         return false;
     }
 
+    /**
+     * Get the folder that the archive is extracted to before it is
+     * deployed.
+     * 
+     * @return folder
+     */
+    private File getStagingDir() {
+        return new File(getTempFile().getPath() + ".staging");
+    }
+    
+    /**
+     * Stage. This extracts the archive into a folder next to it, so that
+     * deploying it only has to move the files into place.
+     */
+    
+    public void stage() throws IOException {
+        // Already fetched from the server entry by entry
+        if (stagedEntries != null) {
+            return;
+        }
+        
+        File stagingDir = getStagingDir();
+        deleteTree(stagingDir);
+        unchangedEntries.clear();
+        stagedEntries = extract(stagingDir, getFile().getParentFile());
+    }
+    
+    /**
+     * Stage the archive by fetching only the entries that differ from the
+     * installed files, instead of downloading the whole archive. Nothing
+     * is fetched if so much has changed that the whole archive would be
+     * about as quick to download.
+     * 
+     * @param archive the archive on the server, with its directory read
+     * @return true if staged, or false to download the whole archive
+     * @throws IOException on I/O error
+     */
+    public boolean stageRemote(RemoteArchive archive) throws IOException {
+        File parent = getFile().getParentFile();
+        File stagingDir = getStagingDir();
+        List<RemoteArchive.Entry> changed = new ArrayList<RemoteArchive.Entry>();
+        Set<String> unchanged = new LinkedHashSet<String>();
+        long changedBytes = 0;
+        
+        for (RemoteArchive.Entry entry : archive.getEntries()) {
+            if (entry.isDirectory() || isMetaInf(entry.getName())) {
+                continue;
+            }
+            
+            File installed = new File(parent, entry.getName());
+            checkSubchild(parent, installed);
+            if (isUnchanged(installed, entry.getSize(), entry.getCrc())) {
+                unchanged.add(entry.getName());
+            } else {
+                changed.add(entry);
+                changedBytes += entry.getSpan();
+            }
+        }
+        
+        if (changedBytes > archive.getLength() / 2) {
+            return false;
+        }
+        
+        deleteTree(stagingDir);
+        Set<String> staged = new LinkedHashSet<String>();
+        for (RemoteArchive.Entry entry : changed) {
+            File target = new File(stagingDir, entry.getName());
+            checkSubchild(stagingDir, target);
+            target.getParentFile().mkdirs();
+            archive.extract(entry, target);
+            staged.add(entry.getName());
+        }
+        
+        unchangedEntries = unchanged;
+        stagedEntries = staged;
+        return true;
+    }
+
     /**
      * Deploy.
      */
     
-    @SuppressWarnings("resource")
-	public void deploy(UninstallLog log) throws IOException {
+    public void deploy(UninstallLog log) throws IOException {
         File parent = getFile().getParentFile();
         
-        if (getOriginalFilename().endsWith(".zip") ||
-                getOriginalFilename().endsWith(".jar")) {
-            InputStream inputStream = null;
-            JarInputStream zip = null;
+        if (stagedEntries != null) {
+            File stagingDir = getStagingDir();
             
-            try {
-                inputStream = getInputStream();
-                zip = new JarInputStream(inputStream);
+            for (String name : stagedEntries) {
+                File source = new File(stagingDir, name);
+                File target = new File(parent, name);
+                checkSubchild(parent, target);
+                log.add(getFile(), target);
+                target.getParentFile().mkdirs();
+                target.delete();
                 
-                JarEntry entry;
-                while ((entry = zip.getNextJarEntry()) != null) {
-                    if (entry.isDirectory() || isMetaInf(entry.getName())) {
-                        continue;
-                    }
-                    
-                    BufferedOutputStream out = null;
-                    try {
-                        File target = new File(getFile().getParentFile(), entry.getName());
-                        checkSubchild(parent, target);
-                        log.add(getFile(), target);
-                        target.getParentFile().mkdirs();
-                        out = new BufferedOutputStream(
-                                new FileOutputStream(target));
-            
-                        byte[] buffer = new byte[8192];
-            
-                        int ret = zip.read(buffer, 0, buffer.length);
-                        while (ret >= 1) {
-                            out.write(buffer, 0, ret);
-                            ret = zip.read(buffer, 0, buffer.length);
-                        }
-                    } finally {
-                        Util.close(out);
-                    }
+                if (!source.renameTo(target)) {
+                    Util.copyFile(source, target);
                 }
-            } finally {
-                Util.close(inputStream);
             }
             
-            getTempFile().delete();
+            for (String name : unchangedEntries) {
+                log.add(getFile(), new File(parent, name));
+            }
         } else {
+            for (String name : extract(parent, null)) {
+                log.add(getFile(), new File(parent, name));
+            }
+        }
+        
+        deleteTempFiles();
+    }
+    
+    /**
+     * Extract the archive into the given folder. Entries that match the
+     * installed files are skipped and remembered as unchanged.
+     * 
+     * @param dir folder to extract to
+     * @param installedDir folder of the installed files, or null to
+     *            extract everything
+     * @return names of the extracted files
+     * @throws IOException on I/O error
+     */
+    @SuppressWarnings("resource")
+    private Set<String> extract(File dir, File installedDir) throws IOException {
+        if (!getOriginalFilename().endsWith(".zip") &&
+                !getOriginalFilename().endsWith(".jar")) {
             throw new IOException("Do not know how to extract " + getOriginalFilename());
         }
+        
+        Set<String> names = new LinkedHashSet<String>();
+        Map<String, ZipEntry> directory = installedDir != null ?
+                readDirectory() : new HashMap<String, ZipEntry>();
+        InputStream inputStream = null;
+        JarInputStream zip = null;
+        
+        try {
+            inputStream = getInputStream();
+            zip = new JarInputStream(inputStream);
+            
+            JarEntry entry;
+            while ((entry = zip.getNextJarEntry()) != null) {
+                if (entry.isDirectory() || isMetaInf(entry.getName())) {
+                    continue;
+                }
+                
+                // The local header may not have the CRC and size, but the
+                // central directory always does
+                ZipEntry known = directory.get(entry.getName());
+                if (known != null) {
+                    File installed = new File(installedDir, entry.getName());
+                    checkSubchild(installedDir, installed);
+                    if (isUnchanged(installed, known.getSize(), known.getCrc())) {
+                        unchangedEntries.add(entry.getName());
+                        continue;
+                    }
+                }
+                
+                BufferedOutputStream out = null;
+                try {
+                    File target = new File(dir, entry.getName());
+                    checkSubchild(dir, target);
+                    names.add(entry.getName());
+                    target.getParentFile().mkdirs();
+                    out = new BufferedOutputStream(
+                            new FileOutputStream(target));
+        
+                    byte[] buffer = new byte[8192];
+        
+                    int ret = zip.read(buffer, 0, buffer.length);
+                    while (ret >= 1) {
+                        out.write(buffer, 0, ret);
+                        ret = zip.read(buffer, 0, buffer.length);
+                    }
+                } finally {
+                    Util.close(out);
+                }
+            }
+        } finally {
+            Util.close(inputStream);
+        }
+        
+        return names;
+    }
+    
+    /**
+     * Read the CRC-32 and size of each entry from the central directory of
+     * the temporary file. Nothing is read if the temporary file is still
+     * compressed.
+     * 
+     * @return map of entry names to entries
+     */
+    private Map<String, ZipEntry> readDirectory() {
+        Map<String, ZipEntry> directory = new HashMap<String, ZipEntry>();
+        if (isFiltered() && !isDecompressed()) {
+            return directory;
+        }
+        
+        ZipFile zipFile = null;
+        try {
+            zipFile = new ZipFile(getTempFile());
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.getSize() >= 0 && entry.getCrc() >= 0) {
+                    directory.put(entry.getName(), entry);
+                }
+            }
+        } catch (IOException e) {
+            // Everything is extracted then
+        } finally {
+            if (zipFile != null) {
+                try {
+                    zipFile.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        
+        return directory;
+    }
+    
+    /**
+     * Returns whether an installed file has the given size and CRC-32.
+     * 
+     * @param file installed file
+     * @param size expected size
+     * @param crc expected CRC-32
+     * @return true if the file is there and the same
+     * @throws IOException on I/O error
+     */
+    private static boolean isUnchanged(File file, long size, long crc) throws IOException {
+        if (!file.isFile() || file.length() != size) {
+            return false;
+        }
+        
+        CRC32 checksum = new CRC32();
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                checksum.update(buffer, 0, len);
+            }
+        } finally {
+            Util.close(in);
+        }
+        
+        return checksum.getValue() == crc;
+    }
+    
+    /**
+     * Delete the temporary file and the staging folder.
+     */
+    
+    public void deleteTempFiles() {
+        super.deleteTempFiles();
+        deleteTree(getStagingDir());
+    }
+    
+    /**
+     * Delete a file or a folder with everything in it.
+     * 
+     * @param file file or folder
+     */
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
     }
     
     /**
@@ -138,7 +379,12 @@ public class ArchiveFile extends PackageFile {
     
     public void verify(SignatureVerifier verifier) throws SecurityException,
             IOException {
-        verifier.verify(getInputStream(), Util.getExtension(getOriginalFilename()));
+        String ext = Util.getExtension(getOriginalFilename());
+        if (!isFiltered() || isDecompressed()) {
+            verifier.verify(getTempFile(), ext);
+        } else {
+            verifier.verify(getInputStream(), ext);
+        }
     }
 
 }
@@ -0,0 +1,675 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import com.sk89q.mclauncher.util.HttpValidators;
+import com.sk89q.mclauncher.util.Util;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import static com.sk89q.mclauncher.util.XMLUtil.*;
+
+/**
+ * A caching HTTP proxy for update traffic, so that the launchers of a lab
+ * can all update from one machine on the local network.
+ *
+ * <p>Launchers ask for <code>http://server:port/host/path</code> instead of
+ * <code>http://host/path</code> (see {@link #toCacheURL(URL, URL)}). The
+ * response is stored in a {@link CacheStore} and served from there, with
+ * support for conditional and range requests. A stored response is checked
+ * against the origin server with a conditional request once it is older
+ * than {@value #REVALIDATE_INTERVAL} ms, and served as it is if the origin
+ * server can't be reached.</p>
+ *
+ * <p>Only hosts that have been allowed are proxied. Besides the ones given
+ * to {@link #allowHost(String)}, the hosts of the package URL of update
+ * checks and of the sources and mirrors of package definitions that go
+ * through the server are allowed as they are seen.</p>
+ *
+ * @author sk89q
+ */
+public class CacheServer {
+
+    private static final Logger logger = Logger.getLogger(CacheServer.class.getCanonicalName());
+
+    public static final int DEFAULT_PORT = 48130;
+    private static final long REVALIDATE_INTERVAL = 60000;
+    private static final int UPSTREAM_TIMEOUT = 30000;
+    private static final int SERVER_THREADS = 32;
+    private static final Pattern RANGE_PATTERN = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+
+    private final int port;
+    private final CacheStore store;
+    private final Set<String> allowedHosts = Collections.synchronizedSet(new HashSet<String>());
+    private final Map<String, FetchLock> fetchLocks = new HashMap<String, FetchLock>();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Construct the server.
+     *
+     * @param port port to listen on
+     * @param store store to keep responses in
+     */
+    public CacheServer(int port, CacheStore store) {
+        this.port = port;
+        this.store = store;
+    }
+
+    /**
+     * Allow requests to be proxied to a host.
+     *
+     * @param host host name
+     */
+    public void allowHost(String host) {
+        if (allowedHosts.add(host.toLowerCase(Locale.ENGLISH))) {
+            logger.info("Proxying requests to " + host);
+        }
+    }
+
+    /**
+     * Load the stored responses and start serving requests.
+     *
+     * @throws IOException thrown if the store can't be read or the server
+     *             can't be started
+     */
+    public synchronized void start() throws IOException {
+        store.load();
+        for (CacheStore.Entry entry : store.getEntries()) {
+            if (isXml(entry)) {
+                learnHosts(entry);
+            }
+        }
+
+        executor = Executors.newFixedThreadPool(SERVER_THREADS);
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+        server.createContext("/", new ProxyHandler());
+        server.start();
+        logger.info("Cache server listening on port " + port + ", storing up to " +
+                store.getMaxSize() + " bytes in " + store.getDirectory());
+    }
+
+    /**
+     * Stop serving requests.
+     */
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * Get the URL to ask a cache server for instead of the given URL. Only
+     * plain HTTP is proxied, so other URLs are returned unchanged.
+     *
+     * @param cacheServer base URL of the cache server
+     * @param url url to fetch
+     * @return url on the cache server
+     */
+    public static URL toCacheURL(URL cacheServer, URL url) {
+        if (!url.getProtocol().equalsIgnoreCase("http")) {
+            return url;
+        }
+
+        String base = cacheServer.toString();
+        StringBuilder s = new StringBuilder(base);
+        if (!base.endsWith("/")) {
+            s.append("/");
+        }
+        s.append(url.getHost());
+        if (url.getPort() != -1) {
+            s.append(":").append(url.getPort());
+        }
+        s.append(url.getFile().length() > 0 ? url.getFile() : "/");
+
+        try {
+            return new URL(s.toString());
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    /**
+     * Get the URL on the origin server that a request is for.
+     *
+     * @param exchange the request
+     * @return url, or null if the path is not of the form /host/path
+     */
+    private static URL toOriginURL(HttpExchange exchange) {
+        String path = exchange.getRequestURI().getRawPath();
+        String query = exchange.getRequestURI().getRawQuery();
+        int slash = path.indexOf('/', 1);
+        if (slash <= 1) {
+            return null;
+        }
+
+        try {
+            return new URL("http://" + path.substring(1, slash) + path.substring(slash) +
+                    (query != null ? "?" + query : ""));
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the lock that requests for a URL take while they fetch it, so
+     * that a file is only downloaded once at a time. It must be given back
+     * with {@link #releaseLock(String, FetchLock)}.
+     *
+     * @param key url
+     * @return lock
+     */
+    private FetchLock acquireLock(String key) {
+        synchronized (fetchLocks) {
+            FetchLock lock = fetchLocks.get(key);
+            if (lock == null) {
+                lock = new FetchLock();
+                fetchLocks.put(key, lock);
+            }
+            lock.users++;
+            return lock;
+        }
+    }
+
+    /**
+     * Give back a lock from {@link #acquireLock(String)}.
+     *
+     * @param key url
+     * @param lock the lock
+     */
+    private void releaseLock(String key, FetchLock lock) {
+        synchronized (fetchLocks) {
+            if (--lock.users == 0) {
+                fetchLocks.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Fetch a response from the origin server, conditionally if there is an
+     * older version of it stored, and store it.
+     *
+     * <p>If an exchange is given, the body of a new response is sent to it
+     * while it is being stored, which the caller can tell by the response
+     * code of the exchange having been set.</p>
+     *
+     * @param url url on the origin server
+     * @param cached the stored version, or null
+     * @param exchange exchange to send a new response to, or null
+     * @return the current version
+     * @throws IOException on I/O error
+     */
+    private CacheStore.Entry fetch(URL url, CacheStore.Entry cached, HttpExchange exchange)
+            throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        File temp = null;
+        InputStream in = null;
+        OutputStream out = null;
+
+        try {
+            conn.setUseCaches(false);
+            conn.setConnectTimeout(UPSTREAM_TIMEOUT);
+            conn.setReadTimeout(UPSTREAM_TIMEOUT);
+            if (cached != null) {
+                HttpValidators validators = cached.getValidators();
+                if (validators.getEtag() != null) {
+                    conn.setRequestProperty("If-None-Match", validators.getEtag());
+                }
+                if (validators.getLastModified() != null) {
+                    conn.setRequestProperty("If-Modified-Since", validators.getLastModified());
+                }
+            }
+
+            int code = conn.getResponseCode();
+            if (code == 304 && cached != null) {
+                store.markValidated(cached);
+                return cached;
+            } else if (code != 200) {
+                throw new OriginStatusException(code);
+            }
+
+            HttpValidators validators = new HttpValidators(conn.getHeaderField("ETag"),
+                    conn.getHeaderField("Last-Modified"), -1);
+            String contentType = conn.getContentType();
+            long length = conn.getContentLength();
+
+            OutputStream client = null;
+            if (exchange != null) {
+                setHeaders(exchange, validators, contentType, "MISS");
+                exchange.sendResponseHeaders(200, length > 0 ? length : 0);
+                client = exchange.getResponseBody();
+            }
+
+            temp = store.createTempFile();
+            in = conn.getInputStream();
+            out = new FileOutputStream(temp);
+            byte[] buffer = new byte[16384];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+                if (client != null) {
+                    try {
+                        client.write(buffer, 0, len);
+                    } catch (IOException e) {
+                        // Keep storing the response for the next request
+                        client = null;
+                    }
+                }
+            }
+            out.close();
+
+            if (length >= 0 && temp.length() != length) {
+                throw new IOException("Got " + temp.length() + " bytes of " + length +
+                        " from " + url);
+            }
+
+            CacheStore.Entry entry = store.put(url.toString(), temp, validators, contentType);
+            temp = null;
+            logger.info("Stored " + url + " (" + entry.getLength() + " bytes)");
+            if (isXml(entry)) {
+                learnHosts(entry);
+            }
+            return entry;
+        } finally {
+            Util.close(in);
+            Util.close(out);
+            if (temp != null) {
+                temp.delete();
+            }
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Send a stored response to a request, taking the conditional and range
+     * headers of the request into account.
+     *
+     * @param exchange the request
+     * @param entry the response
+     * @param status value of the X-Cache header
+     * @throws IOException on I/O error
+     */
+    private void serve(HttpExchange exchange, CacheStore.Entry entry, String status)
+            throws IOException {
+        Headers request = exchange.getRequestHeaders();
+        HttpValidators validators = entry.getValidators();
+        boolean head = exchange.getRequestMethod().equalsIgnoreCase("HEAD");
+        long length = entry.getLength();
+        setHeaders(exchange, validators, entry.getContentType(), status);
+
+        if (isNotModified(request, validators)) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        // Only single ranges are supported, which is all the updater asks for
+        long start = 0;
+        long end = length - 1;
+        int code = 200;
+        String range = request.getFirst("Range");
+        String ifRange = request.getFirst("If-Range");
+        if (range != null && (ifRange == null || ifRange.equals(validators.getEtag())
+                || ifRange.equals(validators.getLastModified()))) {
+            Matcher m = RANGE_PATTERN.matcher(range.trim());
+            if (m.matches() && (m.group(1).length() > 0 || m.group(2).length() > 0)) {
+                if (m.group(1).length() == 0) {
+                    start = Math.max(0, length - Long.parseLong(m.group(2)));
+                } else {
+                    start = Long.parseLong(m.group(1));
+                    if (m.group(2).length() > 0) {
+                        end = Math.min(end, Long.parseLong(m.group(2)));
+                    }
+                }
+
+                if (start >= length || start > end) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+
+                code = 206;
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+
+        long count = end - start + 1;
+        if (head) {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(count));
+            exchange.sendResponseHeaders(code, -1);
+            return;
+        }
+
+        InputStream in = new BufferedInputStream(new FileInputStream(entry.getFile()));
+        try {
+            exchange.sendResponseHeaders(code, count > 0 ? count : -1);
+            OutputStream out = exchange.getResponseBody();
+            for (long left = start; left > 0; ) {
+                long skipped = in.skip(left);
+                if (skipped <= 0) {
+                    throw new IOException(entry.getFile() + " ended early");
+                }
+                left -= skipped;
+            }
+            byte[] buffer = new byte[16384];
+            while (count > 0) {
+                int len = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+                if (len == -1) {
+                    throw new IOException(entry.getFile() + " ended early");
+                }
+                out.write(buffer, 0, len);
+                count -= len;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns whether the conditional headers of a request match a
+     * response, so that a 304 can be sent.
+     *
+     * @param request headers of the request
+     * @param validators validators of the response
+     * @return true if not modified
+     */
+    private static boolean isNotModified(Headers request, HttpValidators validators) {
+        String ifNoneMatch = request.getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            String etag = validators.getEtag();
+            if (etag == null) {
+                return false;
+            }
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.equals("*") || stripWeak(candidate).equals(stripWeak(etag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        String ifModifiedSince = request.getFirst("If-Modified-Since");
+        String lastModified = validators.getLastModified();
+        if (ifModifiedSince != null && lastModified != null) {
+            if (ifModifiedSince.equals(lastModified)) {
+                return true;
+            }
+            try {
+                SimpleDateFormat format = new SimpleDateFormat(
+                        "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+                format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                Date since = format.parse(ifModifiedSince);
+                Date modified = format.parse(lastModified);
+                return !modified.after(since);
+            } catch (ParseException e) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Remove the weak prefix of an ETag.
+     *
+     * @param etag etag
+     * @return etag without the prefix
+     */
+    private static String stripWeak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /**
+     * Set the headers that describe a response.
+     *
+     * @param exchange the request
+     * @param validators validators of the response
+     * @param contentType content type, or null
+     * @param status value of the X-Cache header
+     */
+    private static void setHeaders(HttpExchange exchange, HttpValidators validators,
+            String contentType, String status) {
+        Headers headers = exchange.getResponseHeaders();
+        if (validators.getEtag() != null) {
+            headers.set("ETag", validators.getEtag());
+        }
+        if (validators.getLastModified() != null) {
+            headers.set("Last-Modified", validators.getLastModified());
+        }
+        if (contentType != null) {
+            headers.set("Content-Type", contentType);
+        }
+        headers.set("Accept-Ranges", "bytes");
+        headers.set("X-Cache", status);
+    }
+
+    /**
+     * Returns whether a response is an XML document that may list other
+     * hosts to allow.
+     *
+     * @param entry the response
+     * @return true if XML
+     */
+    private static boolean isXml(CacheStore.Entry entry) {
+        String contentType = entry.getContentType();
+        return (contentType != null && contentType.contains("xml"))
+                || entry.getKey().toLowerCase(Locale.ENGLISH).matches("^[^?]*\\.xml(\\?.*)?$");
+    }
+
+    /**
+     * Allow the hosts that an update check or a package definition refers
+     * to.
+     *
+     * @param in stream of the document
+     * @throws IOException thrown if the document can't be read
+     */
+    public void allowHostsOf(InputStream in) throws IOException {
+        try {
+            Document doc = parseXml(in);
+            XPath xpath = XPathFactory.newInstance().newXPath();
+
+            String packageUrl = getStringOrNull(doc, xpath.compile("/update/packageurl"));
+            if (packageUrl != null) {
+                allowHost(new URL(packageUrl.trim()).getHost());
+            }
+
+            for (Node node : getNodes(doc, xpath.compile("/package/filegroup"))) {
+                allowHost(new URL(getAttr(node, "source")).getHost());
+                for (Node mirrorNode : getNodes(node, xpath.compile("mirror"))) {
+                    allowHost(new URL(getValue(mirrorNode).trim()).getHost());
+                }
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Allow the hosts that a stored update check or package definition
+     * refers to.
+     *
+     * @param entry the response holding the document
+     */
+    private void learnHosts(CacheStore.Entry entry) {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(entry.getFile()));
+            allowHostsOf(in);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Could not read hosts from " + entry.getKey(), e);
+        } finally {
+            Util.close(in);
+        }
+    }
+
+    /**
+     * Handles the requests of launchers.
+     */
+    private class ProxyHandler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                handleRequest(exchange);
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Failed to serve " + exchange.getRequestURI(), e);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void handleRequest(HttpExchange exchange) throws IOException {
+            String method = exchange.getRequestMethod();
+            if (!method.equalsIgnoreCase("GET") && !method.equalsIgnoreCase("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            URL url = toOriginURL(exchange);
+            if (url == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (!allowedHosts.contains(url.getHost().toLowerCase(Locale.ENGLISH))) {
+                logger.warning("Refused to proxy " + url + " for " +
+                        exchange.getRemoteAddress().getAddress().getHostAddress());
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+
+            // Stream a new download to the first launcher that wants it as
+            // a whole, rather than have it wait for the whole file
+            Headers request = exchange.getRequestHeaders();
+            boolean plainGet = method.equalsIgnoreCase("GET") && request.getFirst("Range") == null
+                    && request.getFirst("If-None-Match") == null
+                    && request.getFirst("If-Modified-Since") == null;
+
+            String key = url.toString();
+            CacheStore.Entry entry;
+            String status = "HIT";
+            FetchLock lock = acquireLock(key);
+            try {
+                synchronized (lock) {
+                    entry = store.get(key);
+                    if (entry == null || System.currentTimeMillis() - entry.getValidated()
+                            > REVALIDATE_INTERVAL) {
+                        CacheStore.Entry cached = entry;
+                        try {
+                            entry = fetch(url, cached, plainGet ? exchange : null);
+                            status = entry == cached ? "REVALIDATED" : "MISS";
+                        } catch (OriginStatusException e) {
+                            if (cached == null || e.getCode() < 500) {
+                                exchange.sendResponseHeaders(e.getCode(), -1);
+                                return;
+                            }
+                            logger.warning(url + " gave " + e.getCode() + "; serving stored copy");
+                            status = "STALE";
+                        } catch (IOException e) {
+                            if (exchange.getResponseCode() != -1) {
+                                throw e;
+                            } else if (cached == null) {
+                                logger.warning("Could not fetch " + url + ": " + e.getMessage());
+                                exchange.sendResponseHeaders(502, -1);
+                                return;
+                            }
+                            logger.warning("Could not fetch " + url + ": " + e.getMessage() +
+                                    "; serving stored copy");
+                            status = "STALE";
+                        }
+                    }
+                }
+            } finally {
+                releaseLock(key, lock);
+            }
+
+            // The response may have been sent while it was fetched
+            if (exchange.getResponseCode() == -1) {
+                serve(exchange, entry, status);
+            }
+        }
+    }
+
+    /**
+     * A lock on fetching a URL, with the number of requests holding or
+     * waiting for it.
+     */
+    private static class FetchLock {
+        private int users;
+    }
+
+    /**
+     * Thrown when the origin server answers with a status that can't be
+     * stored.
+     */
+    private static class OriginStatusException extends IOException {
+        private static final long serialVersionUID = -3014530498207418744L;
+        private final int code;
+
+        public OriginStatusException(int code) {
+            super("Origin server gave " + code);
+            this.code = code;
+        }
+
+        public int getCode() {
+            return code;
+        }
+    }
+
+}
@@ -0,0 +1,427 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.sk89q.mclauncher.util.HttpValidators;
+import com.sk89q.mclauncher.util.Util;
+
+/**
+ * Stores HTTP responses on disk, keyed by URL, and evicts the least
+ * recently used ones once the total size goes over a limit.
+ *
+ * <p>Each response is kept as a data file with a .properties file next to
+ * it that holds the URL, the validators and the content type. The data
+ * file of a response is never changed once written; a newer version is
+ * written to a new file, so that a response can be served while it is
+ * being replaced. The order of use is kept in the modification times of
+ * the data files so that it survives a restart.</p>
+ *
+ * @author sk89q
+ */
+public class CacheStore {
+
+    private static final Logger logger = Logger.getLogger(CacheStore.class.getCanonicalName());
+
+    private final File dir;
+    private final long maxSize;
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long size;
+    private long nextId = System.currentTimeMillis();
+
+    /**
+     * Construct the store.
+     *
+     * @param dir folder to keep responses in
+     * @param maxSize maximum total size of the responses in bytes
+     */
+    public CacheStore(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the folder that responses are kept in.
+     *
+     * @return folder
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Get the maximum total size of the responses.
+     *
+     * @return size in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Get the total size of the stored responses.
+     *
+     * @return size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Read the responses that are already on disk. Files that don't belong
+     * to any response, such as those left by an interrupted download, are
+     * deleted.
+     *
+     * @throws IOException thrown if the folder can't be created
+     */
+    public synchronized void load() throws IOException {
+        dir.mkdirs();
+        if (!dir.isDirectory()) {
+            throw new IOException("Could not create " + dir);
+        }
+
+        List<Entry> loaded = new ArrayList<Entry>();
+        Set<String> used = new HashSet<String>();
+
+        for (File metaFile : dir.listFiles()) {
+            if (!metaFile.getName().endsWith(".properties")) {
+                continue;
+            }
+
+            Properties props = new Properties();
+            InputStream in = null;
+            try {
+                in = new FileInputStream(metaFile);
+                props.load(in);
+            } catch (IOException e) {
+                logger.warning("Could not read " + metaFile + ": " + e.getMessage());
+                continue;
+            } finally {
+                Util.close(in);
+            }
+
+            String key = props.getProperty("url");
+            String name = props.getProperty("file");
+            File file = name != null ? new File(dir, name) : null;
+            if (key == null || file == null || !file.exists()) {
+                metaFile.delete();
+                continue;
+            }
+
+            long validated = 0;
+            try {
+                validated = Long.parseLong(props.getProperty("validated", "0"));
+            } catch (NumberFormatException e) {
+            }
+
+            loaded.add(new Entry(key, file, metaFile, new HttpValidators(
+                    props.getProperty("etag"), props.getProperty("last-modified"),
+                    file.length()), props.getProperty("content-type"), validated));
+            used.add(metaFile.getName());
+            used.add(file.getName());
+        }
+
+        for (File file : dir.listFiles()) {
+            if (!used.contains(file.getName())) {
+                file.delete();
+            }
+        }
+
+        // The least recently used responses go first
+        Entry[] sorted = loaded.toArray(new Entry[loaded.size()]);
+        Arrays.sort(sorted, new Comparator<Entry>() {
+            public int compare(Entry o1, Entry o2) {
+                long t1 = o1.getFile().lastModified();
+                long t2 = o2.getFile().lastModified();
+                return t1 < t2 ? -1 : (t1 > t2 ? 1 : 0);
+            }
+        });
+
+        entries.clear();
+        size = 0;
+        for (Entry entry : sorted) {
+            entries.put(entry.getKey(), entry);
+            size += entry.getLength();
+        }
+
+        evict(null);
+        logger.info("Loaded " + entries.size() + " cached responses (" + size + " bytes)");
+    }
+
+    /**
+     * Get a stored response and mark it as recently used.
+     *
+     * @param key url of the response
+     * @return response, or null if it is not stored
+     */
+    public synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.getFile().setLastModified(System.currentTimeMillis());
+        }
+        return entry;
+    }
+
+    /**
+     * Get all the stored responses.
+     *
+     * @return list of responses
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * Create a file to download a response to before it is stored with
+     * {@link #put(String, File, HttpValidators, String)}.
+     *
+     * @return new file
+     * @throws IOException on I/O error
+     */
+    public File createTempFile() throws IOException {
+        return File.createTempFile("download", ".tmp", dir);
+    }
+
+    /**
+     * Store a response, replacing any older version of it, and evict the
+     * least recently used responses if there is no room for it.
+     *
+     * @param key url of the response
+     * @param temp file holding the body, which is moved into the store
+     * @param validators validators of the response
+     * @param contentType content type, or null
+     * @return stored response
+     * @throws IOException on I/O error
+     */
+    public synchronized Entry put(String key, File temp, HttpValidators validators,
+            String contentType) throws IOException {
+        String name = hash(key) + "-" + Long.toString(nextId++, 36);
+        File file = new File(dir, name + ".data");
+        File metaFile = new File(dir, hash(key) + ".properties");
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not move " + temp + " to " + file);
+        }
+
+        Entry entry = new Entry(key, file, metaFile, new HttpValidators(
+                validators.getEtag(), validators.getLastModified(), file.length()),
+                contentType, System.currentTimeMillis());
+        try {
+            entry.write();
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            size -= old.getLength();
+            old.getFile().delete();
+        }
+        size += entry.getLength();
+
+        evict(entry);
+        return entry;
+    }
+
+    /**
+     * Record that a stored response was found to be the current version.
+     *
+     * @param entry the response
+     */
+    public synchronized void markValidated(Entry entry) {
+        entry.validated = System.currentTimeMillis();
+        if (entries.get(entry.getKey()) == entry) {
+            try {
+                entry.write();
+            } catch (IOException e) {
+                logger.warning("Could not update " + entry.metaFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Remove least recently used responses until the total size is within
+     * the limit.
+     *
+     * @param keep response to never remove, or null
+     */
+    private void evict(Entry keep) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry == keep) {
+                continue;
+            }
+
+            it.remove();
+            size -= entry.getLength();
+            entry.metaFile.delete();
+            // On some platforms, this fails if the response is being
+            // served, in which case the file is deleted on the next load
+            entry.getFile().delete();
+            logger.fine("Evicted " + entry.getKey());
+        }
+    }
+
+    /**
+     * Get the SHA-1 digest of a key as hex, to use as a file name.
+     *
+     * @param key key
+     * @return hex digest
+     */
+    private static String hash(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return String.format("%040x", new BigInteger(1, digest.digest(key.getBytes("UTF-8"))));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A stored response.
+     */
+    public static class Entry {
+
+        private final String key;
+        private final File file;
+        private final File metaFile;
+        private final HttpValidators validators;
+        private final String contentType;
+        private volatile long validated;
+
+        private Entry(String key, File file, File metaFile, HttpValidators validators,
+                String contentType, long validated) {
+            this.key = key;
+            this.file = file;
+            this.metaFile = metaFile;
+            this.validators = validators;
+            this.contentType = contentType;
+            this.validated = validated;
+        }
+
+        /**
+         * Get the url of the response.
+         *
+         * @return url
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Get the file holding the body.
+         *
+         * @return file
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Get the length of the body.
+         *
+         * @return length in bytes
+         */
+        public long getLength() {
+            return validators.getContentLength();
+        }
+
+        /**
+         * Get the validators of the response.
+         *
+         * @return validators
+         */
+        public HttpValidators getValidators() {
+            return validators;
+        }
+
+        /**
+         * Get the content type of the response.
+         *
+         * @return content type, or null
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Get when the response was last found to be the current version.
+         *
+         * @return time in milliseconds
+         */
+        public long getValidated() {
+            return validated;
+        }
+
+        /**
+         * Write the .properties file of this response.
+         *
+         * @throws IOException on I/O error
+         */
+        private void write() throws IOException {
+            Properties props = new Properties();
+            props.setProperty("url", key);
+            props.setProperty("file", file.getName());
+            props.setProperty("validated", String.valueOf(validated));
+            if (validators.getEtag() != null) {
+                props.setProperty("etag", validators.getEtag());
+            }
+            if (validators.getLastModified() != null) {
+                props.setProperty("last-modified", validators.getLastModified());
+            }
+            if (contentType != null) {
+                props.setProperty("content-type", contentType);
+            }
+
+            OutputStream out = new FileOutputStream(metaFile);
+            try {
+                props.store(out, null);
+            } finally {
+                out.close();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,296 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sk89q.mclauncher.util.Util;
+
+/**
+ * Takes the compressed bytes of a filtered package file as they are
+ * downloaded and decompresses them into the file's temporary file at the
+ * same time, so that the compressed copy never has to be read back.
+ *
+ * <p>The stream filters pull their input, so the decompression happens on
+ * a thread of its own that reads from a pipe. If a verifier is given, the
+ * signatures of a .jar or .zip are checked on the decompressed bytes as
+ * they go past. When the decompression fails, the next write or the close
+ * throws the error.</p>
+ *
+ * @author sk89q
+ */
+public class DecompressingOutputStream extends OutputStream {
+
+    private static final Logger logger =
+            Logger.getLogger(DecompressingOutputStream.class.getCanonicalName());
+    private static final int PIPE_SIZE = 1024 * 64;
+
+    private final PackageFile file;
+    private final SignatureVerifier verifier;
+    private PipedOutputStream pipe;
+    private Thread thread;
+    private boolean closed = false;
+    private volatile IOException error;
+    private volatile boolean signatureVerified = false;
+
+    /**
+     * Construct the stream. Nothing is written to the temporary file
+     * until the first byte arrives.
+     *
+     * @param file the file, which must be filtered
+     * @param verifier verifier, or null to not check signatures
+     */
+    public DecompressingOutputStream(PackageFile file, SignatureVerifier verifier) {
+        this.file = file;
+        this.verifier = verifier;
+    }
+
+    /**
+     * Returns whether the signatures of the file were checked and found
+     * to be trusted. This is only known after the stream has been closed
+     * without error.
+     *
+     * @return true if verified
+     */
+    public boolean isSignatureVerified() {
+        return signatureVerified;
+    }
+
+    /**
+     * Start the decompression thread if it hasn't been started yet.
+     *
+     * @throws IOException on I/O error
+     */
+    private void start() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        if (thread != null) {
+            return;
+        }
+
+        final PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+        pipe = new PipedOutputStream(in);
+
+        thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    decompress(in);
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = new IOException("Failed to decompress " + file.getFilename(), e);
+                } finally {
+                    // Unblocks the writer if we stopped early
+                    Util.close(in);
+                }
+            }
+        }, "Decompress " + file.getFilename());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Decompress everything that comes through the pipe into the temporary
+     * file, checking signatures along the way.
+     *
+     * @param pipeIn the pipe
+     * @throws IOException on I/O error
+     */
+    private void decompress(InputStream pipeIn) throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+
+        try {
+            in = file.filter(pipeIn);
+            out = new BufferedOutputStream(new FileOutputStream(file.getTempFile()));
+            TeeInputStream tee = new TeeInputStream(in, out);
+
+            String ext = Util.getExtension(file.getOriginalFilename());
+            if (verifier != null &&
+                    (ext.equalsIgnoreCase("jar") || ext.equalsIgnoreCase("zip"))) {
+                try {
+                    verifier.verifyJar(tee);
+                    signatureVerified = true;
+                } catch (SecurityException e) {
+                    // The verify step checks the file again and reports it
+                    logger.log(Level.FINE, "Signatures of " + file.getFilename() +
+                            " could not be verified while downloading", e);
+                }
+            }
+
+            // The end of an archive is not read by the verifier
+            tee.drain();
+            out.close();
+
+            // Take anything after the end of the compressed data so that
+            // the writer isn't left with a closed pipe
+            byte[] buffer = new byte[8192];
+            while (pipeIn.read(buffer) != -1) {
+            }
+        } finally {
+            Util.close(in);
+            Util.close(out);
+        }
+    }
+
+    /**
+     * Throw the error of the decompression thread, if there was one.
+     *
+     * @throws IOException the error
+     */
+    private void checkError() throws IOException {
+        IOException error = this.error;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        start();
+        try {
+            pipe.write(b);
+        } catch (IOException e) {
+            checkError();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        start();
+        try {
+            pipe.write(b, off, len);
+        } catch (IOException e) {
+            checkError();
+            throw e;
+        }
+    }
+
+    /**
+     * Signal the end of the file and wait for the decompression to finish.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        if (thread == null) {
+            return;
+        }
+
+        try {
+            pipe.close();
+        } catch (IOException e) {
+            // The reader is gone and has left its error
+        }
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for decompression");
+        }
+
+        checkError();
+    }
+
+    /**
+     * Copies everything that is read to an output stream. Closing it does
+     * not close the underlying stream.
+     */
+    private static class TeeInputStream extends FilterInputStream {
+
+        private final OutputStream out;
+
+        private TeeInputStream(InputStream in, OutputStream out) {
+            super(in);
+            this.out = out;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                out.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                out.write(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(8192, Math.max(0, n))];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Read the rest of the stream.
+         *
+         * @throws IOException on I/O error
+         */
+        private void drain() throws IOException {
+            byte[] buffer = new byte[16384];
+            while (read(buffer, 0, buffer.length) != -1) {
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
@@ -0,0 +1,379 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import com.sk89q.mclauncher.util.Util;
+
+/**
+ * Creates and applies binary patches that turn one version of a file into
+ * another.
+ *
+ * <p>A patch starts with the magic bytes <code>SKDP</code>, a format
+ * version byte and the length of the new file as a long. It then holds a
+ * list of operations, each starting with a byte:</p>
+ *
+ * <ul>
+ * <li><code>1</code>: copy bytes from the old file, followed by the offset
+ * (long) and the length (int)</li>
+ * <li><code>2</code>: insert new bytes, followed by the length (int) and
+ * the bytes</li>
+ * <li><code>0</code>: the end of the patch</li>
+ * </ul>
+ *
+ * <p>Patches are meant to be compressed, by giving them a .lzma or .gz
+ * extension like other package files. Running this class makes a patch
+ * for a package; see {@link #main(String[])}.</p>
+ *
+ * @author sk89q
+ */
+public class DeltaPatch {
+
+    private static final byte[] MAGIC = { 'S', 'K', 'D', 'P' };
+    private static final int VERSION = 1;
+    private static final int OP_END = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_DATA = 2;
+    private static final int BLOCK_SIZE = 64;
+
+    /**
+     * Apply a patch to a file.
+     *
+     * @param base the old file
+     * @param patch stream of the patch
+     * @param out stream to write the new file to
+     * @throws IOException on I/O error or if the patch doesn't fit the file
+     */
+    public static void apply(File base, InputStream patch, OutputStream out) throws IOException {
+        DataInputStream in = new DataInputStream(patch);
+
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("Not a patch file");
+            }
+        }
+
+        int version = in.read();
+        if (version != VERSION) {
+            throw new IOException("Unsupported patch version " + version);
+        }
+
+        long targetLength = in.readLong();
+        long written = 0;
+        byte[] buffer = new byte[16384];
+        RandomAccessFile raf = new RandomAccessFile(base, "r");
+
+        try {
+            long baseLength = raf.length();
+
+            while (true) {
+                int op = in.read();
+                int length;
+
+                if (op == OP_END) {
+                    break;
+                } else if (op == OP_COPY) {
+                    long offset = in.readLong();
+                    length = in.readInt();
+                    if (offset < 0 || length < 0 || offset + length > baseLength) {
+                        throw new IOException("Patch copies past the end of " + base);
+                    }
+
+                    raf.seek(offset);
+                    for (int left = length; left > 0; ) {
+                        int len = Math.min(left, buffer.length);
+                        raf.readFully(buffer, 0, len);
+                        out.write(buffer, 0, len);
+                        left -= len;
+                    }
+                } else if (op == OP_DATA) {
+                    length = in.readInt();
+                    if (length < 0) {
+                        throw new IOException("Corrupt patch: negative length");
+                    }
+
+                    for (int left = length; left > 0; ) {
+                        int len = Math.min(left, buffer.length);
+                        in.readFully(buffer, 0, len);
+                        out.write(buffer, 0, len);
+                        left -= len;
+                    }
+                } else if (op == -1) {
+                    throw new EOFException("Patch ended early");
+                } else {
+                    throw new IOException("Corrupt patch: unknown operation " + op);
+                }
+
+                written += length;
+                if (written > targetLength) {
+                    throw new IOException("Patch makes a file longer than it says");
+                }
+            }
+        } finally {
+            raf.close();
+        }
+
+        if (written != targetLength) {
+            throw new IOException("Patch made " + written + " bytes instead of " + targetLength);
+        }
+    }
+
+    /**
+     * Create a patch that turns one version of a file into another. Runs of
+     * the new file that can be found in the old file, in blocks of at least
+     * {@value #BLOCK_SIZE} bytes, are copied from it, and the rest is
+     * stored in the patch.
+     *
+     * @param base contents of the old file
+     * @param target contents of the new file
+     * @param out stream to write the patch to
+     * @throws IOException on I/O error
+     */
+    public static void create(byte[] base, byte[] target, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(MAGIC);
+        data.write(VERSION);
+        data.writeLong(target.length);
+
+        // Index the blocks of the old file by their checksum
+        Map<Integer, Integer> blocks = new HashMap<Integer, Integer>();
+        for (int offset = 0; offset + BLOCK_SIZE <= base.length; offset += BLOCK_SIZE) {
+            Integer hash = checksum(base, offset);
+            if (!blocks.containsKey(hash)) {
+                blocks.put(hash, offset);
+            }
+        }
+
+        int pending = 0;
+        int i = 0;
+        int a = 0;
+        int b = 0;
+        if (target.length >= BLOCK_SIZE) {
+            int hash = checksum(target, 0);
+            a = hash & 0xffff;
+            b = hash >>> 16;
+        }
+
+        while (i + BLOCK_SIZE <= target.length) {
+            Integer offset = blocks.get(a | (b << 16));
+
+            if (offset != null && matches(base, offset, target, i)) {
+                // Grow the match in both directions
+                int start = i;
+                int baseStart = offset;
+                while (start > pending && baseStart > 0 && base[baseStart - 1] == target[start - 1]) {
+                    start--;
+                    baseStart--;
+                }
+                int end = i + BLOCK_SIZE;
+                int baseEnd = offset + BLOCK_SIZE;
+                while (end < target.length && baseEnd < base.length && base[baseEnd] == target[end]) {
+                    end++;
+                    baseEnd++;
+                }
+
+                writeData(data, target, pending, start - pending);
+                data.write(OP_COPY);
+                data.writeLong(baseStart);
+                data.writeInt(end - start);
+
+                pending = end;
+                i = end;
+                if (i + BLOCK_SIZE <= target.length) {
+                    int hash = checksum(target, i);
+                    a = hash & 0xffff;
+                    b = hash >>> 16;
+                }
+                continue;
+            }
+
+            // Roll the checksum forward by one byte
+            if (i + BLOCK_SIZE < target.length) {
+                int removed = target[i] & 0xff;
+                int added = target[i + BLOCK_SIZE] & 0xff;
+                a = (a - removed + added) & 0xffff;
+                b = (b - BLOCK_SIZE * removed + a) & 0xffff;
+            }
+            i++;
+        }
+
+        writeData(data, target, pending, target.length - pending);
+        data.write(OP_END);
+        data.flush();
+    }
+
+    /**
+     * Create a patch that turns one version of a file into another.
+     *
+     * @param base the old file
+     * @param target the new file
+     * @param out stream to write the patch to
+     * @throws IOException on I/O error
+     * @see #create(byte[], byte[], OutputStream)
+     */
+    public static void create(File base, File target, OutputStream out) throws IOException {
+        create(read(base), read(target), out);
+    }
+
+    /**
+     * Read the whole of a file.
+     *
+     * @param file the file
+     * @return contents
+     * @throws IOException on I/O error
+     */
+    private static byte[] read(File file) throws IOException {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(file + " is too large to patch");
+        }
+
+        byte[] data = new byte[(int) length];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            Util.close(in);
+        }
+        return data;
+    }
+
+    /**
+     * Get the digest of a file in hex, as it is written in packages.
+     *
+     * @param file the file
+     * @return digest
+     * @throws IOException on I/O error
+     * @throws NoSuchAlgorithmException if MD5 is not available
+     */
+    private static String md5(File file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        digest.update(read(file));
+        return new BigInteger(1, digest.digest()).toString(16);
+    }
+
+    /**
+     * Make a patch for a package. Takes the old file, the new file and the
+     * patch file to write, which is gzipped if its name ends in .gz. Prints
+     * the <code>patch</code> element to put in the package's
+     * <code>file</code> element, with MD5 digests; use the digests of the
+     * file group's verification type instead if it has one.
+     *
+     * @param args arguments
+     * @throws Exception on error
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Usage: DeltaPatch <old file> <new file> <patch file>");
+            System.exit(1);
+        }
+
+        File base = new File(args[0]);
+        File target = new File(args[1]);
+        File patch = new File(args[2]);
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(patch));
+        try {
+            if (patch.getName().endsWith(".gz")) {
+                out = new GZIPOutputStream(out);
+            }
+            create(base, target, out);
+        } finally {
+            out.close();
+        }
+
+        System.out.println(String.format("<patch from=\"%s\" to=\"%s\" size=\"%d\">%s</patch>",
+                md5(base), md5(target), patch.length(), patch.getName()));
+    }
+
+    /**
+     * Get the rolling checksum of a block.
+     *
+     * @param data data
+     * @param offset start of the block
+     * @return checksum
+     */
+    private static int checksum(byte[] data, int offset) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            int value = data[offset + i] & 0xff;
+            a += value;
+            b += (BLOCK_SIZE - i) * value;
+        }
+        return (a & 0xffff) | ((b & 0xffff) << 16);
+    }
+
+    /**
+     * Returns whether a block of the old file is the same as a block of the
+     * new file.
+     *
+     * @param base old file
+     * @param baseOffset start of the block in the old file
+     * @param target new file
+     * @param targetOffset start of the block in the new file
+     * @return true if the same
+     */
+    private static boolean matches(byte[] base, int baseOffset, byte[] target, int targetOffset) {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            if (base[baseOffset + i] != target[targetOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write an operation that inserts new bytes.
+     *
+     * @param out stream
+     * @param data new file
+     * @param offset start of the bytes
+     * @param length number of bytes
+     * @throws IOException on I/O error
+     */
+    private static void writeData(DataOutputStream out, byte[] data, int offset, int length)
+            throws IOException {
+        if (length > 0) {
+            out.write(OP_DATA);
+            out.writeInt(length);
+            out.write(data, offset, length);
+        }
+    }
+
+}
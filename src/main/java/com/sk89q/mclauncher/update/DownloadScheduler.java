@@ -0,0 +1,315 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs download tasks on a bounded pool of worker threads while limiting
+ * the number of tasks that may talk to the same host at once.
+ *
+ * <p>A task for a host that is at its limit is held back in a queue for
+ * that host, and is handed to the pool once one of the host's tasks
+ * finishes, so that worker threads are never left waiting on a host while
+ * there is work for other hosts.</p>
+ *
+ * @author sk89q
+ */
+public class DownloadScheduler {
+
+    private static final AtomicInteger poolCount = new AtomicInteger();
+
+    private final ExecutorService executor;
+    private final CompletionService<Void> completionService;
+    private final Map<String, HostQueue> hosts = new HashMap<String, HostQueue>();
+    private final int maxPerHost;
+    private volatile boolean aborted = false;
+    private int pending = 0;
+
+    /**
+     * Construct the scheduler.
+     *
+     * @param threads maximum number of concurrent downloads
+     * @param maxPerHost maximum number of concurrent downloads per host
+     */
+    public DownloadScheduler(int threads, int maxPerHost) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+
+        this.maxPerHost = Math.max(1, maxPerHost);
+        this.executor = Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+        this.completionService = new ExecutorCompletionService<Void>(executor);
+    }
+
+    /**
+     * Returns whether the scheduler was aborted, either because a task
+     * failed or because {@link #shutdown()} was called early.
+     *
+     * @return true if aborted
+     */
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Get the queue of a given host.
+     *
+     * @param host host name
+     * @return queue
+     */
+    private HostQueue getHost(String host) {
+        String key = host.toLowerCase();
+        HostQueue queue = hosts.get(key);
+        if (queue == null) {
+            queue = new HostQueue();
+            hosts.put(key, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * Queue a task to be run against the given host.
+     *
+     * @param host host name that the task connects to
+     * @param task task to run
+     */
+    public void submit(String host, final Callable<?> task) {
+        final HostQueue queue;
+        boolean start;
+
+        synchronized (this) {
+            queue = getHost(host);
+            start = queue.active < maxPerHost;
+            if (start) {
+                queue.active++;
+            } else {
+                queue.waiting.add(task);
+            }
+            pending++;
+        }
+
+        if (start) {
+            dispatch(queue, task);
+        }
+    }
+
+    /**
+     * Hand a task to the pool. Once it finishes, the next task waiting for
+     * the same host takes its place.
+     *
+     * @param queue queue of the host
+     * @param task task to run
+     */
+    private void dispatch(final HostQueue queue, final Callable<?> task) {
+        completionService.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                try {
+                    if (aborted) {
+                        throw new CancelledUpdateException();
+                    }
+
+                    task.call();
+                } catch (Exception e) {
+                    // Don't start the waiting tasks in this one's place
+                    synchronized (DownloadScheduler.this) {
+                        aborted = true;
+                    }
+                    throw e;
+                } finally {
+                    release(queue, 1);
+                }
+
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Give back connections to a host, starting waiting tasks in their
+     * place.
+     *
+     * @param queue queue of the host
+     * @param count number of connections
+     */
+    private void release(HostQueue queue, int count) {
+        for (int i = 0; i < count; i++) {
+            Callable<?> next;
+            synchronized (this) {
+                next = aborted ? null : queue.waiting.poll();
+                if (next == null) {
+                    queue.active--;
+                    continue;
+                }
+            }
+
+            try {
+                dispatch(queue, next);
+            } catch (RejectedExecutionException e) {
+                // The pool was shut down after an abort
+            }
+        }
+    }
+
+    /**
+     * Take up to the given number of extra connections to a host without
+     * waiting, for a task that wants to open more than one connection.
+     * Connections are only given if no other task is waiting for the host.
+     * They must be given back with {@link #releaseExtra(String, int)}.
+     *
+     * @param host host name
+     * @param max maximum number of connections wanted
+     * @return number of connections taken, possibly 0
+     */
+    public synchronized int acquireExtra(String host, int max) {
+        HostQueue queue = getHost(host);
+        if (!queue.waiting.isEmpty()) {
+            return 0;
+        }
+        int count = Math.max(0, Math.min(max, maxPerHost - queue.active));
+        queue.active += count;
+        return count;
+    }
+
+    /**
+     * Give back connections taken with {@link #acquireExtra(String, int)}.
+     *
+     * @param host host name
+     * @param count number of connections
+     */
+    public void releaseExtra(String host, int count) {
+        HostQueue queue;
+        synchronized (this) {
+            queue = getHost(host);
+        }
+        release(queue, count);
+    }
+
+    /**
+     * Wait for all submitted tasks to complete. If a task fails, the
+     * remaining tasks are aborted and the first error is thrown.
+     *
+     * @throws UpdateException the error of the first failed task
+     */
+    public void await() throws UpdateException {
+        while (getPending() > 0) {
+            try {
+                completionService.take().get();
+                synchronized (this) {
+                    pending--;
+                }
+            } catch (InterruptedException e) {
+                abort();
+                throw new CancelledUpdateException();
+            } catch (ExecutionException e) {
+                abort();
+                Throwable cause = e.getCause();
+                if (cause instanceof UpdateException) {
+                    throw (UpdateException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    throw new UpdateException("Download failed: " + cause.getMessage(), cause);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of tasks that have not finished.
+     *
+     * @return number of tasks
+     */
+    private synchronized int getPending() {
+        return pending;
+    }
+
+    /**
+     * Abort the remaining tasks.
+     */
+    private void abort() {
+        synchronized (this) {
+            aborted = true;
+            for (HostQueue queue : hosts.values()) {
+                queue.waiting.clear();
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Stop the worker threads. Queued tasks that have not yet started will
+     * not be run.
+     */
+    public void shutdown() {
+        if (getPending() > 0) {
+            abort();
+        } else {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Wait for the worker threads to stop after {@link #shutdown()}.
+     */
+    public void awaitTermination() {
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /**
+     * The tasks of one host.
+     */
+    private static class HostQueue {
+        private final Queue<Callable<?>> waiting = new LinkedList<Callable<?>>();
+        private int active = 0;
+    }
+
+    /**
+     * Creates named daemon threads for the pool.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final int poolId = poolCount.incrementAndGet();
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Download-" + poolId + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
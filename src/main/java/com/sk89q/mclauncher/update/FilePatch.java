@@ -0,0 +1,113 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * A {@link DeltaPatch} that turns one installed version of a file into the
+ * version in the package.
+ *
+ * <p>The digests are of the file as it is installed, so they are of the
+ * decompressed contents of a compressed file, and use the verification
+ * type of the file group, or MD5 if it has none.</p>
+ *
+ * @author sk89q
+ */
+public class FilePatch {
+
+    private final URL url;
+    private final String fromHash;
+    private final String toHash;
+    private final long size;
+
+    /**
+     * Construct the patch.
+     *
+     * @param url url to download the patch from
+     * @param fromHash digest of the installed file that the patch applies to
+     * @param toHash digest of the file after patching
+     * @param size size of the patch, or -1 if not known
+     */
+    public FilePatch(URL url, String fromHash, String toHash, long size) {
+        this.url = url;
+        this.fromHash = fromHash;
+        this.toHash = toHash;
+        this.size = size;
+    }
+
+    /**
+     * Get the URL to download the patch from.
+     *
+     * @return url
+     */
+    public URL getURL() {
+        return url;
+    }
+
+    /**
+     * Get the digest of the installed file that the patch applies to.
+     *
+     * @return digest in hex
+     */
+    public String getFromHash() {
+        return fromHash;
+    }
+
+    /**
+     * Get the digest of the file after patching.
+     *
+     * @return digest in hex
+     */
+    public String getToHash() {
+        return toHash;
+    }
+
+    /**
+     * Get the size of the patch.
+     *
+     * @return size in bytes, or -1 if not known
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Apply the filters that the extensions of the patch call for (i.e.
+     * decompression) to a stream of its downloaded contents.
+     *
+     * @param in stream of the downloaded patch
+     * @return filtered stream
+     * @throws IOException on I/O error
+     */
+    public InputStream filter(InputStream in) throws IOException {
+        String[] parts = url.getPath().split("\\.");
+        for (int i = parts.length - 1; i > 0; i--) {
+            StreamFilter filter = FileStreamFilters.get(parts[i]);
+            if (filter == null) {
+                break;
+            }
+            in = filter.filter(in);
+        }
+        return in;
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of failures per host so that a host that appears to be down
+ * is not tried again and again. After a number of failures in a row, the
+ * host's breaker opens and requests to it are refused. Once the cool down
+ * has passed, one request is let through; if it succeeds, the breaker
+ * closes again, otherwise it stays open for another cool down.
+ *
+ * @author sk89q
+ */
+public class HostCircuitBreaker {
+
+    private final int threshold;
+    private final long coolDown;
+    private final Map<String, HostState> hosts = new HashMap<String, HostState>();
+
+    /**
+     * Construct the breaker.
+     *
+     * @param threshold number of failures in a row that open the breaker
+     * @param coolDown time that the breaker stays open, in milliseconds
+     */
+    public HostCircuitBreaker(int threshold, long coolDown) {
+        this.threshold = Math.max(1, threshold);
+        this.coolDown = coolDown;
+    }
+
+    /**
+     * Returns whether a request to the given host may be made. If the
+     * breaker is open but has cooled down, this lets one request through
+     * and refuses the rest until that request is recorded.
+     *
+     * @param host host name
+     * @return true if allowed
+     */
+    public synchronized boolean allowRequest(String host) {
+        HostState state = hosts.get(host.toLowerCase());
+        if (state == null || state.openedAt == 0) {
+            return true;
+        }
+
+        if (!state.probing && System.currentTimeMillis() - state.openedAt >= coolDown) {
+            state.probing = true;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns whether the breaker of the given host is open.
+     *
+     * @param host host name
+     * @return true if open
+     */
+    public synchronized boolean isOpen(String host) {
+        HostState state = hosts.get(host.toLowerCase());
+        return state != null && state.openedAt != 0;
+    }
+
+    /**
+     * Get how long it is until the breaker of the given host lets a test
+     * request through.
+     *
+     * @param host host name
+     * @return time in milliseconds, or 0 if the breaker has cooled down
+     */
+    public synchronized long getRemainingCoolDown(String host) {
+        HostState state = hosts.get(host.toLowerCase());
+        if (state == null || state.openedAt == 0) {
+            return 0;
+        }
+
+        return Math.max(0, coolDown - (System.currentTimeMillis() - state.openedAt));
+    }
+
+    /**
+     * Record a successful request, which closes the breaker.
+     *
+     * @param host host name
+     */
+    public synchronized void recordSuccess(String host) {
+        hosts.remove(host.toLowerCase());
+    }
+
+    /**
+     * Give up a request that was let through by {@link #allowRequest(String)}
+     * without recording how it went, such as one that was cancelled. If it
+     * was the one test request of an open breaker, another one is let
+     * through instead.
+     *
+     * @param host host name
+     */
+    public synchronized void release(String host) {
+        HostState state = hosts.get(host.toLowerCase());
+        if (state != null) {
+            state.probing = false;
+        }
+    }
+
+    /**
+     * Record a failed request.
+     *
+     * @param host host name
+     */
+    public synchronized void recordFailure(String host) {
+        String key = host.toLowerCase();
+        HostState state = hosts.get(key);
+        if (state == null) {
+            state = new HostState();
+            hosts.put(key, state);
+        }
+
+        state.failures++;
+
+        if (state.probing || state.failures >= threshold) {
+            state.openedAt = System.currentTimeMillis();
+            state.probing = false;
+        }
+    }
+
+    private static class HostState {
+        private int failures = 0;
+        private long openedAt = 0;
+        private boolean probing = false;
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Ranks the mirrors of a package by how quickly they answer, and spreads
+ * files across the mirrors that are about as fast as the best one.
+ *
+ * <p>Each mirror is probed with a HEAD request for one of its files, and
+ * the time until the response head arrives is used as its latency.
+ * Mirrors that fail the probe are put last, but are still tried if every
+ * other mirror fails.</p>
+ *
+ * @author sk89q
+ */
+public class MirrorSelector {
+
+    private static final Logger logger = Logger.getLogger(MirrorSelector.class.getCanonicalName());
+    private static final long FAILED = Long.MAX_VALUE;
+    private static final long UNKNOWN = Long.MAX_VALUE - 1;
+    private static final int MAX_PROBE_THREADS = 8;
+    private static final long SPREAD_SLACK = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private final Map<String, Long> latencies = new ConcurrentHashMap<String, Long>();
+    private final AtomicInteger counter = new AtomicInteger();
+    private int timeout = 5000;
+
+    /**
+     * Get the key that identifies the mirror of a URL.
+     *
+     * @param url url
+     * @return key
+     */
+    private static String getKey(URL url) {
+        return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" +
+                (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+    }
+
+    /**
+     * Get the probe timeout.
+     *
+     * @return timeout in milliseconds
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Set the probe timeout.
+     *
+     * @param timeout timeout in milliseconds
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Probe the mirrors of the given URLs at the same time and wait for
+     * the results. Only the first URL seen of each mirror is requested.
+     *
+     * @param urls urls of files on the mirrors
+     * @throws InterruptedException thrown if interrupted while waiting
+     */
+    public void probe(List<URL> urls) throws InterruptedException {
+        Map<String, URL> targets = new LinkedHashMap<String, URL>();
+        for (URL url : urls) {
+            String key = getKey(url);
+            if (!targets.containsKey(key)) {
+                targets.put(key, url);
+            }
+        }
+
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(MAX_PROBE_THREADS, targets.size()));
+        try {
+            for (final Map.Entry<String, URL> entry : targets.entrySet()) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        long latency = measure(entry.getValue());
+                        latencies.put(entry.getKey(), latency);
+                        logger.info("Mirror " + entry.getKey() + ": " + (latency == FAILED ?
+                                "unavailable" : TimeUnit.NANOSECONDS.toMillis(latency) + " ms"));
+                    }
+                });
+            }
+
+            executor.shutdown();
+            executor.awaitTermination(timeout * 2L, TimeUnit.MILLISECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Request the head of a file and time the response.
+     *
+     * @param url url
+     * @return latency in nanoseconds, or {@link #FAILED}
+     */
+    private long measure(URL url) {
+        URLConnection conn = null;
+        try {
+            long start = System.nanoTime();
+            conn = url.openConnection();
+            conn.setConnectTimeout(timeout);
+            conn.setReadTimeout(timeout);
+            conn.setUseCaches(false);
+
+            if (conn instanceof HttpURLConnection) {
+                HttpURLConnection httpConn = (HttpURLConnection) conn;
+                httpConn.setRequestMethod("HEAD");
+
+                // A server that doesn't do HEAD still answered in time
+                int code = httpConn.getResponseCode();
+                if (code >= 400 && code != 405 && code != 501) {
+                    return FAILED;
+                }
+            } else {
+                conn.connect();
+            }
+
+            return System.nanoTime() - start;
+        } catch (IOException e) {
+            return FAILED;
+        } finally {
+            if (conn instanceof HttpURLConnection) {
+                ((HttpURLConnection) conn).disconnect();
+            }
+        }
+    }
+
+    /**
+     * Get the measured latency of the mirror of a URL.
+     *
+     * @param url url
+     * @return latency in nanoseconds
+     */
+    private long getLatency(URL url) {
+        Long latency = latencies.get(getKey(url));
+        return latency != null ? latency : UNKNOWN;
+    }
+
+    /**
+     * Order the sources of a file, fastest mirror first. Successive calls
+     * rotate through the mirrors that are about as fast as the best one so
+     * that the files are spread across them.
+     *
+     * @param sources sources of the same file
+     * @return new list in the order to try them in
+     */
+    public List<URL> order(List<URL> sources) {
+        List<URL> ordered = new ArrayList<URL>(sources);
+        if (ordered.size() < 2) {
+            return ordered;
+        }
+
+        Collections.sort(ordered, new Comparator<URL>() {
+            public int compare(URL a, URL b) {
+                long la = getLatency(a);
+                long lb = getLatency(b);
+                return la < lb ? -1 : (la > lb ? 1 : 0);
+            }
+        });
+
+        long best = getLatency(ordered.get(0));
+        if (best >= UNKNOWN) {
+            return ordered;
+        }
+
+        // Mirrors within twice the best time, plus some slack for jitter,
+        // are considered equally good
+        int good = 1;
+        while (good < ordered.size()) {
+            long latency = getLatency(ordered.get(good));
+            if (latency >= UNKNOWN || latency > best * 2 + SPREAD_SLACK) {
+                break;
+            }
+            good++;
+        }
+
+        if (good > 1) {
+            Collections.rotate(ordered.subList(0, good), -((counter.getAndIncrement() & Integer.MAX_VALUE) % good));
+        }
+
+        return ordered;
+    }
+
+}
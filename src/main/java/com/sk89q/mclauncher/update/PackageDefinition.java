@@ -86,12 +86,21 @@ public class PackageDefinition {
             // Read all the <filegroup> elements
             for (Node node : getNodes(doc, xpath.compile("/package/filegroup"))) {
                 URL baseURL = new URL(getAttr(node, "source"));
+                
+                // Read the <mirror> elements, which hold other base URLs
+                List<URL> mirrorURLs = new ArrayList<URL>();
+                for (Node mirrorNode : getNodes(node, xpath.compile("mirror"))) {
+                    mirrorURLs.add(new URL(getValue(mirrorNode).trim()));
+                }
                 File dest = new File(rootDir, getAttr(node, "dest"));
                 MessageDigestAlgorithm hashType = uppercaseValueOf(MessageDigestAlgorithm.class, getAttrOrNull(node, "verify"));
     
                 // Read all the <file> sub-elements
                 for (Node fileNode : getNodes(node, xpath.compile("*"))) {
                     String nodeName = fileNode.getNodeName().toLowerCase();
+                    if (nodeName.equals("mirror")) {
+                        continue;
+                    }
     
                     // Check platform and skip files for other platforms
                     Platform platform = uppercaseValueOf(
@@ -101,7 +110,7 @@ public class PackageDefinition {
                     }
     
                     // Parse path
-                    String urlName = getValue(fileNode);
+                    String urlName = getValue(fileNode).trim();
                     String filename = defaultValue(getAttrOrNull(fileNode, "filename"), urlName);
                     long size = Long.parseLong(defaultValue(getAttrOrNull(fileNode, "size"), "1000"));
     
@@ -125,6 +134,22 @@ public class PackageDefinition {
                     }
                     
                     packageFile.setVerifyType(hashType);
+                    for (URL mirrorURL : mirrorURLs) {
+                        packageFile.addAlternateURL(new URL(mirrorURL.toString() + filename));
+                    }
+                    
+                    // Read the <patch> sub-elements, which hold patches from
+                    // older versions of the file
+                    for (Node patchNode : getNodes(fileNode, xpath.compile("patch"))) {
+                        String from = getAttrOrNull(patchNode, "from");
+                        String to = getAttrOrNull(patchNode, "to");
+                        if (from == null || to == null) {
+                            throw new IOException("A <patch> for " + filename + " needs both 'from' and 'to' digests");
+                        }
+                        long patchSize = Long.parseLong(defaultValue(getAttrOrNull(patchNode, "size"), "-1"));
+                        URL patchURL = new URL(baseURL.toString() + getValue(patchNode).trim());
+                        packageFile.addPatch(new FilePatch(patchURL, from, to, patchSize));
+                    }
                     
                     files.add(packageFile);
                     
@@ -19,14 +19,19 @@
 package com.sk89q.mclauncher.update;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.sk89q.mclauncher.util.Util;
+
 /**
  * Represents a file in a package.
  * 
@@ -36,12 +41,16 @@ public abstract class PackageFile {
     private String originalName;
     private String[] filterExts;
     private URL url;
+    private List<URL> alternateURLs = new ArrayList<URL>();
+    private List<FilePatch> patches = new ArrayList<FilePatch>();
     private File tempFile;
     private long totalEstimatedSize;
     private File file;
     private MessageDigestAlgorithm verifyType;
     private boolean ignored = false;
     private boolean verifySignature = true;
+    private boolean decompressed = false;
+    private boolean signatureVerified = false;
     
     /**
      * Construct the package file base.
@@ -89,6 +98,44 @@ public abstract class PackageFile {
         return url;
     }
     
+    /**
+     * Get the URLs of the same file on mirrors. The updater ranks these
+     * together with the main URL and fails over between them.
+     * 
+     * @return list of urls
+     */
+    public List<URL> getAlternateURLs() {
+        return alternateURLs;
+    }
+    
+    /**
+     * Add the URL of the same file on a mirror.
+     * 
+     * @param url url
+     */
+    public void addAlternateURL(URL url) {
+        alternateURLs.add(url);
+    }
+    
+    /**
+     * Get the patches that can bring an installed older version of this
+     * file up to date instead of downloading it in full.
+     * 
+     * @return list of patches
+     */
+    public List<FilePatch> getPatches() {
+        return patches;
+    }
+    
+    /**
+     * Add a patch from an older version of this file.
+     * 
+     * @param patch patch
+     */
+    public void addPatch(FilePatch patch) {
+        patches.add(patch);
+    }
+    
     /**
      * Get the temporary file.
      * 
@@ -199,6 +246,59 @@ public abstract class PackageFile {
         this.verifySignature = verifySignature;
     }
 
+    /**
+     * Returns whether the temporary file already holds the decompressed
+     * contents, because the file was decompressed while it was downloaded.
+     * 
+     * @return true if decompressed
+     */
+    public boolean isDecompressed() {
+        return decompressed;
+    }
+
+    /**
+     * Set whether the temporary file holds the decompressed contents.
+     * 
+     * @param decompressed true if decompressed
+     */
+    public void setDecompressed(boolean decompressed) {
+        this.decompressed = decompressed;
+    }
+
+    /**
+     * Returns whether the signatures have already been verified, while the
+     * file was downloaded.
+     * 
+     * @return true if verified
+     */
+    public boolean isSignatureVerified() {
+        return signatureVerified;
+    }
+
+    /**
+     * Set whether the signatures have already been verified.
+     * 
+     * @param signatureVerified true if verified
+     */
+    public void setSignatureVerified(boolean signatureVerified) {
+        this.signatureVerified = signatureVerified;
+    }
+
+    /**
+     * Apply the filters of this file (i.e. decompression) to a stream of
+     * its downloaded contents.
+     * 
+     * @param in stream of the downloaded contents
+     * @return filtered stream
+     * @throws IOException on I/O error
+     */
+    public InputStream filter(InputStream in) throws IOException {
+        for (String filterExt : filterExts) {
+            in = FileStreamFilters.get(filterExt).filter(in);
+        }
+        return in;
+    }
+
     /**
      * Get an input stream to read the file.
      * 
@@ -207,10 +307,67 @@ public abstract class PackageFile {
      */
     public InputStream getInputStream() throws IOException {
         InputStream in = new BufferedInputStream(new FileInputStream(getTempFile()));
-        for (String filterExt : filterExts) {
-            in = FileStreamFilters.get(filterExt).filter(in);
+        if (decompressed) {
+            return in;
         }
-        return in;
+        return filter(in);
+    }
+    
+    /**
+     * Decompress the temporary file in place, unless it is not filtered or
+     * was already decompressed while it was downloaded.
+     * 
+     * @throws IOException on I/O error
+     */
+    public void decompress() throws IOException {
+        if (!isFiltered() || decompressed) {
+            return;
+        }
+        
+        File decompressedFile = new File(getTempFile().getPath() + ".dec");
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = getInputStream();
+            out = new BufferedOutputStream(new FileOutputStream(decompressedFile));
+            
+            byte[] buffer = new byte[16384];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+            
+            out.close();
+        } finally {
+            Util.close(in);
+            Util.close(out);
+        }
+        
+        getTempFile().delete();
+        if (!decompressedFile.renameTo(getTempFile())) {
+            decompressedFile.delete();
+            throw new IOException("Could not move " + decompressedFile + " to " + getTempFile());
+        }
+        
+        decompressed = true;
+    }
+    
+    /**
+     * Prepare the file for deployment without touching the installation,
+     * so that {@link #deploy(UninstallLog)} has as little left to do as
+     * possible. The file has already been decompressed and verified.
+     * 
+     * @throws IOException on I/O error
+     */
+    public void stage() throws IOException {
+    }
+    
+    /**
+     * Delete the temporary file and anything else left over from
+     * downloading or staging the file.
+     */
+    public void deleteTempFiles() {
+        getTempFile().delete();
     }
     
     /**
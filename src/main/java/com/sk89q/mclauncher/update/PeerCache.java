@@ -0,0 +1,477 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sk89q.mclauncher.update.PackageFile.MessageDigestAlgorithm;
+import com.sk89q.mclauncher.util.Util;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Shares downloaded package files between launchers on the same network,
+ * so that a room full of launchers doesn't download the same update from
+ * the internet over and over.
+ *
+ * <p>Files are served over HTTP at
+ * <code>/files/&lt;algorithm&gt;/&lt;digest&gt;</code>, where the algorithm
+ * is the verify type of the file and the digest is the one kept in the {@link UpdateCache} of an
+ * installation that has been shared. A file is only served if it still has
+ * that digest, and the launcher fetching it checks the digest again against
+ * the one the package server gives, so a peer can't hand out anything that
+ * the package server didn't. Jar signatures are checked as for any other
+ * download.</p>
+ *
+ * <p>Peers find each other by announcing themselves on a multicast group,
+ * and peers can also be listed by hand for networks that drop multicast.
+ * Only files that are installed exactly as they were downloaded can be
+ * shared, which leaves out compressed files and archives.</p>
+ *
+ * @author sk89q
+ */
+public class PeerCache {
+
+    /**
+     * Port that peers serve files on by default.
+     */
+    public static final int DEFAULT_PORT = 48127;
+
+    private static final Logger logger = Logger.getLogger(PeerCache.class.getCanonicalName());
+    private static final String GROUP = "239.255.41.27";
+    private static final int GROUP_PORT = 48128;
+    private static final String ANNOUNCEMENT = "mclauncher-peer";
+    private static final long ANNOUNCE_INTERVAL = 5000;
+    private static final long PEER_EXPIRY = ANNOUNCE_INTERVAL * 4;
+    private static final int SERVER_THREADS = 4;
+
+    private final int port;
+    private final String id = Long.toHexString(new Random().nextLong());
+    private final List<Installation> installations = new ArrayList<Installation>();
+    private final List<InetSocketAddress> configuredPeers = new ArrayList<InetSocketAddress>();
+    private final Map<InetSocketAddress, Long> discoveredPeers =
+            new ConcurrentHashMap<InetSocketAddress, Long>();
+    private final Map<File, String> verified = new ConcurrentHashMap<File, String>();
+    private HttpServer server;
+    private ExecutorService executor;
+    private MulticastSocket socket;
+    private Thread discoveryThread;
+    private volatile boolean running = false;
+
+    /**
+     * Construct the cache.
+     *
+     * @param port port to serve files on
+     */
+    public PeerCache(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Add peers to fetch from that are not found through multicast. Peers
+     * that were already added are skipped.
+     *
+     * @param peers comma-separated list of host:port, where the port may be
+     *            left out
+     */
+    public synchronized void addPeers(String peers) {
+        for (String peer : peers.split("[,\\s]+")) {
+            peer = peer.trim();
+            if (peer.length() == 0) {
+                continue;
+            }
+
+            int colon = peer.lastIndexOf(':');
+            try {
+                InetSocketAddress address;
+                if (colon == -1) {
+                    address = new InetSocketAddress(peer, DEFAULT_PORT);
+                } else {
+                    address = new InetSocketAddress(peer.substring(0, colon),
+                            Integer.parseInt(peer.substring(colon + 1)));
+                }
+                if (!configuredPeers.contains(address)) {
+                    configuredPeers.add(address);
+                }
+            } catch (IllegalArgumentException e) {
+                logger.warning("Ignoring bad peer address '" + peer + "'");
+            }
+        }
+    }
+
+    /**
+     * Share the downloaded files of an installation with peers.
+     *
+     * @param rootDir folder of the installation
+     * @param cache its update cache
+     */
+    public synchronized void share(File rootDir, UpdateCache cache) {
+        for (Installation installation : installations) {
+            if (installation.rootDir.equals(rootDir)) {
+                installation.cache = cache;
+                return;
+            }
+        }
+        installations.add(new Installation(rootDir, cache));
+    }
+
+    /**
+     * Start serving files and looking for peers.
+     *
+     * @throws IOException thrown if the server can't be started
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+
+        executor = Executors.newFixedThreadPool(SERVER_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Peer server");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+        server.createContext("/files/", new FileHandler());
+
+        // The dispatcher thread of the server takes after the thread that
+        // starts it, and it must not keep the launcher open once the game
+        // has been launched
+        Thread starter = new Thread(new Runnable() {
+            public void run() {
+                server.start();
+            }
+        });
+        starter.setDaemon(true);
+        starter.start();
+        try {
+            starter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        running = true;
+        logger.info("Sharing update files with peers on port " + port);
+
+        try {
+            socket = new MulticastSocket(GROUP_PORT);
+            socket.joinGroup(InetAddress.getByName(GROUP));
+            socket.setSoTimeout((int) ANNOUNCE_INTERVAL);
+            discoveryThread = new Thread(new Runnable() {
+                public void run() {
+                    discover();
+                }
+            }, "Peer discovery");
+            discoveryThread.setDaemon(true);
+            discoveryThread.start();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not join the peer multicast group; " +
+                    "only listed peers will be used", e);
+            if (socket != null) {
+                socket.close();
+                socket = null;
+            }
+        }
+    }
+
+    /**
+     * Stop serving files and looking for peers.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+        server.stop(0);
+        executor.shutdownNow();
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    /**
+     * Announce this launcher and listen for the announcements of others
+     * until stopped.
+     */
+    private void discover() {
+        byte[] announcement;
+        try {
+            announcement = (ANNOUNCEMENT + " " + id + " " + port).getBytes("US-ASCII");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        byte[] buffer = new byte[256];
+        long lastAnnounced = 0;
+
+        while (running) {
+            try {
+                long now = System.currentTimeMillis();
+                if (now - lastAnnounced >= ANNOUNCE_INTERVAL) {
+                    socket.send(new DatagramPacket(announcement, announcement.length,
+                            InetAddress.getByName(GROUP), GROUP_PORT));
+                    lastAnnounced = now;
+                }
+
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+
+                String[] parts = new String(packet.getData(), 0, packet.getLength(),
+                        "US-ASCII").split(" ");
+                if (parts.length == 3 && parts[0].equals(ANNOUNCEMENT) && !parts[1].equals(id)) {
+                    InetSocketAddress peer = new InetSocketAddress(
+                            packet.getAddress(), Integer.parseInt(parts[2]));
+                    if (discoveredPeers.put(peer, System.currentTimeMillis()) == null) {
+                        logger.info("Found update peer " + peer);
+                    }
+                }
+            } catch (NumberFormatException e) {
+            } catch (IOException e) {
+                if (running) {
+                    logger.log(Level.FINE, "Peer discovery failed", e);
+                    Util.sleep(ANNOUNCE_INTERVAL);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether there are any peers to fetch from.
+     *
+     * @return true if there are peers
+     */
+    public boolean hasPeers() {
+        return !getPeers().isEmpty();
+    }
+
+    /**
+     * Get the peers to fetch from, with the listed peers first and the
+     * found peers after them in random order, so that the load is spread.
+     *
+     * @return list of peers
+     */
+    private synchronized List<InetSocketAddress> getPeers() {
+        List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>(configuredPeers);
+        List<InetSocketAddress> found = new ArrayList<InetSocketAddress>();
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<InetSocketAddress, Long> entry : discoveredPeers.entrySet()) {
+            if (now - entry.getValue() > PEER_EXPIRY) {
+                discoveredPeers.remove(entry.getKey());
+            } else if (!peers.contains(entry.getKey())) {
+                found.add(entry.getKey());
+            }
+        }
+
+        Collections.shuffle(found);
+        peers.addAll(found);
+        return peers;
+    }
+
+    /**
+     * Get the URLs that a file with the given digest can be fetched from.
+     *
+     * @param algorithm algorithm of the digest
+     * @param hash digest in hex
+     * @return list of urls
+     */
+    public List<URL> getURLs(MessageDigestAlgorithm algorithm, String hash) {
+        List<URL> urls = new ArrayList<URL>();
+        for (InetSocketAddress peer : getPeers()) {
+            // Use the address so that no reverse lookup is made
+            String host = peer.isUnresolved() ? peer.getHostName() : peer.getAddress().getHostAddress();
+            try {
+                urls.add(new URL("http", host, peer.getPort(), "/files/" +
+                        algorithm.name().toLowerCase() + "/" + hash.toLowerCase()));
+            } catch (IOException e) {
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Find a shared file with the given digest.
+     *
+     * @param algorithm algorithm of the digest
+     * @param hash digest in hex
+     * @return file, or null if there is none
+     */
+    private File find(MessageDigestAlgorithm algorithm, String hash) {
+        List<File> candidates = new ArrayList<File>();
+        synchronized (this) {
+            for (Installation installation : installations) {
+                for (String path : installation.cache.getPathsWithHash(hash)) {
+                    candidates.add(new File(installation.rootDir, path));
+                }
+            }
+        }
+
+        for (File file : candidates) {
+            if (file.isFile() && FileStreamFilters.get(Util.getExtension(file.getName())) == null
+                    && hasDigest(file, algorithm, hash)) {
+                return file;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Check that a file still has the given digest. The result is kept
+     * until the file is changed.
+     *
+     * @param file the file
+     * @param algorithm algorithm of the digest
+     * @param hash digest in hex
+     * @return true if the digest matches
+     */
+    private boolean hasDigest(File file, MessageDigestAlgorithm algorithm, String hash) {
+        String stamp = file.length() + ":" + file.lastModified() + ":" + algorithm + ":" + hash;
+        if (stamp.equals(verified.get(file))) {
+            return true;
+        }
+
+        InputStream in = null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance(algorithm.getJavaDigestName());
+            in = new BufferedInputStream(new FileInputStream(file));
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+            }
+
+            String actual = new BigInteger(1, digest.digest()).toString(16);
+            if (actual.equalsIgnoreCase(hash.replaceAll("^0+", ""))) {
+                verified.put(file, stamp);
+                return true;
+            }
+        } catch (NoSuchAlgorithmException e) {
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to read " + file, e);
+        } finally {
+            Util.close(in);
+        }
+
+        return false;
+    }
+
+    /**
+     * Serves shared files by digest.
+     */
+    private class FileHandler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+            InputStream in = null;
+
+            try {
+                String method = exchange.getRequestMethod();
+                boolean head = method.equalsIgnoreCase("HEAD");
+                if (!head && !method.equalsIgnoreCase("GET")) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+
+                // The path is /files/<algorithm>/<digest>
+                String[] parts = exchange.getRequestURI().getPath().substring("/files/".length()).split("/");
+                MessageDigestAlgorithm algorithm = null;
+                if (parts.length == 2) {
+                    try {
+                        algorithm = MessageDigestAlgorithm.valueOf(parts[0].toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                    }
+                }
+                String hash = parts[parts.length - 1];
+                File file = algorithm != null && hash.matches("[0-9a-fA-F]{1,128}") ?
+                        find(algorithm, hash) : null;
+                if (file == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                exchange.getResponseHeaders().set("ETag", "\"" + hash.toLowerCase() + "\"");
+                if (head) {
+                    exchange.getResponseHeaders().set("Content-Length", String.valueOf(file.length()));
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+
+                exchange.sendResponseHeaders(200, file.length());
+                in = new FileInputStream(file);
+                OutputStream out = exchange.getResponseBody();
+                byte[] buffer = new byte[16384];
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, len);
+                }
+            } finally {
+                Util.close(in);
+                exchange.close();
+            }
+        }
+
+    }
+
+    /**
+     * An installation whose files are shared.
+     */
+    private static class Installation {
+        private final File rootDir;
+        private UpdateCache cache;
+
+        private Installation(File rootDir, UpdateCache cache) {
+            this.rootDir = rootDir;
+            this.cache = cache;
+        }
+    }
+
+}
@@ -0,0 +1,553 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.sk89q.mclauncher.util.BandwidthLimiter;
+import com.sk89q.mclauncher.util.HttpValidators;
+import com.sk89q.mclauncher.util.Util;
+
+/**
+ * Reads single entries of a .zip or .jar on a web server with range
+ * requests, without downloading the whole archive.
+ *
+ * <p>The central directory at the end of the archive is fetched first to
+ * find out where each entry is. Every later request is made with an
+ * If-Range header, so that the archive changing on the server in the
+ * meantime fails the read instead of mixing two versions. ZIP64 and
+ * encrypted archives are not supported.</p>
+ *
+ * @author sk89q
+ */
+public class RemoteArchive {
+
+    private static final int END_HEADER_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final long END_SIGNATURE = 0x06054b50L;
+    private static final long CENTRAL_SIGNATURE = 0x02014b50L;
+    private static final long LOCAL_SIGNATURE = 0x04034b50L;
+
+    private final URL url;
+    private int timeout = 30000;
+    private BandwidthLimiter bandwidthLimiter;
+    private HttpValidators conditional;
+    private String etagCheck;
+    private HttpValidators validators;
+    private String ifRange;
+    private long length = -1;
+    private List<Entry> entries;
+    private long transferredBytes = 0;
+
+    /**
+     * Construct the archive.
+     *
+     * @param url url of the archive
+     */
+    public RemoteArchive(URL url) {
+        this.url = url;
+    }
+
+    /**
+     * Set the bandwidth limiter to draw from.
+     *
+     * @param bandwidthLimiter limiter, or null
+     */
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    /**
+     * Make the first request conditional, so that an archive that hasn't
+     * changed since the last download isn't read at all.
+     *
+     * @param validators validators of the last download, or null
+     * @param etagCheck etag without quotes, or null
+     */
+    public void setConditional(HttpValidators validators, String etagCheck) {
+        this.conditional = validators;
+        this.etagCheck = etagCheck;
+    }
+
+    /**
+     * Get the validators of the archive on the server.
+     *
+     * @return validators, or null if the directory hasn't been read
+     */
+    public HttpValidators getValidators() {
+        return validators;
+    }
+
+    /**
+     * Get the length of the archive on the server.
+     *
+     * @return length in bytes, or -1 if the directory hasn't been read
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Get the entries of the archive.
+     *
+     * @return list of entries, or null if the directory hasn't been read
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Get the number of bytes received so far.
+     *
+     * @return number of bytes
+     */
+    public long getTransferredBytes() {
+        return transferredBytes;
+    }
+
+    /**
+     * Read the central directory of the archive.
+     *
+     * @return false if the archive has not changed since the last download
+     * @throws IOException on I/O error, or if the server can't send ranges
+     */
+    public boolean readDirectory() throws IOException {
+        int tailSize = END_HEADER_SIZE + MAX_COMMENT_SIZE;
+        HttpURLConnection conn = open("bytes=-" + tailSize, true);
+        byte[] tail;
+        long tailStart;
+
+        try {
+            int code = conn.getResponseCode();
+            if (code == 304 && (conditional != null || etagCheck != null)) {
+                return false;
+            } else if (code != 206) {
+                throw new IOException("Server did not send a range of " + url +
+                        " (got " + code + ")");
+            }
+
+            // Content-Range: bytes <start>-<end>/<length>
+            String range = conn.getHeaderField("Content-Range");
+            if (range == null || range.indexOf('/') == -1 || range.endsWith("*")) {
+                throw new IOException("Server sent a bad Content-Range for " + url);
+            }
+            try {
+                length = Long.parseLong(range.substring(range.indexOf('/') + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Server sent a bad Content-Range for " + url);
+            }
+
+            String etag = conn.getHeaderField("ETag");
+            String lastModified = conn.getHeaderField("Last-Modified");
+            validators = new HttpValidators(etag, lastModified, length);
+            if (etag != null && !etag.startsWith("W/")) {
+                ifRange = etag;
+            } else if (lastModified != null) {
+                ifRange = lastModified;
+            } else {
+                throw new IOException("Server gave no way to tell versions of " + url + " apart");
+            }
+
+            tail = read(conn, (int) Math.min(tailSize, length));
+            tailStart = length - tail.length;
+        } finally {
+            conn.disconnect();
+        }
+
+        // Find the end of central directory record from the back, since
+        // it may be followed by a comment
+        int end = -1;
+        for (int i = tail.length - END_HEADER_SIZE; i >= 0; i--) {
+            if (readUInt(tail, i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            throw new IOException(url + " is not a .zip file");
+        }
+
+        long directorySize = readUInt(tail, end + 12);
+        long directoryOffset = readUInt(tail, end + 16);
+        if (directoryOffset == 0xffffffffL || directorySize == 0xffffffffL) {
+            throw new IOException(url + " is a ZIP64 file");
+        }
+        if (directoryOffset + directorySize > tailStart + end) {
+            throw new IOException("Central directory of " + url + " is corrupt");
+        }
+
+        byte[] directory;
+        if (directoryOffset >= tailStart) {
+            directory = new byte[(int) directorySize];
+            System.arraycopy(tail, (int) (directoryOffset - tailStart), directory, 0, directory.length);
+        } else {
+            conn = open("bytes=" + directoryOffset + "-" + (directoryOffset + directorySize - 1), false);
+            try {
+                checkPartial(conn);
+                directory = read(conn, (int) directorySize);
+            } finally {
+                conn.disconnect();
+            }
+        }
+
+        entries = parseDirectory(directory, directoryOffset);
+        return true;
+    }
+
+    /**
+     * Parse the entries of a central directory.
+     *
+     * @param directory the directory
+     * @param directoryOffset where the directory starts in the archive
+     * @return list of entries
+     * @throws IOException on a corrupt directory
+     */
+    private List<Entry> parseDirectory(byte[] directory, long directoryOffset) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        int pos = 0;
+
+        while (pos + CENTRAL_HEADER_SIZE <= directory.length) {
+            if (readUInt(directory, pos) != CENTRAL_SIGNATURE) {
+                throw new IOException("Central directory of " + url + " is corrupt");
+            }
+
+            int flags = readUShort(directory, pos + 8);
+            int nameLength = readUShort(directory, pos + 28);
+            int extraLength = readUShort(directory, pos + 30);
+            int commentLength = readUShort(directory, pos + 32);
+            if (pos + CENTRAL_HEADER_SIZE + nameLength > directory.length) {
+                throw new IOException("Central directory of " + url + " is corrupt");
+            }
+            if ((flags & 1) != 0) {
+                throw new IOException(url + " is encrypted");
+            }
+
+            Entry entry = new Entry();
+            entry.method = readUShort(directory, pos + 10);
+            entry.crc = readUInt(directory, pos + 16);
+            entry.compressedSize = readUInt(directory, pos + 20);
+            entry.size = readUInt(directory, pos + 24);
+            entry.offset = readUInt(directory, pos + 42);
+            entry.name = new String(directory, pos + CENTRAL_HEADER_SIZE, nameLength, "UTF-8");
+            if (entry.offset >= directoryOffset) {
+                throw new IOException("Central directory of " + url + " is corrupt");
+            }
+            entries.add(entry);
+
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        // Each entry ends where the next one starts
+        List<Entry> sorted = new ArrayList<Entry>(entries);
+        Collections.sort(sorted, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.offset < b.offset ? -1 : (a.offset > b.offset ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < sorted.size(); i++) {
+            sorted.get(i).end = i + 1 < sorted.size() ? sorted.get(i + 1).offset : directoryOffset;
+        }
+
+        return entries;
+    }
+
+    /**
+     * Fetch an entry and write its contents to a file.
+     *
+     * @param entry the entry
+     * @param target file to write to
+     * @throws IOException on I/O error, or if the entry is corrupt
+     */
+    public void extract(Entry entry, File target) throws IOException {
+        if (entry.method != 0 && entry.method != 8) {
+            throw new IOException("Unsupported compression method " + entry.method +
+                    " for " + entry.name);
+        }
+
+        // One byte past the entry is asked for, since the inflater may
+        // want to read ahead
+        HttpURLConnection conn = open("bytes=" + entry.offset + "-" +
+                Math.min(entry.end, length - 1), false);
+        InputStream in = null;
+        OutputStream out = null;
+
+        try {
+            checkPartial(conn);
+            DataInputStream data = new DataInputStream(new BufferedInputStream(
+                    new MeteredInputStream(conn.getInputStream())));
+
+            byte[] header = new byte[LOCAL_HEADER_SIZE];
+            data.readFully(header);
+            if (readUInt(header, 0) != LOCAL_SIGNATURE) {
+                throw new IOException("Local header of " + entry.name + " is corrupt");
+            }
+            int skip = readUShort(header, 26) + readUShort(header, 28);
+            while (skip > 0) {
+                int skipped = data.skipBytes(skip);
+                if (skipped <= 0) {
+                    throw new IOException("Local header of " + entry.name + " is cut short");
+                }
+                skip -= skipped;
+            }
+
+            if (entry.method == 8) {
+                in = new InflaterInputStream(data, new Inflater(true));
+            } else {
+                in = data;
+            }
+
+            CRC32 crc = new CRC32();
+            out = new BufferedOutputStream(new FileOutputStream(target));
+            byte[] buffer = new byte[8192];
+            long left = entry.size;
+            while (left > 0) {
+                int len = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                if (len == -1) {
+                    throw new IOException(entry.name + " is cut short");
+                }
+                crc.update(buffer, 0, len);
+                out.write(buffer, 0, len);
+                left -= len;
+            }
+            out.close();
+
+            if (crc.getValue() != entry.crc) {
+                throw new IOException("CRC of " + entry.name + " did not match");
+            }
+        } finally {
+            Util.close(in);
+            Util.close(out);
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Open a range request.
+     *
+     * @param range value of the Range header
+     * @param first true if this is the first request
+     * @return connection
+     * @throws IOException on I/O error
+     */
+    private HttpURLConnection open(String range, boolean first) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setUseCaches(false);
+        conn.setConnectTimeout(timeout);
+        conn.setReadTimeout(timeout);
+        conn.setRequestProperty("Accept-Encoding", "identity");
+        conn.setRequestProperty("Range", range);
+
+        if (first) {
+            String ifNoneMatch = HttpValidators.toIfNoneMatch(conditional, etagCheck);
+            if (ifNoneMatch != null) {
+                conn.setRequestProperty("If-None-Match", ifNoneMatch);
+            }
+            if (conditional != null && conditional.getLastModified() != null) {
+                conn.setRequestProperty("If-Modified-Since", conditional.getLastModified());
+            }
+        } else {
+            conn.setRequestProperty("If-Range", ifRange);
+        }
+
+        return conn;
+    }
+
+    /**
+     * Make sure that the server sent the range that was asked for and not
+     * the whole archive, which it does if the archive has changed.
+     *
+     * @param conn connection
+     * @throws IOException on I/O error, or if the range wasn't sent
+     */
+    private void checkPartial(HttpURLConnection conn) throws IOException {
+        int code = conn.getResponseCode();
+        if (code != 206) {
+            throw new IOException(url + " changed while it was being read (got " + code + ")");
+        }
+    }
+
+    /**
+     * Read the body of a response.
+     *
+     * @param conn connection
+     * @param size number of bytes to read
+     * @return bytes
+     * @throws IOException on I/O error
+     */
+    private byte[] read(HttpURLConnection conn, int size) throws IOException {
+        InputStream in = new MeteredInputStream(conn.getInputStream());
+        try {
+            byte[] data = new byte[size];
+            new DataInputStream(in).readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read a little-endian unsigned short.
+     *
+     * @param data data
+     * @param offset offset
+     * @return value
+     */
+    private static int readUShort(byte[] data, int offset) {
+        return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8);
+    }
+
+    /**
+     * Read a little-endian unsigned int.
+     *
+     * @param data data
+     * @param offset offset
+     * @return value
+     */
+    private static long readUInt(byte[] data, int offset) {
+        return readUShort(data, offset) | ((long) readUShort(data, offset + 2) << 16);
+    }
+
+    /**
+     * Counts the bytes that are read and draws them from the bandwidth
+     * limiter.
+     */
+    private class MeteredInputStream extends FilterInputStream {
+
+        private MeteredInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        private void count(int len) throws IOException {
+            transferredBytes += len;
+            BandwidthLimiter limiter = bandwidthLimiter;
+            if (limiter != null) {
+                limiter.acquire(len);
+            }
+        }
+
+    }
+
+    /**
+     * An entry of the archive.
+     */
+    public static class Entry {
+
+        private String name;
+        private int method;
+        private long crc;
+        private long compressedSize;
+        private long size;
+        private long offset;
+        private long end;
+
+        /**
+         * Get the name of the entry.
+         *
+         * @return path within the archive
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns whether the entry is a folder.
+         *
+         * @return true if a folder
+         */
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        /**
+         * Get the CRC-32 of the contents.
+         *
+         * @return crc
+         */
+        public long getCrc() {
+            return crc;
+        }
+
+        /**
+         * Get the size of the contents.
+         *
+         * @return size in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Get the size of the compressed contents.
+         *
+         * @return size in bytes
+         */
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        /**
+         * Get the number of bytes of the archive that have to be fetched to
+         * extract the entry.
+         *
+         * @return size in bytes
+         */
+        public long getSpan() {
+            return end - offset;
+        }
+
+    }
+
+}
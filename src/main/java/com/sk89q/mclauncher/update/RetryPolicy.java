@@ -0,0 +1,83 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.util.Random;
+
+/**
+ * Works out how long to wait before retrying a failed download. The delay
+ * doubles with every retry up to a maximum, and half of it is randomized
+ * so that parallel downloads that failed together don't all retry at the
+ * same moment.
+ *
+ * @author sk89q
+ */
+public class RetryPolicy {
+
+    private final Random random = new Random();
+    private final long baseDelay;
+    private final long maxDelay;
+
+    /**
+     * Construct the policy.
+     *
+     * @param baseDelay delay before the first retry, in milliseconds
+     * @param maxDelay the longest delay, in milliseconds
+     */
+    public RetryPolicy(long baseDelay, long maxDelay) {
+        this.baseDelay = Math.max(0, baseDelay);
+        this.maxDelay = Math.max(this.baseDelay, maxDelay);
+    }
+
+    /**
+     * Get the delay before the first retry.
+     *
+     * @return delay in milliseconds
+     */
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    /**
+     * Get the longest delay.
+     *
+     * @return delay in milliseconds
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Get the delay before the given retry.
+     *
+     * @param retry the number of the retry, starting at 1
+     * @return delay in milliseconds
+     */
+    public long getDelay(int retry) {
+        long delay = baseDelay;
+        for (int i = 1; i < retry && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelay);
+
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+
+}
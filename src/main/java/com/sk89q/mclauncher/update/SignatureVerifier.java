@@ -18,12 +18,25 @@
 
 package com.sk89q.mclauncher.update;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.security.cert.CertPathBuilderException;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
 
@@ -38,6 +51,9 @@ import com.sk89q.mclauncher.util.Util;
  */
 public class SignatureVerifier {
 
+    private static final int MIN_ENTRIES_PER_RUN = 256;
+    private static ExecutorService executor;
+    
     private X509KeyStore keyStore;
     
     /**
@@ -49,6 +65,15 @@ public class SignatureVerifier {
         this.keyStore = keyStore;
     }
     
+    /**
+     * Get the key store that signatures are checked against.
+     * 
+     * @return key store
+     */
+    public X509KeyStore getKeyStore() {
+        return keyStore;
+    }
+    
     /**
      * Verify a list of certificates to be trusted.
      * 
@@ -85,6 +110,24 @@ public class SignatureVerifier {
         }
     }
 
+    /**
+     * Attempt to verify that a file is signed, reading it from disk. Jars
+     * are read with random access so that their entries can be verified
+     * in parallel.
+     * 
+     * @param file the file
+     * @param ext file extension
+     * @throws SecurityException throw on verification failure
+     * @throws IOException on I/O error
+     */
+    public void verify(File file, String ext) throws SecurityException, IOException {
+        if (ext.equalsIgnoreCase("jar") || ext.equalsIgnoreCase("zip")) {
+            verifyJar(file);
+        } else {
+            throw new SecurityException("Not sure how to verify the signature for '" + ext + "'");
+        }
+    }
+
     /**
      * Attempt to verify that a Jar file is signed. All files (aside from
      * ones in META-INF) must be signed and trusted.
@@ -110,30 +153,151 @@ public class SignatureVerifier {
             do {
             } while (jarFile.read(buffer, 0, buffer.length) != -1);
             
-            Certificate[] certs = entry.getCertificates();
-            if (isMetaInf(entry.getName())) {
-                continue;
-            } else if (certs == null || certs.length == 0) {
-                throw new SecurityException("The archive contains files that are not digitally signed");
-            } else {
-                int i = 0;
-                boolean verified = false;
-                while (i < certs.length) {
-                    X509Certificate[] chain = findChain(certs, i);
-                    try {
-                        verify(chain);
-                        verified = true;
-                        break;
-                    } catch (SecurityException e) {
+            verifyEntry(entry);
+        }
+    }
+
+    /**
+     * Attempt to verify that a Jar file on disk is signed. All files (aside
+     * from ones in META-INF) must be signed and trusted.
+     * 
+     * <p>The entries are split into runs that are verified at the same
+     * time, each with its own {@link JarFile} as the verification state of
+     * a JarFile is not meant to be shared between threads. The first
+     * failure stops the other runs and is thrown.</p>
+     * 
+     * @param file the file
+     * @throws SecurityException throw on verification failure
+     * @throws IOException on I/O error
+     */
+    public void verifyJar(File file) throws IOException {
+        List<String> names = new ArrayList<String>();
+        JarFile jarFile = new JarFile(file, true);
+        try {
+            if (jarFile.getManifest() == null) {
+                throw new SecurityException("The given file was not digitally signed");
+            }
+            
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (!entry.isDirectory()) {
+                    names.add(entry.getName());
+                }
+            }
+        } finally {
+            jarFile.close();
+        }
+        
+        int runs = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                names.size() / MIN_ENTRIES_PER_RUN));
+        int runLength = (names.size() + runs - 1) / runs;
+        AtomicBoolean failed = new AtomicBoolean();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        
+        // This thread takes the first run itself
+        for (int i = 1; i < runs; i++) {
+            List<String> run = names.subList(i * runLength,
+                    Math.min(names.size(), (i + 1) * runLength));
+            futures.add(getExecutor().submit(new EntryVerifier(file, run, failed)));
+        }
+        
+        Throwable failure = null;
+        try {
+            new EntryVerifier(file, names.subList(0, Math.min(names.size(), runLength)),
+                    failed).call();
+        } catch (Throwable t) {
+            failed.set(true);
+            failure = t;
+        }
+        
+        // Wait for every run, so that no file is left open, even if this
+        // thread is interrupted; the other runs stop soon after a failure
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    failed.set(true);
+                    interrupted = true;
+                    if (failure == null) {
+                        failure = new InterruptedIOException("Interrupted while verifying " + file);
+                    }
+                    continue;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
                     }
-                    i += chain.length;
                 }
-                
-                if (!verified) {
-                    throw new SecurityException("The file(s) are signed by an entity that is not registered as 'trusted' with the launcher");
+                break;
+            }
+        }
+        
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        
+        if (failure instanceof SecurityException) {
+            throw (SecurityException) failure;
+        } else if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IOException(failure);
+        }
+    }
+
+    /**
+     * Verify that an entry of a jar, which has been read in full, is signed
+     * and trusted.
+     * 
+     * @param entry the entry
+     * @throws SecurityException throw on verification failure
+     */
+    private void verifyEntry(JarEntry entry) throws SecurityException {
+        Certificate[] certs = entry.getCertificates();
+        if (isMetaInf(entry.getName())) {
+            return;
+        } else if (certs == null || certs.length == 0) {
+            throw new SecurityException("The archive contains files that are not digitally signed");
+        } else {
+            int i = 0;
+            while (i < certs.length) {
+                X509Certificate[] chain = findChain(certs, i);
+                try {
+                    verify(chain);
+                    return;
+                } catch (SecurityException e) {
                 }
+                i += chain.length;
             }
+            
+            throw new SecurityException("The file(s) are signed by an entity that is not registered as 'trusted' with the launcher");
+        }
+    }
+
+    /**
+     * Get the thread pool that the entries of jars are verified on, which
+     * is shared by all verifiers.
+     * 
+     * @return thread pool
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Jar verifier");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         }
+        return executor;
     }
     
     /**
@@ -163,6 +327,54 @@ public class SignatureVerifier {
         return chain;
     }
     
+    /**
+     * Verifies a run of the entries of a jar.
+     */
+    private class EntryVerifier implements Callable<Object> {
+        private final File file;
+        private final List<String> names;
+        private final AtomicBoolean failed;
+        
+        private EntryVerifier(File file, List<String> names, AtomicBoolean failed) {
+            this.file = file;
+            this.names = names;
+            this.failed = failed;
+        }
+        
+        public Object call() throws IOException {
+            JarFile jarFile = new JarFile(file, true);
+            try {
+                byte[] buffer = new byte[8192];
+                for (String name : names) {
+                    if (failed.get()) {
+                        break;
+                    }
+                    
+                    JarEntry entry = jarFile.getJarEntry(name);
+                    InputStream in = jarFile.getInputStream(entry);
+                    try {
+                        // The signature is checked as the entry is read
+                        do {
+                        } while (in.read(buffer, 0, buffer.length) != -1);
+                    } finally {
+                        in.close();
+                    }
+                    
+                    verifyEntry(entry);
+                }
+            } catch (RuntimeException e) {
+                failed.set(true);
+                throw e;
+            } catch (IOException e) {
+                failed.set(true);
+                throw e;
+            } finally {
+                jarFile.close();
+            }
+            return null;
+        }
+    }
+    
     /**
      * Returns whether the given path is in META-INF.
      * 
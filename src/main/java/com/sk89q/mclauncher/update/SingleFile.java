@@ -46,13 +46,13 @@ public class SingleFile extends PackageFile {
     }
 
     /**
-     * Deploy.
+     * Deploy. This is a rename once the file has been decompressed.
      */
     
     public void deploy(UninstallLog log) throws IOException {
         log.add(getFile(), getFile());
         
-        if (isFiltered()) {
+        if (isFiltered() && !isDecompressed()) {
             InputStream in = getInputStream();
             
             BufferedOutputStream out = null;
@@ -84,6 +84,11 @@ public class SingleFile extends PackageFile {
     
     public void verify(SignatureVerifier verifier) throws SecurityException,
             IOException {
-        verifier.verify(getInputStream(), Util.getExtension(getOriginalFilename()));
+        String ext = Util.getExtension(getOriginalFilename());
+        if (!isFiltered() || isDecompressed()) {
+            verifier.verify(getTempFile(), ext);
+        } else {
+            verifier.verify(getInputStream(), ext);
+        }
     }
 }
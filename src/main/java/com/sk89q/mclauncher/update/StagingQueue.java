@@ -0,0 +1,231 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands downloaded files to worker threads that verify and stage them
+ * while the other files are still downloading.
+ *
+ * <p>The queue is bounded, so downloads wait if the workers fall behind
+ * instead of piling up files on disk. Once a file fails, the rest are
+ * discarded and the error is thrown to whoever puts the next file or
+ * waits for the queue to finish.</p>
+ *
+ * @author sk89q
+ */
+public class StagingQueue {
+
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> queue;
+    private final Stage stage;
+    private final Thread[] threads;
+    private final AtomicInteger queued = new AtomicInteger();
+    private volatile UpdateException error;
+    private volatile boolean aborted = false;
+
+    /**
+     * Construct the queue with one worker.
+     *
+     * @param capacity number of files that may wait for the worker
+     * @param stage work to do on each file
+     */
+    public StagingQueue(int capacity, Stage stage) {
+        this(capacity, 1, stage);
+    }
+
+    /**
+     * Construct the queue.
+     *
+     * @param capacity number of files that may wait for a worker
+     * @param workers number of files that are processed at the same time
+     * @param stage work to do on each file, which must be safe to call
+     *            from several threads if there is more than one worker
+     */
+    public StagingQueue(int capacity, int workers, Stage stage) {
+        this.queue = new ArrayBlockingQueue<Object>(Math.max(1, capacity));
+        this.stage = stage;
+
+        threads = new Thread[Math.max(1, workers)];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "Staging " + (i + 1));
+            threads[i].setDaemon(true);
+        }
+    }
+
+    /**
+     * Start the worker threads.
+     */
+    public void start() {
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Get the number of files that have been queued.
+     *
+     * @return number of files
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * Take files off the queue until the end is reached.
+     */
+    private void work() {
+        while (true) {
+            Object item;
+            try {
+                item = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (item == END) {
+                return;
+            }
+
+            // Keep taking files after a failure so that nobody is left
+            // waiting to put one
+            if (error != null || aborted) {
+                continue;
+            }
+
+            try {
+                stage.process((PackageFile) item);
+            } catch (UpdateException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                fail(new UpdateException("Could not install " +
+                        ((PackageFile) item).getFile().getAbsolutePath() + ": " + e.getMessage(), e));
+            }
+        }
+    }
+
+    /**
+     * Record the error of a failed file, unless another file failed first.
+     *
+     * @param e the error
+     */
+    private synchronized void fail(UpdateException e) {
+        if (error == null) {
+            error = e;
+        }
+    }
+
+    /**
+     * Throw the error of a failed file, if there was one.
+     *
+     * @throws UpdateException the error
+     */
+    private void checkError() throws UpdateException {
+        UpdateException error = this.error;
+        if (error != null) {
+            throw error;
+        }
+        if (aborted) {
+            throw new CancelledUpdateException();
+        }
+    }
+
+    /**
+     * Queue a file, waiting for room if the queue is full.
+     *
+     * @param file the file
+     * @throws UpdateException the error of a file that failed earlier
+     */
+    public void put(PackageFile file) throws UpdateException {
+        checkError();
+
+        queued.incrementAndGet();
+        try {
+            queue.put(file);
+        } catch (InterruptedException e) {
+            queued.decrementAndGet();
+            throw new CancelledUpdateException();
+        }
+    }
+
+    /**
+     * Wait for all queued files to be processed and stop the workers.
+     *
+     * @throws UpdateException the error of the first file that failed
+     */
+    public void finish() throws UpdateException {
+        try {
+            // Each worker stops at the first end marker it takes
+            for (int i = 0; i < threads.length; i++) {
+                queue.put(END);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            abort();
+            throw new CancelledUpdateException();
+        }
+
+        checkError();
+    }
+
+    /**
+     * Discard the queued files and wait for the workers to stop.
+     */
+    public void abort() {
+        aborted = true;
+        queue.clear();
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Work done on each file.
+     */
+    public static interface Stage {
+
+        /**
+         * Process a file.
+         *
+         * @param file the file
+         * @throws UpdateException on error
+         */
+        void process(PackageFile file) throws UpdateException;
+
+    }
+
+}
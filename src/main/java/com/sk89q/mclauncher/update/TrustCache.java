@@ -0,0 +1,240 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import com.sk89q.mclauncher.util.SimpleNode;
+import com.sk89q.mclauncher.util.Util;
+
+import static com.sk89q.mclauncher.util.XMLUtil.*;
+
+/**
+ * Remembers the files whose signatures have been verified, by the SHA-256
+ * digest of their contents, so that the same bytes don't have to be
+ * verified again by a later update or for another configuration.
+ *
+ * <p>A file is only trusted again if the key store that it was verified
+ * with is unchanged, which is told by its fingerprint, and if it was
+ * verified in the last {@value #MAX_AGE} ms, so that revoked signers are
+ * noticed eventually.</p>
+ *
+ * @author sk89q
+ */
+public class TrustCache {
+
+    private static final long MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+    private static final int MAX_ENTRIES = 1000;
+
+    private File file;
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+    private boolean dirty;
+
+    public TrustCache(File file) {
+        this.file = file;
+
+        try {
+            read();
+        } catch (IOException e) {
+        }
+    }
+
+    public synchronized void read() throws IOException {
+        entries = new HashMap<String, Entry>();
+        dirty = false;
+        InputStream in = null;
+
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+
+            Document doc = parseXml(in);
+            XPath xpath = XPathFactory.newInstance().newXPath();
+
+            // Read all the <entry> elements
+            for (Node node : getNodes(doc, xpath.compile("/trust/entry"))) {
+                String digest = getValue(node);
+                String keyStore = getAttrOrNull(node, "keystore");
+                String verified = getAttrOrNull(node, "verified");
+                if (keyStore == null || verified == null) {
+                    continue;
+                }
+
+                try {
+                    entries.put(digest, new Entry(keyStore, Long.parseLong(verified)));
+                } catch (NumberFormatException e) {
+                }
+            }
+        } catch (XPathExpressionException e) {
+            throw new RuntimeException(e);
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException(e);
+        } catch (SAXException e) {
+            throw new IOException(e);
+        } finally {
+            Util.close(in);
+        }
+    }
+
+    /**
+     * Write the cache if anything was added since it was read or written.
+     *
+     * @throws IOException on I/O error
+     */
+    public synchronized void write() throws IOException {
+        if (!dirty) {
+            return;
+        }
+
+        try {
+            Document doc = newXml();
+            SimpleNode root = start(doc, "trust");
+
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                root.addNode("entry")
+                        .addValue(entry.getKey())
+                        .setAttr("keystore", entry.getValue().keyStore)
+                        .setAttr("verified", String.valueOf(entry.getValue().verified));
+            }
+
+            file.getParentFile().mkdirs();
+            writeXml(doc, file);
+            dirty = false;
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException(e);
+        } catch (TransformerConfigurationException e) {
+            throw new RuntimeException(e);
+        } catch (TransformerException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Returns whether contents with the given digest were verified with the
+     * given key store recently enough to be trusted without verifying them
+     * again.
+     *
+     * @param digest SHA-256 digest of the contents
+     * @param keyStore fingerprint of the key store
+     * @return true if trusted
+     */
+    public synchronized boolean isTrusted(String digest, String keyStore) {
+        Entry entry = entries.get(digest);
+        if (entry == null || !entry.keyStore.equals(keyStore)) {
+            return false;
+        }
+
+        long age = System.currentTimeMillis() - entry.verified;
+        return age >= 0 && age < MAX_AGE;
+    }
+
+    /**
+     * Record that contents with the given digest passed verification with
+     * the given key store.
+     *
+     * @param digest SHA-256 digest of the contents
+     * @param keyStore fingerprint of the key store
+     */
+    public synchronized void putTrusted(String digest, String keyStore) {
+        entries.put(digest, new Entry(keyStore, System.currentTimeMillis()));
+        dirty = true;
+
+        // Forget the entries that were verified longest ago
+        if (entries.size() > MAX_ENTRIES) {
+            List<Map.Entry<String, Entry>> sorted =
+                    new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+            Collections.sort(sorted, new Comparator<Map.Entry<String, Entry>>() {
+                public int compare(Map.Entry<String, Entry> o1, Map.Entry<String, Entry> o2) {
+                    long t1 = o1.getValue().verified;
+                    long t2 = o2.getValue().verified;
+                    return t1 < t2 ? -1 : (t1 > t2 ? 1 : 0);
+                }
+            });
+            for (int i = 0; i < sorted.size() - MAX_ENTRIES; i++) {
+                entries.remove(sorted.get(i).getKey());
+            }
+        }
+    }
+
+    /**
+     * Get the digest that contents are remembered by.
+     *
+     * @param file file holding the contents
+     * @return SHA-256 digest in hex
+     * @throws IOException on I/O error
+     */
+    public static String digest(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[65536];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+
+    /**
+     * A record of contents that passed verification.
+     */
+    private static class Entry {
+        private final String keyStore;
+        private final long verified;
+
+        private Entry(String keyStore, long verified) {
+            this.keyStore = keyStore;
+            this.verified = verified;
+        }
+    }
+
+}
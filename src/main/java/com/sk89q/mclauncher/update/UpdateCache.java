@@ -23,8 +23,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerConfigurationException;
@@ -37,6 +41,7 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
 
+import com.sk89q.mclauncher.util.HttpValidators;
 import com.sk89q.mclauncher.util.SimpleNode;
 
 import static com.sk89q.mclauncher.util.XMLUtil.*;
@@ -50,7 +55,9 @@ public class UpdateCache {
     
     private File file;
     private String lastUpdateId;
+    private long downloadRate = 0;
     private Map<String, String> hashCache;
+    private Map<String, HttpValidators> validatorCache;
     
     public UpdateCache(File file) {
         this.file = file;
@@ -63,6 +70,7 @@ public class UpdateCache {
     
     public void read() throws IOException {
         hashCache = new HashMap<String, String>();
+        validatorCache = new HashMap<String, HttpValidators>();
         InputStream in;
         
         try {
@@ -75,10 +83,21 @@ public class UpdateCache {
             for (Node node : getNodes(doc, xpath.compile("/cache/entry"))) {
                 String path = getValue(node);
                 String hash = getAttrOrNull(node, "hash");
-                hashCache.put(path, hash);
+                if (hash != null) {
+                    hashCache.put(path, hash);
+                }
+                
+                HttpValidators validators = new HttpValidators(
+                        getAttrOrNull(node, "etag"), getAttrOrNull(node, "modified"),
+                        parseLength(getAttrOrNull(node, "length")));
+                if (validators.isUsable() || validators.getContentLength() >= 0) {
+                    validatorCache.put(path, validators);
+                }
             }
             
             lastUpdateId = getStringOrNull(doc, xpath.compile("/cache/current/text()"));
+            downloadRate = Math.max(0, parseLength(
+                    getStringOrNull(doc, xpath.compile("/cache/rate/text()"))));
         } catch (XPathExpressionException e) {
             throw new RuntimeException(e);
         } catch (ParserConfigurationException e) {
@@ -88,7 +107,7 @@ public class UpdateCache {
         }
     }
     
-    public void write() throws IOException {
+    public synchronized void write() throws IOException {
         try {
             Document doc = newXml();
             SimpleNode root = start(doc, "cache");
@@ -97,10 +116,26 @@ public class UpdateCache {
                 root.addNode("current").addValue(lastUpdateId);
             }
             
-            for (Map.Entry<String, String> entry : hashCache.entrySet()) {
-                root.addNode("entry")
-                        .addValue(entry.getKey())
-                        .setAttr("hash", entry.getValue());
+            if (downloadRate > 0) {
+                root.addNode("rate").addValue(String.valueOf(downloadRate));
+            }
+            
+            Set<String> paths = new TreeSet<String>(hashCache.keySet());
+            paths.addAll(validatorCache.keySet());
+            
+            for (String path : paths) {
+                SimpleNode node = root.addNode("entry")
+                        .addValue(path)
+                        .setAttr("hash", hashCache.get(path));
+                
+                HttpValidators validators = validatorCache.get(path);
+                if (validators != null) {
+                    node.setAttr("etag", validators.getEtag())
+                            .setAttr("modified", validators.getLastModified());
+                    if (validators.getContentLength() >= 0) {
+                        node.setAttr("length", String.valueOf(validators.getContentLength()));
+                    }
+                }
             }
 
             writeXml(doc, file);
@@ -120,13 +155,88 @@ public class UpdateCache {
     public void setLastUpdateId(String lastUpdateId) {
         this.lastUpdateId = lastUpdateId;
     }
+    
+    /**
+     * Get the average download rate of the last update, which is used to
+     * estimate how long the next one will take.
+     * 
+     * @return bytes per second, or 0 if not known
+     */
+    public synchronized long getDownloadRate() {
+        return downloadRate;
+    }
+    
+    /**
+     * Set the average download rate of an update.
+     * 
+     * @param downloadRate bytes per second
+     */
+    public synchronized void setDownloadRate(long downloadRate) {
+        this.downloadRate = Math.max(0, downloadRate);
+    }
 
-    public String getCachedHash(String path) {
+    public synchronized String getCachedHash(String path) {
         return hashCache.get(path);
     }
     
-    public void putCachedHash(String path, String hash) {
+    public synchronized void putCachedHash(String path, String hash) {
         hashCache.put(path, hash);
     }
     
+    /**
+     * Get the paths of the files whose cached hash is the given one.
+     * 
+     * @param hash hash in hex
+     * @return list of paths
+     */
+    public synchronized List<String> getPathsWithHash(String hash) {
+        String wanted = hash.replaceAll("^0+", "");
+        List<String> paths = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : hashCache.entrySet()) {
+            if (entry.getValue().replaceAll("^0+", "").equalsIgnoreCase(wanted)) {
+                paths.add(entry.getKey());
+            }
+        }
+        return paths;
+    }
+    
+    /**
+     * Get the HTTP validators of the last download of a file.
+     * 
+     * @param path path of the file
+     * @return validators, or null if not known
+     */
+    public synchronized HttpValidators getValidators(String path) {
+        return validatorCache.get(path);
+    }
+    
+    /**
+     * Remember the HTTP validators of a download of a file, so that the
+     * next update only downloads it again if it has changed.
+     * 
+     * @param path path of the file
+     * @param validators validators
+     */
+    public synchronized void putValidators(String path, HttpValidators validators) {
+        validatorCache.put(path, validators);
+    }
+    
+    /**
+     * Parse a stored length.
+     * 
+     * @param value value, or null
+     * @return length, or -1 if not known
+     */
+    private static long parseLength(String value) {
+        if (value == null) {
+            return -1;
+        }
+        
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
 }
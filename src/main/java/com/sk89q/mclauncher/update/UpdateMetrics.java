@@ -0,0 +1,412 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.mclauncher.update;
+
+import static com.sk89q.mclauncher.util.XMLUtil.newXml;
+import static com.sk89q.mclauncher.util.XMLUtil.start;
+import static com.sk89q.mclauncher.util.XMLUtil.writeXml;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
+import org.w3c.dom.Document;
+
+import com.sk89q.mclauncher.util.DownloadTimings;
+import com.sk89q.mclauncher.util.SimpleNode;
+
+/**
+ * Records where the time of an update went, per file and per host, so that
+ * slow updates and slow mirrors can be told apart.
+ *
+ * <p>The metrics of the running update are shown over JMX under
+ * {@value #OBJECT_NAME}, and stay there until the next update starts. At
+ * the end of the update they are written to an XML file.</p>
+ *
+ * @author sk89q
+ */
+public class UpdateMetrics implements UpdateMetricsMBean {
+
+    /**
+     * Name that the metrics are registered with JMX under.
+     */
+    public static final String OBJECT_NAME = "com.sk89q.mclauncher:type=UpdateMetrics";
+
+    private static final Logger logger = Logger.getLogger(UpdateMetrics.class.getCanonicalName());
+
+    private final long startTime = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final Map<String, FileStats> files = new LinkedHashMap<String, FileStats>();
+    private final Map<String, HostStats> hosts = new TreeMap<String, HostStats>();
+    private long elapsed = -1;
+    private String outcome;
+
+    /**
+     * Register the metrics with JMX, replacing those of an earlier update.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Failed to register update metrics", e);
+        }
+    }
+
+    /**
+     * Record a request for a file.
+     *
+     * @param path path of the file, relative to the installation
+     * @param method how the file was fetched, such as "download" or "patch"
+     * @param url url that was requested
+     * @param timings timings of the request, or null if not known
+     * @param bytes number of bytes received
+     * @param time time that the request took, in nanoseconds
+     * @param result what the server answered
+     */
+    public synchronized void recordRequest(String path, String method, URL url,
+            DownloadTimings timings, long bytes, long time, Result result) {
+        FileStats file = getFile(path);
+        file.method = result == Result.NOT_MODIFIED ? "not-modified" : method;
+        file.host = url.getHost();
+        file.requests++;
+        file.bytes += bytes;
+        file.time += time;
+
+        HostStats host = hosts.get(url.getHost());
+        if (host == null) {
+            host = new HostStats();
+            hosts.put(url.getHost(), host);
+        }
+        host.requests++;
+        host.bytes += bytes;
+        host.time += time;
+
+        if (result == Result.FAILED) {
+            file.failures++;
+            host.failures++;
+        } else if (result == Result.NOT_MODIFIED) {
+            host.notModified++;
+        }
+
+        if (timings != null) {
+            file.digestTime += timings.getDigestTime();
+            if (result != Result.FAILED) {
+                file.resolveTime = timings.getResolveTime();
+                file.connectTime = timings.getConnectTime();
+                file.firstByteTime = timings.getFirstByteTime();
+            }
+            if (timings.getResolveTime() >= 0) {
+                host.resolveTime += timings.getResolveTime();
+                host.resolveCount++;
+            }
+            if (timings.getConnectTime() >= 0) {
+                host.connectTime += timings.getConnectTime();
+                host.connectCount++;
+            }
+            if (timings.getFirstByteTime() >= 0) {
+                host.firstByteTime += timings.getFirstByteTime();
+                host.firstByteCount++;
+            }
+        }
+    }
+
+    /**
+     * Record time spent calculating a digest outside of a download.
+     *
+     * @param path path of the file, relative to the installation
+     * @param time time in nanoseconds
+     */
+    public synchronized void recordDigestTime(String path, long time) {
+        getFile(path).digestTime += time;
+    }
+
+    /**
+     * Record the end of the update.
+     *
+     * @param outcome "completed", "cancelled" or "failed"
+     */
+    public synchronized void finish(String outcome) {
+        this.outcome = outcome;
+        elapsed = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Get the statistics of a file, adding them if they're not there yet.
+     *
+     * @param path path of the file
+     * @return statistics
+     */
+    private FileStats getFile(String path) {
+        FileStats file = files.get(path);
+        if (file == null) {
+            file = new FileStats();
+            files.put(path, file);
+        }
+        return file;
+    }
+
+    /**
+     * Get the time since the start of the update, or its length once it
+     * has ended.
+     *
+     * @return time in nanoseconds
+     */
+    private long getElapsed() {
+        return elapsed >= 0 ? elapsed : System.nanoTime() - startNanos;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public synchronized String getOutcome() {
+        return outcome;
+    }
+
+    public synchronized int getFileCount() {
+        return files.size();
+    }
+
+    public synchronized long getBytesDownloaded() {
+        long bytes = 0;
+        for (HostStats host : hosts.values()) {
+            bytes += host.bytes;
+        }
+        return bytes;
+    }
+
+    public synchronized long getThroughput() {
+        return perSecond(getBytesDownloaded(), getElapsed());
+    }
+
+    public synchronized int getRetryCount() {
+        int failures = 0;
+        for (HostStats host : hosts.values()) {
+            failures += host.failures;
+        }
+        return failures;
+    }
+
+    public synchronized int getNotModifiedCount() {
+        int notModified = 0;
+        for (HostStats host : hosts.values()) {
+            notModified += host.notModified;
+        }
+        return notModified;
+    }
+
+    public synchronized long getDigestTime() {
+        long time = 0;
+        for (FileStats file : files.values()) {
+            time += file.digestTime;
+        }
+        return time / 1000000;
+    }
+
+    public synchronized String[] getHostSummaries() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, HostStats> entry : hosts.entrySet()) {
+            HostStats host = entry.getValue();
+            lines.add(String.format(Locale.US,
+                    "%s: %d requests, %d failed, %d not modified, %d bytes at %d B/s, " +
+                    "lookup %s ms, connect %s ms, first byte %s ms",
+                    entry.getKey(), host.requests, host.failures, host.notModified,
+                    host.bytes, perSecond(host.bytes, host.time),
+                    display(average(host.resolveTime, host.resolveCount)),
+                    display(average(host.connectTime, host.connectCount)),
+                    display(average(host.firstByteTime, host.firstByteCount))));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    public synchronized String[] getFileSummaries() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, FileStats> entry : files.entrySet()) {
+            FileStats file = entry.getValue();
+            lines.add(String.format(Locale.US,
+                    "%s: %s from %s, %d bytes in %s ms, %d retries, " +
+                    "first byte %s ms, digest %s ms",
+                    entry.getKey(), file.method, file.host, file.bytes,
+                    display(file.time), file.failures,
+                    display(file.firstByteTime), display(file.digestTime)));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * Write the metrics to an XML file.
+     *
+     * @param file file to write to
+     * @throws IOException on I/O error
+     */
+    public synchronized void write(File file) throws IOException {
+        try {
+            Document doc = newXml();
+            SimpleNode root = start(doc, "metrics")
+                    .setAttr("start", String.valueOf(startTime))
+                    .setAttr("elapsedMs", millis(getElapsed()))
+                    .setAttr("outcome", outcome)
+                    .setAttr("bytes", String.valueOf(getBytesDownloaded()))
+                    .setAttr("throughput", String.valueOf(getThroughput()));
+
+            for (Map.Entry<String, HostStats> entry : hosts.entrySet()) {
+                HostStats host = entry.getValue();
+                root.addNode("host")
+                        .setAttr("name", entry.getKey())
+                        .setAttr("requests", String.valueOf(host.requests))
+                        .setAttr("failures", String.valueOf(host.failures))
+                        .setAttr("notModified", String.valueOf(host.notModified))
+                        .setAttr("bytes", String.valueOf(host.bytes))
+                        .setAttr("throughput", String.valueOf(perSecond(host.bytes, host.time)))
+                        .setAttr("resolveMs", millis(average(host.resolveTime, host.resolveCount)))
+                        .setAttr("connectMs", millis(average(host.connectTime, host.connectCount)))
+                        .setAttr("firstByteMs", millis(average(host.firstByteTime, host.firstByteCount)));
+            }
+
+            for (Map.Entry<String, FileStats> entry : files.entrySet()) {
+                FileStats stats = entry.getValue();
+                root.addNode("file")
+                        .addValue(entry.getKey())
+                        .setAttr("method", stats.method)
+                        .setAttr("host", stats.host)
+                        .setAttr("requests", String.valueOf(stats.requests))
+                        .setAttr("retries", String.valueOf(stats.failures))
+                        .setAttr("bytes", String.valueOf(stats.bytes))
+                        .setAttr("timeMs", millis(stats.time))
+                        .setAttr("throughput", String.valueOf(perSecond(stats.bytes, stats.time)))
+                        .setAttr("resolveMs", millis(stats.resolveTime))
+                        .setAttr("connectMs", millis(stats.connectTime))
+                        .setAttr("firstByteMs", millis(stats.firstByteTime))
+                        .setAttr("digestMs", millis(stats.digestTime));
+            }
+
+            writeXml(doc, file);
+        } catch (ParserConfigurationException e) {
+            throw new IOException(e);
+        } catch (TransformerException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Get an average.
+     *
+     * @param total total
+     * @param count count
+     * @return average, or -1 if the count is 0
+     */
+    private static long average(long total, int count) {
+        return count > 0 ? total / count : -1;
+    }
+
+    /**
+     * Get a rate per second.
+     *
+     * @param amount amount
+     * @param time time in nanoseconds
+     * @return amount per second
+     */
+    private static long perSecond(long amount, long time) {
+        return time > 0 ? (long) (amount * 1000000000.0 / time) : 0;
+    }
+
+    /**
+     * Format a time in milliseconds.
+     *
+     * @param time time in nanoseconds, or -1
+     * @return text, or null if the time is not known
+     */
+    private static String millis(long time) {
+        return time >= 0 ? String.format(Locale.US, "%.3f", time / 1000000.0) : null;
+    }
+
+    /**
+     * Format a time in milliseconds for a summary line.
+     *
+     * @param time time in nanoseconds, or -1
+     * @return text
+     */
+    private static String display(long time) {
+        return time >= 0 ? millis(time) : "?";
+    }
+
+    /**
+     * What the server answered a request with.
+     */
+    public static enum Result {
+        DOWNLOADED,
+        NOT_MODIFIED,
+        FAILED
+    }
+
+    /**
+     * Statistics of a file.
+     */
+    private static class FileStats {
+        private String method;
+        private String host;
+        private int requests;
+        private int failures;
+        private long bytes;
+        private long time;
+        private long resolveTime = -1;
+        private long connectTime = -1;
+        private long firstByteTime = -1;
+        private long digestTime;
+    }
+
+    /**
+     * Statistics of a host.
+     */
+    private static class HostStats {
+        private int requests;
+        private int failures;
+        private int notModified;
+        private long bytes;
+        private long time;
+        private long resolveTime;
+        private int resolveCount;
+        private long connectTime;
+        private int connectCount;
+        private long firstByteTime;
+        private int firstByteCount;
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.mclauncher.update;
+
+/**
+ * The attributes of {@link UpdateMetrics} that are shown over JMX.
+ *
+ * @author sk89q
+ */
+public interface UpdateMetricsMBean {
+
+    /**
+     * Get when the update started.
+     *
+     * @return time in milliseconds since the epoch
+     */
+    long getStartTime();
+
+    /**
+     * Get how the update ended.
+     *
+     * @return "completed", "cancelled" or "failed", or null while running
+     */
+    String getOutcome();
+
+    /**
+     * Get the number of files that were fetched or found to be unchanged.
+     *
+     * @return number of files
+     */
+    int getFileCount();
+
+    /**
+     * Get the number of bytes received.
+     *
+     * @return number of bytes
+     */
+    long getBytesDownloaded();
+
+    /**
+     * Get the average speed since the update started.
+     *
+     * @return bytes per second
+     */
+    long getThroughput();
+
+    /**
+     * Get the number of requests that failed and were retried.
+     *
+     * @return number of retries
+     */
+    int getRetryCount();
+
+    /**
+     * Get the number of files that the server said had not changed.
+     *
+     * @return number of 304 responses
+     */
+    int getNotModifiedCount();
+
+    /**
+     * Get the time spent calculating digests.
+     *
+     * @return time in milliseconds
+     */
+    long getDigestTime();
+
+    /**
+     * Get a line of statistics for each host.
+     *
+     * @return lines
+     */
+    String[] getHostSummaries();
+
+    /**
+     * Get a line of statistics for each file.
+     *
+     * @return lines
+     */
+    String[] getFileSummaries();
+
+}
@@ -0,0 +1,133 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Describes what an update is going to do, as worked out by
+ * {@link Updater#plan()} before anything is downloaded.
+ *
+ * @author sk89q
+ */
+public class UpdatePlan {
+
+    private final List<PackageFile> changedFiles;
+    private final List<PackageFile> unchangedFiles;
+    private final Set<String> removedPaths;
+    private final long downloadSize;
+    private final boolean downloadSizeExact;
+    private final long downloadRate;
+
+    /**
+     * Construct the plan.
+     *
+     * @param changedFiles files that will be downloaded
+     * @param unchangedFiles files that the server said have not changed
+     * @param removedPaths paths of installed files that will be deleted
+     * @param downloadSize number of bytes to download
+     * @param downloadSizeExact true if the server gave the size of every file
+     * @param downloadRate expected bytes per second, or 0 if not known
+     */
+    UpdatePlan(List<PackageFile> changedFiles, List<PackageFile> unchangedFiles,
+            Set<String> removedPaths, long downloadSize, boolean downloadSizeExact,
+            long downloadRate) {
+        this.changedFiles = Collections.unmodifiableList(changedFiles);
+        this.unchangedFiles = Collections.unmodifiableList(unchangedFiles);
+        this.removedPaths = Collections.unmodifiableSet(removedPaths);
+        this.downloadSize = downloadSize;
+        this.downloadSizeExact = downloadSizeExact;
+        this.downloadRate = downloadRate;
+    }
+
+    /**
+     * Get the files that will be downloaded.
+     *
+     * @return list of files
+     */
+    public List<PackageFile> getChangedFiles() {
+        return changedFiles;
+    }
+
+    /**
+     * Get the files that are already up-to-date and will be skipped.
+     *
+     * @return list of files
+     */
+    public List<PackageFile> getUnchangedFiles() {
+        return unchangedFiles;
+    }
+
+    /**
+     * Get the paths, relative to the installation, of files that will be
+     * deleted because they no longer belong to any file in the package.
+     * Files left behind by an archive whose contents have changed are only
+     * found once it has been extracted, so they are not included.
+     *
+     * @return set of paths
+     */
+    public Set<String> getRemovedPaths() {
+        return removedPaths;
+    }
+
+    /**
+     * Get the number of bytes to download.
+     *
+     * @return number of bytes
+     */
+    public long getDownloadSize() {
+        return downloadSize;
+    }
+
+    /**
+     * Returns whether the download size is exact. If the server didn't say
+     * how big some of the files are, the estimates in the package are used
+     * for them.
+     *
+     * @return true if exact
+     */
+    public boolean isDownloadSizeExact() {
+        return downloadSizeExact;
+    }
+
+    /**
+     * Get how long the download is expected to take, based on the speed of
+     * the last update.
+     *
+     * @return time in seconds, or -1 if not known
+     */
+    public long getEstimatedTime() {
+        if (downloadRate <= 0) {
+            return -1;
+        }
+        return (downloadSize + downloadRate - 1) / downloadRate;
+    }
+
+    /**
+     * Returns whether there is nothing to download or delete.
+     *
+     * @return true if up-to-date
+     */
+    public boolean isEmpty() {
+        return changedFiles.isEmpty() && removedPaths.isEmpty();
+    }
+
+}
@@ -18,25 +18,41 @@
 
 package com.sk89q.mclauncher.update;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.EventObject;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -49,9 +65,17 @@ import com.sk89q.mclauncher.ProgressListener;
 import com.sk89q.mclauncher.StatusChangeEvent;
 import com.sk89q.mclauncher.TitleChangeEvent;
 import com.sk89q.mclauncher.ValueChangeEvent;
+import com.sk89q.mclauncher.security.CertificateVerificationException;
 import com.sk89q.mclauncher.security.X509KeyRing.Ring;
 import com.sk89q.mclauncher.update.PackageFile.MessageDigestAlgorithm;
+import com.sk89q.mclauncher.util.BandwidthLimiter;
+import com.sk89q.mclauncher.util.DownloadProgressAggregator;
 import com.sk89q.mclauncher.util.Downloader;
+import com.sk89q.mclauncher.util.DownloaderFactory;
+import com.sk89q.mclauncher.util.HttpConnectionPool;
+import com.sk89q.mclauncher.util.HttpValidators;
+import com.sk89q.mclauncher.util.ResumeRefusedException;
+import com.sk89q.mclauncher.util.SegmentedDownloader;
 import com.sk89q.mclauncher.util.SocketDownloader;
 import com.sk89q.mclauncher.util.URLConnectionDownloader;
 import com.sk89q.mclauncher.util.Util;
@@ -64,22 +88,53 @@ import com.sk89q.mclauncher.util.Util;
 public class Updater implements DownloadListener {
     
     private static final Logger logger = Logger.getLogger(Updater.class.getCanonicalName());
+    private static final long CONNECTION_IDLE_TIMEOUT = 15000;
+    private static final long PROGRESS_INTERVAL = 250;
+    private static final int MAX_PROBE_THREADS = 8;
+    private static final int PROBE_TIMEOUT = 5000;
+    private static final long NOT_MODIFIED = -2;
+    private static final String UNINSTALL_LOG = "uninstall.dat";
+    private static final String METRICS_FILE = "update-metrics.xml";
 
     private boolean verifying = true;
     private InputStream packageStream;
     private File rootDir;
     private UpdateCache cache;
     private int downloadTries = 5;
-    private long retryDelay = 5000;
+    private int downloadThreads = 4;
+    private int maxConnectionsPerHost = 4;
+    private int downloadSegments = 4;
+    private long segmentThreshold = 1024 * 1024 * 4;
+    private DownloaderFactory downloaderFactory;
+    private BandwidthLimiter bandwidthLimiter;
+    private RetryPolicy retryPolicy = new RetryPolicy(1000, 30000);
+    private HostCircuitBreaker circuitBreaker = new HostCircuitBreaker(5, 30000);
     private boolean forced = false;
     private Map<String, String> parameters = new HashMap<String, String>();
     
     private EventListenerList listenerList = new EventListenerList();
-    private double subprogressOffset = 0;
-    private double subprogressSize = 1;
+    private volatile double subprogressOffset = 0;
+    private volatile double subprogressSize = 1;
     private volatile boolean running = true;
-    private Downloader downloader;
+    private volatile DownloadScheduler scheduler;
+    private HttpConnectionPool connectionPool;
+    private DownloadProgressAggregator progressAggregator;
+    private SignatureVerifier signatureVerifier;
+    private StagingQueue stagingQueue;
+    private int stagingCapacity = 4;
+    private int stagingThreads = Runtime.getRuntime().availableProcessors();
+    private volatile boolean downloadsFinished;
+    private final AtomicInteger stagedCount = new AtomicInteger();
+    private final Map<Downloader, PackageFile> activeDownloads =
+            new ConcurrentHashMap<Downloader, PackageFile>();
     private List<PackageFile> fileList;
+    private Map<PackageFile, Integer> fileIndexes;
+    private UpdatePlan plan;
+    private final AtomicLong transferredBytes = new AtomicLong();
+    private final UpdateMetrics metrics = new UpdateMetrics();
+    private PeerCache peerCache;
+    private URL cacheServer;
+    private TrustCache trustCache;
     private int currentIndex = 0;
     private long totalEstimatedSize = 0;
     private long downloadedEstimatedSize = 0;
@@ -133,6 +188,274 @@ public class Updater implements DownloadListener {
         this.downloadTries = downloadTries;
     }
 
+    /**
+     * Get the limiter that caps the combined rate of all downloads.
+     * 
+     * @return limiter, or null if not limited
+     */
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    /**
+     * Set the limiter that caps the combined rate of all downloads.
+     * 
+     * @param bandwidthLimiter limiter, or null to not limit
+     */
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    /**
+     * Get the policy that decides how long to wait between tries.
+     * 
+     * @return retry policy
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Set the policy that decides how long to wait between tries.
+     * 
+     * @param retryPolicy retry policy
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Get the breaker that stops downloads from hosts that keep failing.
+     * 
+     * @return circuit breaker
+     */
+    public HostCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Set the breaker that stops downloads from hosts that keep failing.
+     * 
+     * @param circuitBreaker circuit breaker
+     */
+    public void setCircuitBreaker(HostCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Get the number of files that are downloaded at the same time.
+     * 
+     * @return number of download threads
+     */
+    public int getDownloadThreads() {
+        return downloadThreads;
+    }
+
+    /**
+     * Set the number of files that are downloaded at the same time.
+     * 
+     * @param downloadThreads number of download threads
+     */
+    public void setDownloadThreads(int downloadThreads) {
+        this.downloadThreads = Math.max(1, downloadThreads);
+    }
+
+    /**
+     * Get the maximum number of simultaneous connections to one host.
+     * 
+     * @return connection count
+     */
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * Set the maximum number of simultaneous connections to one host,
+     * counting every segment of a file that is split. Files for a host
+     * that is at the limit wait without holding up a download thread, so
+     * files for other hosts go ahead of them. This defaults to
+     * the default number of download threads, so the limit is effectively
+     * off for a package that is served from one host.
+     * 
+     * @param maxConnectionsPerHost connection count
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+    }
+
+    /**
+     * Get the number of connections that a large file is split over.
+     * 
+     * @return number of segments
+     */
+    public int getDownloadSegments() {
+        return downloadSegments;
+    }
+
+    /**
+     * Set the number of connections that a large file is split over. A
+     * file is only split over the connections to its host that are free
+     * under {@link #setMaxConnectionsPerHost(int)}.
+     * 
+     * @param downloadSegments number of segments, or 1 to disable
+     */
+    public void setDownloadSegments(int downloadSegments) {
+        this.downloadSegments = Math.max(1, downloadSegments);
+    }
+
+    /**
+     * Get the size above which files are downloaded over several
+     * connections.
+     * 
+     * @return size in bytes
+     */
+    public long getSegmentThreshold() {
+        return segmentThreshold;
+    }
+
+    /**
+     * Set the size above which files are downloaded over several
+     * connections.
+     * 
+     * @param segmentThreshold size in bytes, or 0 to disable
+     */
+    public void setSegmentThreshold(long segmentThreshold) {
+        this.segmentThreshold = segmentThreshold;
+    }
+
+    /**
+     * Get the number of downloaded files that may wait to be verified and
+     * staged before downloads are held up.
+     * 
+     * @return number of files
+     */
+    public int getStagingCapacity() {
+        return stagingCapacity;
+    }
+
+    /**
+     * Set the number of downloaded files that may wait to be verified and
+     * staged before downloads are held up.
+     * 
+     * @param stagingCapacity number of files
+     */
+    public void setStagingCapacity(int stagingCapacity) {
+        this.stagingCapacity = stagingCapacity;
+    }
+
+    /**
+     * Get the number of downloaded files that are verified and staged at
+     * the same time.
+     * 
+     * @return number of threads
+     */
+    public int getStagingThreads() {
+        return stagingThreads;
+    }
+
+    /**
+     * Set the number of downloaded files that are verified and staged at
+     * the same time. By default, this is the number of processors.
+     * 
+     * @param stagingThreads number of threads
+     */
+    public void setStagingThreads(int stagingThreads) {
+        this.stagingThreads = stagingThreads;
+    }
+    
+    /**
+     * Get the cache of files whose signatures were verified before.
+     * 
+     * @return trust cache, or null if files are always verified
+     */
+    public TrustCache getTrustCache() {
+        return trustCache;
+    }
+    
+    /**
+     * Set the cache of files whose signatures were verified before, which
+     * lets files be trusted without verifying them again.
+     * 
+     * @param trustCache trust cache, or null to always verify files
+     */
+    public void setTrustCache(TrustCache trustCache) {
+        this.trustCache = trustCache;
+    }
+    
+    /**
+     * Get the cache server that files are downloaded through.
+     * 
+     * @return base url of the cache server, or null to download directly
+     */
+    public URL getCacheServer() {
+        return cacheServer;
+    }
+    
+    /**
+     * Set the cache server that files are downloaded through. Only files
+     * on plain HTTP go through it.
+     * 
+     * @param cacheServer base url of the cache server, or null to download
+     *            directly
+     */
+    public void setCacheServer(URL cacheServer) {
+        this.cacheServer = cacheServer;
+    }
+    
+    /**
+     * Get the peer cache that files are fetched from before the package
+     * server.
+     * 
+     * @return peer cache, or null if peers are not used
+     */
+    public PeerCache getPeerCache() {
+        return peerCache;
+    }
+    
+    /**
+     * Set the peer cache that files are fetched from before the package
+     * server.
+     * 
+     * @param peerCache peer cache, or null to not use peers
+     */
+    public void setPeerCache(PeerCache peerCache) {
+        this.peerCache = peerCache;
+    }
+    
+    /**
+     * Get the metrics of this update, which are also shown over JMX while
+     * the update runs.
+     * 
+     * @return metrics
+     */
+    public UpdateMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Get the factory used to create the downloader for the first try of
+     * each file from each source.
+     * 
+     * @return factory, or null if the built-in downloaders are used
+     */
+    public DownloaderFactory getDownloaderFactory() {
+        return downloaderFactory;
+    }
+
+    /**
+     * Set the factory used to create the downloader for the first try of
+     * each file from each source. Retries from the same source always use
+     * a {@link URLConnectionDownloader}. Files that are decompressed while
+     * they download always use the built-in downloaders, because writing
+     * them can block. The factory's downloaders are given an unbuffered
+     * {@link FileOutputStream}.
+     * 
+     * @param downloaderFactory factory, or null to use the built-in downloaders
+     */
+    public void setDownloaderFactory(DownloaderFactory downloaderFactory) {
+        this.downloaderFactory = downloaderFactory;
+    }
+
     /**
      * Returns whether everything is being reinstalled (all files are
      * updated).
@@ -163,7 +486,8 @@ public class Updater implements DownloadListener {
     }
     
     /**
-     * Replaces parameters within a URL.
+     * Replaces parameters within a URL, and points it at the cache server
+     * if there is one.
      * 
      * @param url url to parameterize
      * @return new URL
@@ -178,216 +502,988 @@ public class Updater implements DownloadListener {
                 throw new RuntimeException(e);
             }
         }
-        try {
-            return new URL(urlStr);
-        } catch (MalformedURLException e) {
-            throw new RuntimeException(e);
-        }
+        try {
+            URL parameterized = new URL(urlStr);
+            return cacheServer != null ?
+                    CacheServer.toCacheURL(cacheServer, parameterized) : parameterized;
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    /**
+     * Tries to load the MessageDigest instance for the given algorithm.
+     * 
+     * @param type type algorithm
+     * @return the message digest
+     * @throws NoSuchAlgorithmException no algorithm is registered
+     */
+    private MessageDigest loadMessageDigest(MessageDigestAlgorithm type)
+            throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance(type.getJavaDigestName());
+    }
+    
+    /**
+     * Get the number of connections that a file is worth downloading over
+     * at once. The length that the server gave for the file last time is
+     * used if it is known, because the estimate in the package may be off.
+     * 
+     * @param url the URL to download from
+     * @param file the file
+     * @param validators validators of the last download, or null
+     * @return number of segments, or 1 to not use a {@link SegmentedDownloader}
+     */
+    private int getSegmentCount(URL url, PackageFile file, HttpValidators validators) {
+        String protocol = url.getProtocol();
+        long size = validators != null && validators.getContentLength() >= 0 ?
+                validators.getContentLength() : file.getTotalEstimatedSize();
+        if (downloadSegments > 1 && segmentThreshold > 0
+                && (protocol.equalsIgnoreCase("http") || protocol.equalsIgnoreCase("https"))
+                && size >= segmentThreshold) {
+            return (int) Math.max(1, Math.min(downloadSegments,
+                    size / SegmentedDownloader.DEFAULT_MIN_SEGMENT_SIZE));
+        }
+        return 1;
+    }
+    
+    /**
+     * Returns whether the installed copy of a file is there, so that the
+     * server may be asked to only send the file if it has changed. Archives
+     * are extracted, so there is no single file to look for.
+     * 
+     * @param file the file
+     * @return true if a 304 Not Modified would leave a usable file
+     */
+    private boolean isInstalled(PackageFile file) {
+        return !(file instanceof SingleFile) || file.getFile().exists();
+    }
+    
+    /**
+     * Feed the contents of a file into a message digest.
+     * 
+     * @param digest digest to update
+     * @param file file to read
+     * @throws IOException on I/O error
+     */
+    private void updateDigest(MessageDigest digest, File file) throws IOException {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+            }
+        } finally {
+            Util.close(in);
+        }
+    }
+    
+    /**
+     * Returns whether two digests (in hex) match.
+     * 
+     * @param s1 digest 1
+     * @param s2 digest 2
+     * @return true for match
+     */
+    private boolean matchesDigest(String s1, String s2) {
+        return s1.replaceAll("^0+", "").equalsIgnoreCase(s2.replaceAll("^0+", ""));
+    }
+    
+    /**
+     * Checks to make sure that the process is still running. Otherwise,
+     * throw a {@link CancelledUpdateException}.
+     * 
+     * @throws CancelledUpdateException on cancel
+     */
+    private void checkRunning() throws CancelledUpdateException {
+        DownloadScheduler scheduler = this.scheduler;
+        if (!running || (scheduler != null && scheduler.isAborted())) {
+            throw new CancelledUpdateException();
+        }
+    }
+    
+    /**
+     * Parse the package file.
+     * 
+     * @throws UpdateException on package parse error
+     */
+    private void parsePackageFile() throws UpdateException {
+        try {
+            PackageDefinition def = PackageDefinition.parse(rootDir, packageStream);
+            fileList = def.getFileList();
+            fileIndexes = new HashMap<PackageFile, Integer>();
+            for (int i = 0; i < fileList.size(); i++) {
+                fileIndexes.put(fileList.get(i), i);
+            }
+            totalEstimatedSize = def.getEstimatedTotalSize();
+        } catch (Throwable e) {
+            logger.log(Level.SEVERE, "Failed to read package file", e);
+            throw new UpdateException("Could not read package.xml file. The update cannot continue.\n\nThe error: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Download the files.
+     * 
+     * @throws UpdateException on download error
+     */
+    private void downloadFiles() throws UpdateException {
+        DownloadScheduler scheduler = new DownloadScheduler(
+                downloadThreads, maxConnectionsPerHost);
+        this.scheduler = scheduler;
+        connectionPool = new HttpConnectionPool(maxConnectionsPerHost, CONNECTION_IDLE_TIMEOUT);
+        progressAggregator = new DownloadProgressAggregator(PROGRESS_INTERVAL);
+        progressAggregator.addDownloadListener(this);
+        progressAggregator.start();
+        
+        try {
+            // The main URL of each file comes first, followed by its mirrors
+            Map<PackageFile, List<URL>> fileSources = new HashMap<PackageFile, List<URL>>();
+            List<URL> mirroredURLs = new ArrayList<URL>();
+            for (PackageFile file : fileList) {
+                if (file.isIgnored()) {
+                    continue;
+                }
+                
+                List<URL> sources = new ArrayList<URL>();
+                sources.add(parameterizeURL(file.getURL()));
+                for (URL alternateURL : file.getAlternateURLs()) {
+                    sources.add(parameterizeURL(alternateURL));
+                }
+                fileSources.put(file, sources);
+                if (sources.size() > 1) {
+                    mirroredURLs.addAll(sources);
+                }
+            }
+            
+            MirrorSelector mirrorSelector = new MirrorSelector();
+            if (!mirroredURLs.isEmpty()) {
+                fireStatusChange("Finding the fastest mirrors...");
+                try {
+                    mirrorSelector.probe(mirroredURLs);
+                } catch (InterruptedException e) {
+                    throw new CancelledUpdateException();
+                }
+            }
+            
+            fireStatusChange("Connecting...");
+            long startTime = System.currentTimeMillis();
+            
+            for (final PackageFile file : fileList) {
+                // A file failed already; let await() report why
+                if (scheduler.isAborted()) {
+                    break;
+                }
+                checkRunning();
+                
+                if (file.isIgnored()) {
+                    continue;
+                }
+                
+                final List<URL> sources = mirrorSelector.order(fileSources.get(file));
+                scheduler.submit(sources.get(0).getHost(), new Callable<Void>() {
+                    public Void call() throws UpdateException {
+                        downloadFile(file, sources);
+                        return null;
+                    }
+                });
+            }
+            
+            scheduler.await();
+            
+            // Remember the speed to estimate the time of the next update,
+            // if enough was downloaded to tell
+            long elapsed = System.currentTimeMillis() - startTime;
+            if (elapsed >= 1000 && transferredBytes.get() >= 1024 * 256) {
+                cache.setDownloadRate(transferredBytes.get() * 1000 / elapsed);
+            }
+        } finally {
+            scheduler.shutdown();
+            for (Downloader downloader : activeDownloads.keySet()) {
+                downloader.cancel();
+            }
+            scheduler.awaitTermination();
+            connectionPool.close();
+            progressAggregator.stop();
+        }
+        
+        checkRunning();
+    }
+    
+    /**
+     * Download a single file, retrying on failure. This may be called from
+     * several download threads at once.
+     * 
+     * @param file the file to download
+     * @param sources urls of the file, in the order to try them in
+     * @throws UpdateException on download error
+     */
+    private void downloadFile(PackageFile file, List<URL> sources) throws UpdateException {
+        checkRunning();
+        fireDownloadStatusChange(file, "Connecting...");
+
+        boolean isVerifying = false;
+        boolean firstTry = true;
+        MessageDigest m = null;
+        String cacheId = getRelative(rootDir, file.getFile());
+        HttpValidators validators = cache.getValidators(cacheId);
+        boolean conditional = !forced && isInstalled(file);
+        
+        // Load the MessageDigest
+        if (!forced && file.getVerifyType() != null) {
+            isVerifying = true;
+            try {
+                m = loadMessageDigest(file.getVerifyType());
+            } catch (NoSuchAlgorithmException e) {
+                isVerifying = false;
+                m = null;
+                // Guess we're not going to verify files
+            }
+        }
+
+        // Create the folder
+        file.getTempFile().getParentFile().mkdirs();
+        
+        // Patch the installed version if there's a patch for it
+        if (patchFile(file, cacheId)) {
+            synchronized (this) {
+                downloadedEstimatedSize += file.getTotalEstimatedSize();
+            }
+            fireDownloadValueChange();
+            stagingQueue.put(file);
+            return;
+        }
+        
+        // Fetch only the changed entries of an archive if possible, or
+        // fetch the file from a peer
+        if ((conditional && extractRemotely(file, sources.get(0), cacheId))
+                || (!forced && fetchFromPeer(file, sources.get(0), cacheId, conditional))) {
+            synchronized (this) {
+                downloadedEstimatedSize += file.getTotalEstimatedSize();
+            }
+            fireDownloadValueChange();
+            if (!file.isIgnored()) {
+                stagingQueue.put(file);
+            }
+            return;
+        }
+
+        int sourceIndex = 0;
+        int failures = 0;
+        int retryNum = 0;
+        String resumeEtag = null;
+        while (true) {
+            checkRunning();
+            
+            // Skip over sources whose host has been failing
+            URL url = null;
+            for (int i = 0; i < sources.size(); i++) {
+                int index = (sourceIndex + i) % sources.size();
+                if (circuitBreaker.allowRequest(sources.get(index).getHost())) {
+                    if (index != sourceIndex) {
+                        sourceIndex = index;
+                        firstTry = true;
+                        resumeEtag = null;
+                    }
+                    url = sources.get(index);
+                    break;
+                }
+            }
+            
+            // Every source is cooling down, which may be because of other
+            // files, so wait for one to come back and count it as a try
+            if (url == null) {
+                failures++;
+                if (failures > downloadTries) {
+                    throw new UpdateException("Could not download " + file.getURL() +
+                            ": the server has failed too many times in a row; try again later");
+                }
+                
+                long coolDown = Long.MAX_VALUE;
+                for (URL source : sources) {
+                    coolDown = Math.min(coolDown,
+                            circuitBreaker.getRemainingCoolDown(source.getHost()));
+                }
+                
+                retryNum++;
+                fireDownloadStatusChange(file, "Server is failing; retrying (" + retryNum + ")...");
+                Util.sleep(Math.max(coolDown, retryPolicy.getDelay(retryNum)));
+                continue;
+            }
+            
+            // Pick up from where the last try left off
+            long resumeOffset = 0;
+            if (resumeEtag != null) {
+                resumeOffset = file.getTempFile().length();
+                if (resumeOffset > 0 && isVerifying) {
+                    m.reset();
+                    try {
+                        updateDigest(m, file.getTempFile());
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Failed to read partial download " +
+                                file.getTempFile(), e);
+                        resumeOffset = 0;
+                    }
+                }
+            }
+            
+            OutputStream out = null;
+            DecompressingOutputStream decompressor = null;
+            Downloader downloader;
+            
+            // Each extra segment takes up a connection to the host, so only
+            // split the file over the connections that are free
+            int extraConnections = 0;
+            if (firstTry && resumeOffset == 0) {
+                int segments = getSegmentCount(url, file, validators);
+                if (segments > 1) {
+                    extraConnections = scheduler.acquireExtra(url.getHost(), segments - 1);
+                }
+            }
+            boolean segmented = extraConnections > 0;
+            
+            // Attempt downloading
+            if (segmented) {
+                logger.info("Using SegmentedDownloader for URL " + url.toString());
+                SegmentedDownloader segmentedDownloader =
+                        new SegmentedDownloader(url, file.getTempFile());
+                segmentedDownloader.setSegments(1 + extraConnections);
+                segmentedDownloader.setConnectionPool(connectionPool);
+                downloader = segmentedDownloader;
+            } else {
+                // A factory's downloaders may share one thread, which must
+                // not wait on a decompressor that is behind
+                boolean fromFactory = firstTry && downloaderFactory != null
+                        && !file.isFiltered() && downloaderFactory.supports(url);
+                
+                try {
+                    if (file.isFiltered()) {
+                        decompressor = new DecompressingOutputStream(file, signatureVerifier);
+                        out = decompressor;
+                    } else {
+                        out = new FileOutputStream(file.getTempFile(), resumeOffset > 0);
+                        // A factory's downloaders get the file stream itself,
+                        // so that they can write to its channel
+                        if (!fromFactory) {
+                            out = new BufferedOutputStream(out);
+                        }
+                    }
+                } catch (IOException e) {
+                    circuitBreaker.release(url.getHost());
+                    throw new UpdateException("Could not write to " +
+                            file.getTempFile().getAbsolutePath() + ".", e);
+                }
+                
+                if (fromFactory) {
+                    logger.info("Using " + downloaderFactory.getClass().getSimpleName() +
+                            " for URL " + url.toString());
+                    downloader = downloaderFactory.createDownloader(url, out);
+                } else if (url.getProtocol().equalsIgnoreCase("http") && firstTry) {
+                    logger.info("Using SocketDownloader for URL " + url.toString());
+                    SocketDownloader socketDownloader = new SocketDownloader(url, out);
+                    socketDownloader.setConnectionPool(connectionPool);
+                    downloader = socketDownloader;
+                } else {
+                    logger.info("Using URLConnectionDownloader for URL " + url.toString());
+                    downloader = new URLConnectionDownloader(url, out);
+                }
+            }
+            
+            firstTry = false;
+            
+            if (resumeOffset > 0) {
+                logger.info("Resuming download of " + url + " at byte " + resumeOffset);
+                downloader.setResume(resumeOffset, resumeEtag);
+            } else if (isVerifying) {
+                m.reset();
+            }
+            
+            if (isVerifying) {
+                downloader.setMessageDigest(m);
+                if (conditional) {
+                    downloader.setEtagCheck(cache.getCachedHash(cacheId));
+                }
+            }
+            if (conditional && validators != null && validators.isUsable()) {
+                downloader.setConditional(validators);
+            }
+            downloader.setBandwidthLimiter(bandwidthLimiter);
+            downloader.addDownloadListener(this);
+            activeDownloads.put(downloader, file);
+            progressAggregator.add(downloader);
+            
+            long attemptStart = System.nanoTime();
+            boolean recorded = false;
+            try {
+                // Catch a cancel that happened before we were registered
+                checkRunning();
+                
+                boolean downloaded = downloader.download();
+                circuitBreaker.recordSuccess(url.getHost());
+                recorded = true;
+                metrics.recordRequest(cacheId, "download", url, downloader.getTimings(),
+                        downloaded ? downloader.getDownloadedLength() - resumeOffset : 0,
+                        System.nanoTime() - attemptStart,
+                        downloaded ? UpdateMetrics.Result.DOWNLOADED : UpdateMetrics.Result.NOT_MODIFIED);
+                
+                if (downloaded) {
+                    checkRunning();
+                    transferredBytes.addAndGet(downloader.getDownloadedLength() - resumeOffset);
+                    
+                    // Wait for the rest of the file to be decompressed
+                    if (decompressor != null) {
+                        decompressor.close();
+                        file.setDecompressed(true);
+                        file.setSignatureVerified(decompressor.isSignatureVerified());
+                    }
+                    
+                    // Check MD5 hash
+                    if (isVerifying) {
+                        String signature = new BigInteger(1, m.digest()).toString(16);
+                        if (!matchesDigest(downloader.getEtag(), signature)) {
+                            throw new UpdateException(
+                                    String.format("Signature for %s did not match; expected %s, got %s",
+                                            file.getURL(), downloader.getEtag(), signature));
+                        }
+                        
+                        cache.putCachedHash(cacheId, signature);
+                    }
+                    
+                    if (downloader.getValidators() != null) {
+                        cache.putValidators(cacheId, downloader.getValidators());
+                    }
+                } else { // File already downloaded
+                    file.setIgnored(true);
+                    
+                    fireDownloadStatusChange(file, "Already up-to-date.");
+                }
+                
+                break;
+            } catch (ResumeRefusedException e) {
+                logger.log(Level.INFO, "Could not resume " + url + "; downloading it again", e);
+                recordFailure(cacheId, "download", url, downloader, resumeOffset, attemptStart);
+                
+                // The server answered, so the host is up
+                circuitBreaker.recordSuccess(url.getHost());
+                recorded = true;
+                
+                // Start over right away; this doesn't count as a failed try
+                resumeEtag = null;
+                continue;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to fetch " + url, e);
+                recordFailure(cacheId, "download", url, downloader, resumeOffset, attemptStart);
+                circuitBreaker.recordFailure(url.getHost());
+                recorded = true;
+                failures++;
+                
+                if (failures > downloadTries) {
+                    throw new UpdateException("Could not download " + file.getURL() + ": " +
+                            e.getMessage(), e);
+                }
+                
+                // Keep the partial file if the server told us what it was,
+                // unless it was being filled in out of order or holds
+                // decompressed contents
+                resumeEtag = segmented || decompressor != null ? null : downloader.getEtag();
+            } finally {
+                // Don't leave a test request of an open breaker unfinished
+                if (!recorded) {
+                    circuitBreaker.release(url.getHost());
+                }
+                if (extraConnections > 0) {
+                    scheduler.releaseExtra(url.getHost(), extraConnections);
+                }
+                activeDownloads.remove(downloader);
+                progressAggregator.remove(downloader);
+                Util.close(out);
+            }
+            
+            // Fail over to the next source straight away, and only back
+            // off once every source has been tried
+            if (sources.size() > 1) {
+                sourceIndex = (sourceIndex + 1) % sources.size();
+                firstTry = true;
+                resumeEtag = null;
+            }
+            
+            if (sourceIndex == 0) {
+                retryNum++;
+                Util.sleep(retryPolicy.getDelay(retryNum));
+                fireDownloadStatusChange(file, "Download failed; retrying (" + retryNum + ")...");
+            } else {
+                fireDownloadStatusChange(file, "Download failed; trying another source...");
+            }
+        }
+        
+        synchronized (this) {
+            downloadedEstimatedSize += file.getTotalEstimatedSize();
+        }
+        fireDownloadValueChange();
+        
+        if (!file.isIgnored()) {
+            stagingQueue.put(file);
+        }
+    }
+    
+    /**
+     * Get the digest type that the patches of a file use.
+     * 
+     * @param file the file
+     * @return digest type
+     */
+    private MessageDigestAlgorithm getPatchDigestType(PackageFile file) {
+        return file.getVerifyType() != null ? file.getVerifyType() : MessageDigestAlgorithm.MD5;
+    }
+    
+    /**
+     * Find the patch that applies to the installed version of a file.
+     * Only single files can be patched, because archives are extracted.
+     * 
+     * @param file the file
+     * @return the patch, or null if there is none
+     */
+    private FilePatch findPatch(PackageFile file) {
+        if (forced || !(file instanceof SingleFile) || file.getPatches().isEmpty()
+                || !file.getFile().isFile()) {
+            return null;
+        }
+        
+        String installedHash;
+        try {
+            long start = System.nanoTime();
+            MessageDigest digest = loadMessageDigest(getPatchDigestType(file));
+            updateDigest(digest, file.getFile());
+            installedHash = new BigInteger(1, digest.digest()).toString(16);
+            metrics.recordDigestTime(getRelative(rootDir, file.getFile()), System.nanoTime() - start);
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read " + file.getFile(), e);
+            return null;
+        }
+        
+        for (FilePatch patch : file.getPatches()) {
+            if (matchesDigest(patch.getFromHash(), installedHash)) {
+                return patch;
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Try to bring the installed version of a file up to date with a patch,
+     * leaving the result in the temporary file. Any failure leaves the
+     * file to be downloaded in full.
+     * 
+     * @param file the file
+     * @param cacheId key of the file in the update cache
+     * @return true if the file was patched
+     * @throws CancelledUpdateException on cancel
+     */
+    private boolean patchFile(PackageFile file, String cacheId) throws CancelledUpdateException {
+        FilePatch patch = findPatch(file);
+        if (patch == null) {
+            return false;
+        }
+        
+        File patchFile = new File(file.getTempFile().getPath() + ".patch");
+        URL url = parameterizeURL(patch.getURL());
+        InputStream in = null;
+        OutputStream out = null;
+        
+        try {
+            fireDownloadStatusChange(file, "Downloading patch...");
+            logger.info("Patching " + file.getFile() + " with " + url);
+            
+            out = new BufferedOutputStream(new FileOutputStream(patchFile));
+            Downloader downloader = new URLConnectionDownloader(url, out);
+            downloader.setBandwidthLimiter(bandwidthLimiter);
+            downloader.addDownloadListener(this);
+            activeDownloads.put(downloader, file);
+            progressAggregator.add(downloader);
+            long start = System.nanoTime();
+            try {
+                checkRunning();
+                downloader.download();
+                transferredBytes.addAndGet(downloader.getDownloadedLength());
+                metrics.recordRequest(cacheId, "patch", url, downloader.getTimings(),
+                        downloader.getDownloadedLength(), System.nanoTime() - start,
+                        UpdateMetrics.Result.DOWNLOADED);
+            } catch (IOException e) {
+                recordFailure(cacheId, "patch", url, downloader, 0, start);
+                throw e;
+            } finally {
+                activeDownloads.remove(downloader);
+                progressAggregator.remove(downloader);
+                out.close();
+            }
+            
+            checkRunning();
+            fireDownloadStatusChange(file, "Applying patch...");
+            
+            long applyStart = System.nanoTime();
+            MessageDigest digest = loadMessageDigest(getPatchDigestType(file));
+            in = patch.filter(new BufferedInputStream(new FileInputStream(patchFile)));
+            out = new DigestOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file.getTempFile())), digest);
+            DeltaPatch.apply(file.getFile(), in, out);
+            out.close();
+            
+            String hash = new BigInteger(1, digest.digest()).toString(16);
+            metrics.recordDigestTime(cacheId, System.nanoTime() - applyStart);
+            if (!matchesDigest(patch.getToHash(), hash)) {
+                throw new IOException(String.format(
+                        "Patched file has the wrong digest; expected %s, got %s",
+                        patch.getToHash(), hash));
+            }
+        } catch (CancelledUpdateException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to patch " + file.getFile() +
+                    "; downloading it in full", e);
+            return false;
+        } finally {
+            Util.close(in);
+            Util.close(out);
+            patchFile.delete();
+        }
+        
+        // The temporary file holds the contents as they are installed
+        file.setDecompressed(true);
+        rememberValidators(file, cacheId);
+        return true;
+    }
+    
+    /**
+     * Try to fetch a file from a peer on the local network instead of the
+     * package server. The package server is still asked for the digest of
+     * the current version, which the copy from the peer has to match, so
+     * this only works for files whose digest is verified.
+     * 
+     * @param file the file
+     * @param url url of the file on the package server
+     * @param cacheId key of the file in the update cache
+     * @param conditional true if the installed file may be kept if unchanged
+     * @return true if the file was fetched or found to be unchanged
+     * @throws CancelledUpdateException on cancel
+     */
+    private boolean fetchFromPeer(PackageFile file, URL url, String cacheId, boolean conditional)
+            throws CancelledUpdateException {
+        PeerCache peerCache = this.peerCache;
+        if (peerCache == null || !(file instanceof SingleFile) || file.isFiltered()
+                || file.getVerifyType() == null || !peerCache.hasPeers()) {
+            return false;
+        }
+        
+        MessageDigest digest;
+        try {
+            digest = loadMessageDigest(file.getVerifyType());
+        } catch (NoSuchAlgorithmException e) {
+            return false;
+        }
+        
+        HttpValidators validators = fetchValidators(url);
+        String etag = validators != null ? validators.getEtag() : null;
+        if (etag == null || etag.startsWith("W/")) {
+            return false;
+        }
+        String expected = etag.replace("\"", "");
+        
+        String cachedHash = cache.getCachedHash(cacheId);
+        if (conditional && cachedHash != null && matchesDigest(cachedHash, expected)) {
+            cache.putValidators(cacheId, validators);
+            file.setIgnored(true);
+            fireDownloadStatusChange(file, "Already up-to-date.");
+            return true;
+        }
+        
+        for (URL peerURL : peerCache.getURLs(file.getVerifyType(), expected)) {
+            checkRunning();
+            fireDownloadStatusChange(file, "Fetching from " + peerURL.getHost() + "...");
+            
+            OutputStream out = null;
+            URLConnectionDownloader downloader = null;
+            long start = System.nanoTime();
+            try {
+                digest.reset();
+                out = new BufferedOutputStream(new FileOutputStream(file.getTempFile()));
+                downloader = new URLConnectionDownloader(peerURL, out);
+                downloader.setTimeout(PROBE_TIMEOUT);
+                downloader.setMessageDigest(digest);
+                downloader.addDownloadListener(this);
+                activeDownloads.put(downloader, file);
+                progressAggregator.add(downloader);
+                
+                try {
+                    downloader.download();
+                } finally {
+                    activeDownloads.remove(downloader);
+                    progressAggregator.remove(downloader);
+                    out.close();
+                }
+                
+                String hash = new BigInteger(1, digest.digest()).toString(16);
+                if (!matchesDigest(expected, hash)) {
+                    throw new IOException(String.format(
+                            "Peer sent the wrong file; expected %s, got %s", expected, hash));
+                }
+                
+                metrics.recordRequest(cacheId, "peer", peerURL, downloader.getTimings(),
+                        downloader.getDownloadedLength(), System.nanoTime() - start,
+                        UpdateMetrics.Result.DOWNLOADED);
+                cache.putCachedHash(cacheId, hash);
+                cache.putValidators(cacheId, validators);
+                return true;
+            } catch (IOException e) {
+                logger.info("Could not fetch " + file.getFile() + " from " + peerURL +
+                        ": " + e.getMessage());
+                if (downloader != null) {
+                    recordFailure(cacheId, "peer", peerURL, downloader, 0, start);
+                }
+            } finally {
+                Util.close(out);
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Try to stage an uncompressed archive by fetching only the entries
+     * that differ from the installed files with range requests. This can't
+     * be done if signatures are checked, because that needs the whole
+     * archive. Any failure leaves the archive to be downloaded in full.
+     * 
+     * @param file the file
+     * @param url url to fetch from
+     * @param cacheId key of the file in the update cache
+     * @return true if the file was staged or found to be unchanged
+     * @throws CancelledUpdateException on cancel
+     */
+    private boolean extractRemotely(PackageFile file, URL url, String cacheId)
+            throws CancelledUpdateException {
+        String protocol = url.getProtocol();
+        if (!(file instanceof ArchiveFile) || file.isFiltered() || signatureVerifier != null
+                || !file.getFile().getParentFile().isDirectory()
+                || (!protocol.equalsIgnoreCase("http") && !protocol.equalsIgnoreCase("https"))) {
+            return false;
+        }
+        
+        RemoteArchive archive = new RemoteArchive(url);
+        archive.setBandwidthLimiter(bandwidthLimiter);
+        long start = System.nanoTime();
+        UpdateMetrics.Result result = UpdateMetrics.Result.FAILED;
+        archive.setConditional(cache.getValidators(cacheId),
+                file.getVerifyType() != null ? cache.getCachedHash(cacheId) : null);
+        
+        try {
+            fireDownloadStatusChange(file, "Comparing contents...");
+            if (!archive.readDirectory()) {
+                result = UpdateMetrics.Result.NOT_MODIFIED;
+                file.setIgnored(true);
+                fireDownloadStatusChange(file, "Already up-to-date.");
+                return true;
+            }
+            
+            checkRunning();
+            fireDownloadStatusChange(file, "Fetching changed files...");
+            result = UpdateMetrics.Result.DOWNLOADED;
+            if (!((ArchiveFile) file).stageRemote(archive)) {
+                logger.info("Too much of " + url + " has changed; downloading all of it");
+                return false;
+            }
+        } catch (IOException e) {
+            logger.log(Level.INFO, "Could not fetch the changed entries of " + url +
+                    "; downloading all of it", e);
+            result = UpdateMetrics.Result.FAILED;
+            return false;
+        } finally {
+            transferredBytes.addAndGet(archive.getTransferredBytes());
+            metrics.recordRequest(cacheId, "ranges", url, null, archive.getTransferredBytes(),
+                    System.nanoTime() - start, result);
+        }
+        
+        rememberValidators(file, cacheId, archive.getValidators());
+        return true;
     }
     
     /**
-     * Tries to load the MessageDigest instance for the given algorithm.
+     * Ask the server for the validators of the current version of a file
+     * after it was brought up to date without downloading it, so that the
+     * next update sees it as unchanged.
      * 
-     * @param type type algorithm
-     * @return the message digest
-     * @throws NoSuchAlgorithmException no algorithm is registered
+     * @param file the file
+     * @param cacheId key of the file in the update cache
      */
-    private MessageDigest loadMessageDigest(MessageDigestAlgorithm type)
-            throws NoSuchAlgorithmException {
-        return MessageDigest.getInstance(type.getJavaDigestName());
+    private void rememberValidators(PackageFile file, String cacheId) {
+        HttpValidators validators = fetchValidators(parameterizeURL(file.getURL()));
+        if (validators != null) {
+            rememberValidators(file, cacheId, validators);
+        }
     }
     
     /**
-     * Returns whether two digests (in hex) match.
+     * Ask the server for the validators of the current version of a file.
      * 
-     * @param s1 digest 1
-     * @param s2 digest 2
-     * @return true for match
+     * @param url url of the file
+     * @return validators, or null if they couldn't be found out
      */
-    private boolean matchesDigest(String s1, String s2) {
-        return s1.replaceAll("^0+", "").equalsIgnoreCase(s2.replaceAll("^0+", ""));
+    private HttpValidators fetchValidators(URL url) {
+        String protocol = url.getProtocol();
+        if (!protocol.equalsIgnoreCase("http") && !protocol.equalsIgnoreCase("https")) {
+            return null;
+        }
+        
+        HttpURLConnection conn = null;
+        try {
+            conn = openProbe(url, "HEAD", null, null);
+            int code = conn.getResponseCode();
+            if (code == 405 || code == 501) {
+                conn.disconnect();
+                conn = openProbe(url, "GET", null, null);
+                code = conn.getResponseCode();
+            }
+            
+            if (code != 200) {
+                return null;
+            }
+            
+            String length = conn.getHeaderField("Content-Length");
+            return new HttpValidators(conn.getHeaderField("ETag"),
+                    conn.getHeaderField("Last-Modified"),
+                    length != null ? Long.parseLong(length.trim()) : -1);
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to probe " + url, e);
+            return null;
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
     }
     
     /**
-     * Checks to make sure that the process is still running. Otherwise,
-     * throw a {@link CancelledUpdateException}.
+     * Store the validators of a file that was brought up to date without
+     * downloading it.
      * 
-     * @throws CancelledUpdateException on cancel
+     * @param file the file
+     * @param cacheId key of the file in the update cache
+     * @param validators validators of the current version
      */
-    private void checkRunning() throws CancelledUpdateException {
-        if (!running) {
-            throw new CancelledUpdateException();
+    private void rememberValidators(PackageFile file, String cacheId, HttpValidators validators) {
+        cache.putValidators(cacheId, validators);
+        
+        // The hash of a verified download is the server's ETag
+        String etag = validators.getEtag();
+        if (file.getVerifyType() != null && etag != null && !etag.startsWith("W/")) {
+            cache.putCachedHash(cacheId, etag.replace("\"", ""));
         }
     }
     
     /**
-     * Parse the package file.
+     * Record a failed request in the metrics.
      * 
-     * @throws UpdateException on package parse error
+     * @param cacheId key of the file
+     * @param method how the file was being fetched
+     * @param url url
+     * @param downloader downloader
+     * @param resumeOffset number of bytes that were already there
+     * @param start time that the request started, from {@link System#nanoTime()}
      */
-    private void parsePackageFile() throws UpdateException {
-        try {
-            PackageDefinition def = PackageDefinition.parse(rootDir, packageStream);
-            fileList = def.getFileList();
-            totalEstimatedSize = def.getEstimatedTotalSize();
-        } catch (Throwable e) {
-            logger.log(Level.SEVERE, "Failed to read package file", e);
-            throw new UpdateException("Could not read package.xml file. The update cannot continue.\n\nThe error: " + e.getMessage(), e);
-        }
+    private void recordFailure(String cacheId, String method, URL url, Downloader downloader,
+            long resumeOffset, long start) {
+        metrics.recordRequest(cacheId, method, url, downloader.getTimings(),
+                Math.max(0, downloader.getDownloadedLength() - resumeOffset),
+                System.nanoTime() - start, UpdateMetrics.Result.FAILED);
     }
     
     /**
-     * Download the files.
+     * Decompress, verify and stage a downloaded file. This is called on the
+     * staging thread while other files are still downloading.
      * 
-     * @throws UpdateException on download error
+     * @param file the file
+     * @throws UpdateException on error
      */
-    private void downloadFiles() throws UpdateException {
-        currentIndex = 0;
-        
-        for (PackageFile file : fileList) {
+    private void prepareFile(PackageFile file) throws UpdateException {
+        try {
             checkRunning();
-            fireDownloadStatusChange("Connecting...");
-
-            OutputStream out;
-            boolean isVerifying = false;
-            boolean firstTry = true;
-            MessageDigest m = null;
-            URL url = parameterizeURL(file.getURL());
-            String cacheId = getRelative(rootDir, file.getFile());
-            
-            // Load the MessageDigest
-            if (!forced && file.getVerifyType() != null) {
-                isVerifying = true;
-                try {
-                    m = loadMessageDigest(file.getVerifyType());
-                } catch (NoSuchAlgorithmException e) {
-                    isVerifying = false;
-                    m = null;
-                    // Guess we're not going to verify files
-                }
-            }
-
-            // Create the folder
-            file.getTempFile().getParentFile().mkdirs();
-
-            int retryNum = 0;
-            for (int trial = downloadTries; trial >= -1; trial--) {
+            file.decompress();
+            
+            if (signatureVerifier != null && !file.isSignatureVerified()) {
                 checkRunning();
-                
-                try {
-                    out = new BufferedOutputStream(new FileOutputStream(file.getTempFile()));
-                } catch (IOException e) {
-                    throw new UpdateException("Could not write to " +
-                            file.getTempFile().getAbsolutePath() + ".", e);
-                }
-
-                // Attempt downloading
-                try {
-                    if (url.getProtocol().equalsIgnoreCase("http") && firstTry) {
-                        logger.info("Using SocketDownloader for URL " + url.toString());
-                        downloader = new SocketDownloader(url, out);
-                    } else {
-                        logger.info("Using URLConnectionDownloader for URL " + url.toString());
-                        downloader = new URLConnectionDownloader(url, out);
-                    }
-                    
-                    firstTry = false;
-                    
-                    if (isVerifying) {
-                        downloader.setMessageDigest(m);
-                        downloader.setEtagCheck(cache.getCachedHash(cacheId));
-                    }
-                    downloader.addDownloadListener(this);
-                    
-                    if (downloader.download()) {
-                        checkRunning();
-                        
-                        // Check MD5 hash
-                        if (isVerifying) {
-                            String signature = new BigInteger(1, m.digest()).toString(16);
-                            if (!matchesDigest(downloader.getEtag(), signature)) {
-                                throw new UpdateException(
-                                        String.format("Signature for %s did not match; expected %s, got %s",
-                                                file.getURL(), downloader.getEtag(), signature));
-                            }
-                            
-                            cache.putCachedHash(cacheId, signature);
-                        }
-                    } else { // File already downloaded
-                        file.setIgnored(true);
-                        
-                        fireDownloadStatusChange("Already up-to-date.");
-                        fireAdjustedValueChange((downloadedEstimatedSize + file.getTotalEstimatedSize())
-                                / (double) totalEstimatedSize);
-                    }
-                    
-                    break;
-                } catch (IOException e) {
-                    logger.log(Level.WARNING, "Failed to fetch " + url, e);
-                    
-                    if (trial == -1) {
-                        throw new UpdateException("Could not download " + file.getURL() + ": " +
-                                e.getMessage(), e);
-                    }
-                } finally {
-                    downloader = null;
-                    Util.close(out);
-                }
-                
-                retryNum++;
-                
-                Util.sleep(retryDelay);
-                fireDownloadStatusChange("Download failed; retrying (" + retryNum + ")...");
+                verifySignature(file);
             }
             
-            currentIndex++;
-            downloadedEstimatedSize += file.getTotalEstimatedSize();
+            file.stage();
+        } catch (CancelledUpdateException e) {
+            throw e;
+        } catch (SecurityException e) {
+            logger.log(Level.WARNING, "Failed to deploy " + file, e);
+            throw new UpdateException("The digital signature(s) of " +
+                    file.getFile().getAbsolutePath() + " could not be verified: " + e.getMessage(), e);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to deploy " + file, e);
+            throw new UpdateException("Could not install to " +
+                    file.getFile().getAbsolutePath() + ": " + e.getMessage(), e);
+        } catch (Throwable e) {
+            logger.log(Level.WARNING, "Failed to deploy " + file, e);
+            throw new UpdateException("Could not install " +
+                    file.getFile().getAbsolutePath() + ": " + e.getMessage(), e);
         }
     }
     
     /**
-     * Verify newly-downloaded updates.
-     * 
-     * @throws UpdateException 
+     * Fires a value change for the files that have been verified and
+     * staged, once all the files have been downloaded. Before then, the
+     * progress is that of the downloads.
      */
-    private void verify() throws UpdateException {
-        if (!isVerifying()) { // No verification!
-            return;
+    private void fireStagingValueChange() {
+        StagingQueue stagingQueue = this.stagingQueue;
+        if (downloadsFinished && stagingQueue != null) {
+            int queued = stagingQueue.getQueuedCount();
+            fireAdjustedValueChange(queued > 0 ?
+                    Math.min(1, stagedCount.get() / (double) queued) : 1);
         }
+    }
+    
+    /**
+     * Verify the signatures of a decompressed file, unless the trust cache
+     * knows that the same contents were verified before.
+     * 
+     * @param file the file
+     * @throws SecurityException thrown on verification failure
+     * @throws IOException on I/O error
+     */
+    private void verifySignature(PackageFile file) throws SecurityException, IOException {
+        String digest = null;
+        String keyStore = null;
         
-        currentIndex = 0;
-        
-        SignatureVerifier signatureVerifier = new SignatureVerifier(
-                Launcher.getInstance().getKeyRing().getKeyStore(Ring.UPDATE));
-        
-        for (PackageFile file : fileList) {
-            checkRunning();
-            
-            if (file.isIgnored()) {
-                continue;
-            }
-            
-            fireAdjustedValueChange(currentIndex / fileList.size());
-            fireStatusChange(String.format("Verifying %s (%d/%d)...", file.getFile().getName(),
-                    currentIndex + 1, fileList.size()));
-            
+        if (trustCache != null) {
             try {
-                file.verify(signatureVerifier);
-            } catch (SecurityException e) {
-                logger.log(Level.WARNING, "Failed to deploy " + file, e);
-                throw new UpdateException("The digital signature(s) of " +
-                        file.getFile().getAbsolutePath() + " could not be verified: " + e.getMessage(), e);
-            } catch (IOException e) {
-                logger.log(Level.WARNING, "Failed to deploy " + file, e);
-                throw new UpdateException("Could not install to " +
-                        file.getFile().getAbsolutePath() + ": " + e.getMessage(), e);
-            } catch (Throwable e) {
-                logger.log(Level.WARNING, "Failed to deploy " + file, e);
-                throw new UpdateException("Could not install " +
-                        file.getFile().getAbsolutePath() + ": " + e.getMessage(), e);
+                keyStore = signatureVerifier.getKeyStore().getFingerprint();
+                digest = TrustCache.digest(file.getTempFile());
+            } catch (CertificateVerificationException e) {
+                logger.log(Level.WARNING, "Could not get the fingerprint of the key store", e);
             }
             
-            currentIndex++;
+            if (digest != null && trustCache.isTrusted(digest, keyStore)) {
+                logger.info("Skipping verification of " + file.getFile() +
+                        "; the same contents were verified before");
+                file.setSignatureVerified(true);
+                return;
+            }
+        }
+        
+        file.verify(signatureVerifier);
+        file.setSignatureVerified(true);
+        
+        if (digest != null) {
+            trustCache.putTrusted(digest, keyStore);
         }
     }
     
@@ -399,6 +1495,13 @@ public class Updater implements DownloadListener {
     private void deploy(UninstallLog log) throws UpdateException {
         currentIndex = 0;
         
+        int total = 0;
+        for (PackageFile file : fileList) {
+            if (!file.isIgnored()) {
+                total++;
+            }
+        }
+        
         for (PackageFile file : fileList) {
             checkRunning();
             
@@ -406,9 +1509,9 @@ public class Updater implements DownloadListener {
                 continue;
             }
             
-            fireAdjustedValueChange(currentIndex / fileList.size());
+            fireAdjustedValueChange(currentIndex / (double) total);
             fireStatusChange(String.format("Installing %s (%d/%d)...", file.getFile().getName(),
-                    currentIndex + 1, fileList.size()));
+                    currentIndex + 1, total));
             
             try {
                 file.deploy(log);
@@ -457,22 +1560,264 @@ public class Updater implements DownloadListener {
         }
     }
     
+    /**
+     * Work out what the update is going to do before anything is
+     * downloaded. The files of the package are probed at the same time with
+     * HEAD requests, made conditional on the validators of their last
+     * download, to find out which have changed and how big they are. Files
+     * that have a patch for their installed version count with the size of
+     * the patch.
+     * 
+     * <p>If this is called before {@link #performUpdate()}, the files that
+     * were found to be unchanged are not requested again.</p>
+     * 
+     * @return the plan
+     * @throws UpdateException on package parse error or cancel
+     */
+    public UpdatePlan plan() throws UpdateException {
+        if (fileList == null) {
+            fireStatusChange("Parsing package .xml...");
+            parsePackageFile();
+        }
+        
+        fireStatusChange("Checking for changed files...");
+        
+        Map<PackageFile, Future<Long>> results = new LinkedHashMap<PackageFile, Future<Long>>();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(MAX_PROBE_THREADS, fileList.size())));
+        try {
+            for (final PackageFile file : fileList) {
+                results.put(file, executor.submit(new Callable<Long>() {
+                    public Long call() {
+                        long length = probe(file);
+                        if (length != NOT_MODIFIED) {
+                            FilePatch patch = findPatch(file);
+                            if (patch != null && patch.getSize() >= 0) {
+                                return patch.getSize();
+                            }
+                        }
+                        return length;
+                    }
+                }));
+            }
+            
+            List<PackageFile> changedFiles = new ArrayList<PackageFile>();
+            List<PackageFile> unchangedFiles = new ArrayList<PackageFile>();
+            long downloadSize = 0;
+            boolean exact = true;
+            
+            for (Map.Entry<PackageFile, Future<Long>> entry : results.entrySet()) {
+                checkRunning();
+                
+                PackageFile file = entry.getKey();
+                long length = entry.getValue().get();
+                if (length == NOT_MODIFIED) {
+                    unchangedFiles.add(file);
+                } else {
+                    changedFiles.add(file);
+                    if (length >= 0) {
+                        downloadSize += length;
+                    } else {
+                        downloadSize += file.getTotalEstimatedSize();
+                        exact = false;
+                    }
+                }
+            }
+            
+            long rate = cache.getDownloadRate();
+            if (bandwidthLimiter != null && bandwidthLimiter.getRate() > 0) {
+                rate = rate > 0 ? Math.min(rate, bandwidthLimiter.getRate()) : bandwidthLimiter.getRate();
+            }
+            
+            plan = new UpdatePlan(changedFiles, unchangedFiles, getRemovedPaths(),
+                    downloadSize, exact, rate);
+            return plan;
+        } catch (InterruptedException e) {
+            throw new CancelledUpdateException();
+        } catch (ExecutionException e) {
+            throw new UpdateException("Could not check for changed files: " +
+                    e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Ask the server whether a file has changed since its last download,
+     * in the same way that downloading it would.
+     * 
+     * @param file the file
+     * @return length of the file, -1 if it's not known or
+     *         {@link #NOT_MODIFIED} if the file is unchanged
+     */
+    private long probe(PackageFile file) {
+        String cacheId = getRelative(rootDir, file.getFile());
+        URL url = parameterizeURL(file.getURL());
+        String protocol = url.getProtocol();
+        if (!protocol.equalsIgnoreCase("http") && !protocol.equalsIgnoreCase("https")) {
+            return -1;
+        }
+        
+        String ifNoneMatch = null;
+        String ifModifiedSince = null;
+        if (!forced && isInstalled(file)) {
+            HttpValidators validators = cache.getValidators(cacheId);
+            String hash = file.getVerifyType() != null ? cache.getCachedHash(cacheId) : null;
+            ifNoneMatch = HttpValidators.toIfNoneMatch(validators, hash);
+            ifModifiedSince = validators != null ? validators.getLastModified() : null;
+        }
+        
+        HttpURLConnection conn = null;
+        try {
+            conn = openProbe(url, "HEAD", ifNoneMatch, ifModifiedSince);
+            int code = conn.getResponseCode();
+            
+            // Some servers don't do HEAD, so ask for the file and hang up
+            // before the body arrives
+            if (code == 405 || code == 501) {
+                conn.disconnect();
+                conn = openProbe(url, "GET", ifNoneMatch, ifModifiedSince);
+                code = conn.getResponseCode();
+            }
+            
+            if (code == 304 && (ifNoneMatch != null || ifModifiedSince != null)) {
+                return NOT_MODIFIED;
+            } else if (code == 200) {
+                String length = conn.getHeaderField("Content-Length");
+                return length != null ? Long.parseLong(length.trim()) : -1;
+            } else {
+                return -1;
+            }
+        } catch (NumberFormatException e) {
+            return -1;
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to probe " + url, e);
+            return -1;
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * Open a connection for a probe.
+     * 
+     * @param url url
+     * @param method request method
+     * @param ifNoneMatch If-None-Match header, or null
+     * @param ifModifiedSince If-Modified-Since header, or null
+     * @return connection
+     * @throws IOException on I/O error
+     */
+    private HttpURLConnection openProbe(URL url, String method, String ifNoneMatch,
+            String ifModifiedSince) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod(method);
+        conn.setUseCaches(false);
+        conn.setConnectTimeout(PROBE_TIMEOUT);
+        conn.setReadTimeout(PROBE_TIMEOUT);
+        conn.setRequestProperty("Accept-Encoding", "identity");
+        if (ifNoneMatch != null) {
+            conn.setRequestProperty("If-None-Match", ifNoneMatch);
+        }
+        if (ifModifiedSince != null) {
+            conn.setRequestProperty("If-Modified-Since", ifModifiedSince);
+        }
+        return conn;
+    }
+    
+    /**
+     * Get the installed files that belong to files that are no longer in
+     * the package, according to the uninstall log.
+     * 
+     * @return set of paths relative to the installation
+     */
+    private Set<String> getRemovedPaths() {
+        UninstallLog oldLog = new UninstallLog();
+        try {
+            oldLog.read(new File(rootDir, UNINSTALL_LOG));
+        } catch (IOException e) {
+            return new TreeSet<String>();
+        }
+        
+        Set<String> groups = new HashSet<String>();
+        for (PackageFile file : fileList) {
+            groups.add(getRelative(rootDir, file.getFile()));
+        }
+        
+        // Assume that archives still hold the same files
+        Set<String> kept = new HashSet<String>(groups);
+        for (Entry<String, Set<String>> entry : oldLog.getEntrySet()) {
+            if (groups.contains(entry.getKey())) {
+                kept.addAll(entry.getValue());
+            }
+        }
+        
+        Set<String> removed = new TreeSet<String>();
+        for (Entry<String, Set<String>> entry : oldLog.getEntrySet()) {
+            for (String path : entry.getValue()) {
+                if (!kept.contains(path)) {
+                    removed.add(path);
+                }
+            }
+        }
+        return removed;
+    }
+    
     /**
      * Perform the update.
      * 
      * @throws UpdateException
      */
     public void performUpdate() throws UpdateException {
-        File logFile = new File(rootDir, "uninstall.dat");
+        File logFile = new File(rootDir, UNINSTALL_LOG);
+        String outcome = "failed";
+        metrics.register();
+        
+        if (fileList == null) {
+            fireStatusChange("Parsing package .xml...");
+            parsePackageFile();
+        }
         
-        fireStatusChange("Parsing package .xml...");
-        parsePackageFile();
+        // Skip the files that the plan found to be up-to-date
+        if (plan != null) {
+            for (PackageFile file : plan.getUnchangedFiles()) {
+                file.setIgnored(true);
+                totalEstimatedSize -= file.getTotalEstimatedSize();
+            }
+        }
+        
+        // Archives are checked as they are decompressed
+        if (isVerifying()) {
+            signatureVerifier = new SignatureVerifier(
+                    Launcher.getInstance().getKeyRing().getKeyStore(Ring.UPDATE));
+        }
+        
+        // Files are verified and staged while the rest download
+        downloadsFinished = false;
+        stagedCount.set(0);
+        stagingQueue = new StagingQueue(Math.max(stagingCapacity, stagingThreads),
+                stagingThreads, new StagingQueue.Stage() {
+            public void process(PackageFile file) throws UpdateException {
+                prepareFile(file);
+                stagedCount.incrementAndGet();
+                fireStagingValueChange();
+            }
+        });
+        stagingQueue.start();
         
         try {
             fireStatusChange("Downloading files...");
             setSubprogress(0, 0.8);
             downloadFiles();
             
+            fireStatusChange("Verifying signatures...");
+            setSubprogress(0.8, 0.1);
+            downloadsFinished = true;
+            fireStagingValueChange();
+            stagingQueue.finish();
+            
             UninstallLog oldLog = new UninstallLog();
             UninstallLog newLog = new UninstallLog();
             newLog.setBaseDir(rootDir);
@@ -481,10 +1826,6 @@ public class Updater implements DownloadListener {
             } catch (IOException e) {
             }
 
-            fireStatusChange("Verifying signatures...");
-            setSubprogress(0.8, 0.1);
-            verify();
-
             fireStatusChange("Installing...");
             setSubprogress(0.9, 0.1);
             deploy(newLog);
@@ -500,33 +1841,87 @@ public class Updater implements DownloadListener {
                 throw new UpdateException("The uninstall log file could not be written to. " +
                 		"The update has been aborted.", e);
             }
+            
+            outcome = "completed";
+        } catch (CancelledUpdateException e) {
+            outcome = "cancelled";
+            throw e;
         } finally {
+            writeMetrics(outcome);
+            if (trustCache != null) {
+                try {
+                    trustCache.write();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to write the trust cache", e);
+                }
+            }
+            
             // Cleanup
+            stagingQueue.abort();
             fireStatusChange("Cleaning up temporary files...");
             for (PackageFile file : fileList) {
-                File tempFile = file.getTempFile();
-                if (tempFile != null) {
-                    tempFile.delete();
-                }
+                file.deleteTempFiles();
             }
         }
     }
     
     /**
-     * Fires a status message for the currently downloading file.
+     * Write the metrics of the update to a file next to the uninstall log.
+     * 
+     * @param outcome how the update ended
+     */
+    private void writeMetrics(String outcome) {
+        metrics.finish(outcome);
+        File file = new File(rootDir, METRICS_FILE);
+        try {
+            metrics.write(file);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to write " + file, e);
+        }
+    }
+    
+    /**
+     * Fires a status message for a downloading file.
      * 
+     * @param file the file
      * @param message message to show
      */
-    private void fireDownloadStatusChange(String message) {
-        fireStatusChange(String.format("(%d/%d) %s: %s", currentIndex + 1,
-                fileList.size(), fileList.get(currentIndex).getFile().getName(), message));
+    private void fireDownloadStatusChange(PackageFile file, String message) {
+        Integer index = fileIndexes.get(file);
+        fireStatusChange(String.format("(%d/%d) %s: %s", index != null ? index + 1 : 0,
+                fileList.size(), file.getFile().getName(), message));
+    }
+    
+    /**
+     * Fires a value change for the overall download progress, which is made
+     * up of the completed files and the progress of the active downloads.
+     */
+    private void fireDownloadValueChange() {
+        double progress;
+        synchronized (this) {
+            progress = downloadedEstimatedSize;
+        }
+        
+        for (Map.Entry<Downloader, PackageFile> entry : activeDownloads.entrySet()) {
+            Downloader downloader = entry.getKey();
+            long total = downloader.getTotalLength();
+            if (total > 0) {
+                progress += entry.getValue().getTotalEstimatedSize() *
+                        Math.min(1, downloader.getDownloadedLength() / (double) total);
+            }
+        }
+        
+        fireAdjustedValueChange(progress / totalEstimatedSize);
     }
 
     /**
      * Called whenever a HTTP download connection is created.
      */
     public void connectionStarted(EventObject event) {
-        fireDownloadStatusChange("Connected.");
+        PackageFile file = activeDownloads.get(event.getSource());
+        if (file != null) {
+            fireDownloadStatusChange(file, "Connected.");
+        }
     }
 
     /**
@@ -539,19 +1934,39 @@ public class Updater implements DownloadListener {
      * Called when download progress is made.
      */
     public void downloadProgress(DownloadProgressEvent event) {
-        long total = ((Downloader) event.getSource()).getTotalLength();
-        PackageFile download = fileList.get(currentIndex);
+        // Progress is only published by the aggregator, once per tick
+        if (event.getSource() != progressAggregator) {
+            return;
+        }
+        
+        fireDownloadValueChange();
+        
+        // Show one of the active downloads along with how many there are
+        Downloader shown = null;
+        PackageFile shownFile = null;
+        int count = 0;
+        for (Map.Entry<Downloader, PackageFile> entry : activeDownloads.entrySet()) {
+            if (shown == null) {
+                shown = entry.getKey();
+                shownFile = entry.getValue();
+            }
+            count++;
+        }
+        
+        if (shown == null) {
+            return;
+        }
+        
+        long total = shown.getTotalLength();
+        String others = count > 1 ? String.format(" (%d files downloading)", count) : "";
         
         // If length is known
         if (total > 0) {
-            fireDownloadStatusChange(String.format("Downloaded %,d/%,d KB...",
-                    event.getDownloadedLength() / 1024, total / 1024));
-            fireAdjustedValueChange((downloadedEstimatedSize / (double) totalEstimatedSize) +
-                    (download.getTotalEstimatedSize() / (double) totalEstimatedSize) *
-                    (event.getDownloadedLength() / (double) total));
+            fireDownloadStatusChange(shownFile, String.format("Downloaded %,d/%,d KB...%s",
+                    shown.getDownloadedLength() / 1024, total / 1024, others));
         } else {
-            fireDownloadStatusChange(String.format("Downloaded %,d KB...",
-                    (event.getDownloadedLength() / 1024)));
+            fireDownloadStatusChange(shownFile, String.format("Downloaded %,d KB...%s",
+                    shown.getDownloadedLength() / 1024, others));
         }
     }
 
@@ -559,11 +1974,10 @@ public class Updater implements DownloadListener {
      * Called when a download completes.
      */
     public void downloadCompleted(EventObject event) {
-        PackageFile download = fileList.get(currentIndex);
-        
-        fireDownloadStatusChange("Download completed.");
-        fireAdjustedValueChange((downloadedEstimatedSize / (double) totalEstimatedSize) +
-                (download.getTotalEstimatedSize() / (double) totalEstimatedSize));
+        PackageFile file = activeDownloads.get(event.getSource());
+        if (file != null) {
+            fireDownloadStatusChange(file, "Download completed.");
+        }
     }
     
     /**
@@ -660,8 +2074,7 @@ public class Updater implements DownloadListener {
      */
     public void cancel() {
         running = false;
-        Downloader downloader = this.downloader;
-        if (downloader != null) {
+        for (Downloader downloader : activeDownloads.keySet()) {
             downloader.cancel();
         }
     }
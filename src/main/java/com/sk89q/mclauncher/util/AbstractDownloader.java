@@ -1,24 +1,43 @@
 package com.sk89q.mclauncher.util;
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.util.EventObject;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.swing.event.EventListenerList;
 
 import com.sk89q.mclauncher.DownloadListener;
-import com.sk89q.mclauncher.DownloadProgressEvent;
 
 public abstract class AbstractDownloader implements Downloader {
 
+    private static final Pattern contentRangePattern =
+            Pattern.compile("^bytes ([0-9]+)-([0-9]+)/([0-9]+|\\*)$", Pattern.CASE_INSENSITIVE);
+    
     private int timeout = 300000;
     private OutputStream output;
     private URL url;
     private volatile boolean running = true;
     private String etagCheck = null;
+    private HttpValidators conditional;
+    private volatile HttpValidators validators;
+    private long resumeOffset = 0;
+    private long resumeEnd = -1;
+    private String resumeEtag;
     private MessageDigest digest;
+    private BandwidthLimiter bandwidthLimiter;
     private EventListenerList listenerList = new EventListenerList();
+    private final DownloadTimings timings = new DownloadTimings();
 
     /**
      * Construct the downloader instance.
@@ -61,18 +80,6 @@ public abstract class AbstractDownloader implements Downloader {
         }
     }
 
-    /**
-     * Fire a download progress event.
-     * 
-     * @param downloaded number of bytes downloaded so far
-     */
-    protected void fireDownloadProgress(long downloaded) {
-        Object[] listeners = listenerList.getListenerList();
-        for (int i = listeners.length - 2; i >= 0; i -= 2) {
-            ((DownloadListener) listeners[i + 1]).downloadProgress(new DownloadProgressEvent(this, downloaded));
-        }
-    }
-
     /**
      * Fire a download completed event.
      */
@@ -123,6 +130,10 @@ public abstract class AbstractDownloader implements Downloader {
         this.digest = digest;
     }
 
+    public DownloadTimings getTimings() {
+        return timings;
+    }
+
     public EventListenerList getListenerList() {
         return listenerList;
     }
@@ -140,36 +151,265 @@ public abstract class AbstractDownloader implements Downloader {
         etagCheck = etag;
     }
 
+    public HttpValidators getConditional() {
+        return conditional;
+    }
+
+    public void setConditional(HttpValidators validators) {
+        conditional = validators;
+    }
+
+    public HttpValidators getValidators() {
+        return validators;
+    }
+
+    protected void setValidators(HttpValidators validators) {
+        this.validators = validators;
+    }
+    
+    /**
+     * Get the value of the If-None-Match header to send. This lists the
+     * ETag of the last response and the etag to check, if there are any.
+     * 
+     * @return header value, or null to not send one
+     */
+    protected String getIfNoneMatchHeader() {
+        return HttpValidators.toIfNoneMatch(conditional, etagCheck);
+    }
+    
+    /**
+     * Get the value of the If-Modified-Since header to send.
+     * 
+     * @return header value, or null to not send one
+     */
+    protected String getIfModifiedSinceHeader() {
+        return conditional != null ? conditional.getLastModified() : null;
+    }
+    
+    /**
+     * Returns whether the request is conditional, in which case the
+     * server may answer with a 304 Not Modified.
+     * 
+     * @return true if conditional
+     */
+    protected boolean isConditional() {
+        return getIfNoneMatchHeader() != null || getIfModifiedSinceHeader() != null;
+    }
+
     
     public void setMessageDigest(MessageDigest digest) {
         this.digest = digest;
     }
 
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    public void setBandwidthLimiter(BandwidthLimiter limiter) {
+        this.bandwidthLimiter = limiter;
+    }
+    
+    /**
+     * Wait until the bandwidth limiter, if any, allows more to be read.
+     * 
+     * @param len number of bytes that were just read
+     * @throws InterruptedIOException thrown if interrupted while waiting
+     */
+    protected void throttle(int len) throws InterruptedIOException {
+        BandwidthLimiter limiter = bandwidthLimiter;
+        if (limiter != null) {
+            limiter.acquire(len);
+        }
+    }
+
     
     public void cancel() {
         running = false;
     }
     
+    public void setResume(long offset, String etag) {
+        if (offset > 0 && etag != null) {
+            resumeOffset = offset;
+            resumeEtag = etag;
+        } else {
+            resumeOffset = 0;
+            resumeEtag = null;
+        }
+    }
+
+    /**
+     * Returns whether a partial download is to be resumed.
+     * 
+     * @return true if resuming
+     */
+    public boolean isResuming() {
+        return resumeOffset > 0;
+    }
+
+    public long getResumeOffset() {
+        return resumeOffset;
+    }
+
+    public String getResumeEtag() {
+        return resumeEtag;
+    }
+
     /**
-     * Used to fire periodical progress events.
+     * Set the last byte to fetch when resuming, so that only a range of
+     * the file is downloaded rather than the rest of it.
+     * 
+     * @param end last byte, inclusive, or -1 to fetch to the end
      */
-    protected class ProgressEventUpdater implements Runnable {
-        private volatile boolean running = true;
+    public void setResumeEnd(long end) {
+        resumeEnd = end;
+    }
+
+    /**
+     * Get the last byte to fetch when resuming.
+     * 
+     * @return last byte, inclusive, or -1 to fetch to the end
+     */
+    public long getResumeEnd() {
+        return resumeEnd;
+    }
+    
+    /**
+     * Get the path and query to put in the request line for a URL.
+     * 
+     * @param url the url
+     * @return request target
+     * @throws IOException thrown if the path can't be encoded
+     */
+    protected static String getRequestTarget(URL url) throws IOException {
+        String path = url.getPath().length() > 0 ? url.getPath() : "/";
+        try {
+            path = new URI(path).toASCIIString();
+        } catch (URISyntaxException e) {
+            throw new IOException("Failed to parse path", e);
+        }
+        return url.getQuery() != null ? path + "?" + url.getQuery() : path;
+    }
+    
+    /**
+     * Get the value of the Host header to send for a URL, which includes
+     * the port if it is not the default one.
+     * 
+     * @param url the url
+     * @return header value
+     */
+    protected static String getHostHeader(URL url) {
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            return url.getHost() + ":" + url.getPort();
+        }
+        return url.getHost();
+    }
+    
+    /**
+     * Get the value of the Range header to send when resuming.
+     * 
+     * @return header value
+     */
+    protected String getRangeHeader() {
+        return "bytes=" + resumeOffset + "-" + (resumeEnd >= 0 ? String.valueOf(resumeEnd) : "");
+    }
+
+    /**
+     * Get the value of the If-Range header to send when resuming.
+     * 
+     * @return header value
+     */
+    protected String getIfRangeHeader() {
+        return "\"" + resumeEtag + "\"";
+    }
+    
+    /**
+     * Check the Content-Range header of a 206 Partial Content response
+     * against the requested range.
+     * 
+     * @param value header value, possibly null
+     * @return the total length of the file, or -1 if not known
+     * @throws IOException thrown if the range is not the one requested
+     */
+    protected long checkContentRange(String value) throws IOException {
+        if (!isResuming()) {
+            throw new IOException("Got unexpected 206 code");
+        }
+        
+        Matcher m = contentRangePattern.matcher(value != null ? value.trim() : "");
+        if (!m.matches()) {
+            throw new ResumeRefusedException("Malformed Content-Range ('" + value + "')");
+        }
+        
+        if (Long.parseLong(m.group(1)) != resumeOffset) {
+            throw new ResumeRefusedException("Server sent range starting at " +
+                    m.group(1) + " rather than " + resumeOffset);
+        }
+        
+        if (resumeEnd >= 0 && Long.parseLong(m.group(2)) != resumeEnd) {
+            throw new ResumeRefusedException("Server sent range ending at " +
+                    m.group(2) + " rather than " + resumeEnd);
+        }
+        
+        return m.group(3).equals("*") ? -1 : Long.parseLong(m.group(3));
+    }
+    
+    /**
+     * Get a channel to write the body to. If the output is a plain
+     * {@link FileOutputStream}, its file channel is used, so that a direct
+     * buffer is written to the disk without being copied onto the heap.
+     * 
+     * @return channel
+     */
+    protected WritableByteChannel getOutputChannel() {
+        if (output instanceof FileOutputStream) {
+            return ((FileOutputStream) output).getChannel();
+        }
+        return Channels.newChannel(output);
+    }
+    
+    /**
+     * Feed bytes to the digest, if any, and then write them to the output.
+     * 
+     * @param data array with data
+     * @param len number of bytes at the start of the array
+     * @throws IOException on I/O error
+     */
+    protected void writeBody(byte[] data, int len) throws IOException {
+        if (digest != null) {
+            long start = System.nanoTime();
+            digest.update(data, 0, len);
+            timings.addDigestTime(System.nanoTime() - start);
+        }
         
+        output.write(data, 0, len);
+    }
+    
+    /**
+     * Feed the remaining bytes of a buffer to the digest, if any, and then
+     * write them out from the same buffer. This is for downloaders that
+     * read into a direct buffer; others should write byte arrays to a
+     * buffered stream with {@link #writeBody(byte[], int)}.
+     * 
+     * @param buffer buffer with data, which is empty afterwards
+     * @param channel channel to write to
+     * @return number of bytes written
+     * @throws IOException on I/O error
+     */
+    protected int writeBody(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        int len = buffer.remaining();
         
-        public void run() {
-            while (running) {
-                fireDownloadProgress(getDownloadedLength());
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    break;
-                }
-            }
+        if (digest != null) {
+            long start = System.nanoTime();
+            buffer.mark();
+            digest.update(buffer);
+            buffer.reset();
+            timings.addDigestTime(System.nanoTime() - start);
         }
         
-        public void stop() {
-            running = false;
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
         }
+        
+        return len;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,128 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that caps the combined transfer rate of any number of
+ * downloads. Each download takes tokens for the bytes that it has read and
+ * waits if it has taken more than the bucket held.
+ *
+ * <p>Instead of counting tokens, the bucket keeps the time at which it
+ * will next be full, which is moved forward with a compare-and-set for
+ * every read. No lock is taken, so downloads never wait on each other
+ * other than for the bandwidth itself.</p>
+ *
+ * @author sk89q
+ */
+public class BandwidthLimiter {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+    private final long burstNanos;
+    private volatile long bytesPerSecond;
+
+    /**
+     * Construct the limiter with a burst of a quarter second.
+     *
+     * @param bytesPerSecond rate in bytes per second, or 0 for no limit
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        this(bytesPerSecond, 250);
+    }
+
+    /**
+     * Construct the limiter.
+     *
+     * @param bytesPerSecond rate in bytes per second, or 0 for no limit
+     * @param burst time worth of bytes that may be read without waiting,
+     *              in milliseconds
+     */
+    public BandwidthLimiter(long bytesPerSecond, long burst) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        this.burstNanos = TimeUnit.MILLISECONDS.toNanos(burst);
+    }
+
+    /**
+     * Get the rate.
+     *
+     * @return bytes per second, or 0 for no limit
+     */
+    public long getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Set the rate. This takes effect on the next read.
+     *
+     * @param bytesPerSecond bytes per second, or 0 for no limit
+     */
+    public void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * Take tokens for bytes that were read, without waiting.
+     *
+     * @param bytes number of bytes
+     * @return nanoseconds to wait before reading more, or 0
+     */
+    public long reserve(int bytes) {
+        long rate = bytesPerSecond;
+        if (rate <= 0 || bytes <= 0) {
+            return 0;
+        }
+
+        long cost = bytes * NANOS_PER_SECOND / rate;
+
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long next = Math.max(current, now) + cost;
+
+            if (fullAt.compareAndSet(current, next)) {
+                return Math.max(0, next - now - burstNanos);
+            }
+        }
+    }
+
+    /**
+     * Take tokens for bytes that were read, and wait if the bucket has
+     * run dry.
+     *
+     * @param bytes number of bytes
+     * @throws InterruptedIOException thrown if interrupted while waiting
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        long wait = reserve(bytes);
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            }
+        }
+    }
+
+}
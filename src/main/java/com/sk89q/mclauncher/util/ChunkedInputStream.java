@@ -0,0 +1,150 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a HTTP/1.1 body sent with the chunked transfer encoding. The end
+ * of the stream is reached after the last chunk and its trailer have been
+ * read, which leaves the underlying connection positioned at the start of
+ * the next response. Closing this stream does not close the connection.
+ *
+ * @author sk89q
+ */
+public class ChunkedInputStream extends InputStream {
+
+    private final MixedDataBufferedInputStream in;
+    private long chunkRemaining = 0;
+    private boolean started = false;
+    private boolean eof = false;
+
+    /**
+     * Construct the stream.
+     *
+     * @param in the connection's input stream, positioned after the headers
+     */
+    public ChunkedInputStream(MixedDataBufferedInputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int len = read(b, 0, 1);
+        return len < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (chunkRemaining == 0 && !eof) {
+            nextChunk();
+        }
+
+        if (eof) {
+            return -1;
+        }
+
+        int read = in.read(b, off, (int) Math.min(len, chunkRemaining));
+        if (read < 0) {
+            throw new EOFException("Connection closed in the middle of a chunk");
+        }
+
+        chunkRemaining -= read;
+        return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return eof ? 0 : (int) Math.min(in.available(), chunkRemaining);
+    }
+
+    /**
+     * Read the next chunk header, and the trailer after the last chunk.
+     *
+     * @throws IOException on a malformed chunk
+     */
+    private void nextChunk() throws IOException {
+        // Every chunk but the first is followed by a CRLF
+        if (started && readLine().trim().length() != 0) {
+            throw new IOException("Missing CRLF after chunk");
+        }
+        started = true;
+
+        String line = readLine().trim();
+        int extensionIndex = line.indexOf(';');
+        if (extensionIndex != -1) {
+            line = line.substring(0, extensionIndex).trim();
+        }
+
+        try {
+            chunkRemaining = Long.parseLong(line, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed chunk size ('" + HttpResponseHead.dbgStr(line) + "')");
+        }
+
+        if (chunkRemaining < 0) {
+            throw new IOException("Malformed chunk size ('" + HttpResponseHead.dbgStr(line) + "')");
+        }
+
+        if (chunkRemaining == 0) {
+            // Skip the trailer
+            while (readLine().trim().length() != 0) {
+            }
+            eof = true;
+        }
+    }
+
+    /**
+     * Read a line of the chunk framing.
+     *
+     * @return line, with the line ending
+     * @throws IOException on I/O error or if the connection was closed
+     */
+    private String readLine() throws IOException {
+        String line = in.readLine();
+        if (!line.endsWith("\n")) {
+            throw new EOFException("Connection closed while reading chunk framing");
+        }
+        return line;
+    }
+
+    /**
+     * Returns whether the whole body has been read.
+     *
+     * @return true if the last chunk was read
+     */
+    public boolean isComplete() {
+        return eof;
+    }
+
+    /**
+     * Does not close the underlying connection.
+     */
+    @Override
+    public void close() {
+    }
+
+}
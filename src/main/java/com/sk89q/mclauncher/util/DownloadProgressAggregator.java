@@ -0,0 +1,177 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.event.EventListenerList;
+
+import com.sk89q.mclauncher.DownloadListener;
+import com.sk89q.mclauncher.DownloadProgressEvent;
+
+/**
+ * Samples the byte counters of any number of downloaders from one shared
+ * thread and publishes their progress at a fixed rate.
+ *
+ * <p>On every tick where any count has changed, one
+ * {@link DownloadProgressEvent} is fired with this aggregator as the source
+ * and the sum of all counts, so that listeners only do their work once per
+ * tick however many downloads are running.</p>
+ *
+ * @author sk89q
+ */
+public class DownloadProgressAggregator {
+
+    private static final Logger logger =
+            Logger.getLogger(DownloadProgressAggregator.class.getCanonicalName());
+
+    private final long interval;
+    private final ConcurrentMap<Downloader, Long> downloaders = new ConcurrentHashMap<Downloader, Long>();
+    private final EventListenerList listenerList = new EventListenerList();
+    private ScheduledExecutorService executor;
+
+    /**
+     * Construct the aggregator.
+     *
+     * @param interval time between ticks, in milliseconds
+     */
+    public DownloadProgressAggregator(long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * Register listener for progress events.
+     *
+     * @param l listener
+     */
+    public void addDownloadListener(DownloadListener l) {
+        listenerList.add(DownloadListener.class, l);
+    }
+
+    /**
+     * Unregister listener for progress events.
+     *
+     * @param l listener
+     */
+    public void removeDownloadListener(DownloadListener l) {
+        listenerList.remove(DownloadListener.class, l);
+    }
+
+    /**
+     * Start tracking a downloader.
+     *
+     * @param downloader downloader
+     */
+    public void add(Downloader downloader) {
+        downloaders.put(downloader, -1L);
+    }
+
+    /**
+     * Stop tracking a downloader.
+     *
+     * @param downloader downloader
+     */
+    public void remove(Downloader downloader) {
+        downloaders.remove(downloader);
+    }
+
+    /**
+     * Start publishing progress.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DownloadProgressAggregator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        executor.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    publish();
+                } catch (RuntimeException e) {
+                    // Keep going; an exception would cancel further ticks
+                    logger.log(Level.WARNING, "Failed to publish download progress", e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop publishing progress.
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Sample every downloader and fire an event if any of them changed.
+     */
+    private void publish() {
+        boolean changed = false;
+        long total = 0;
+
+        for (Map.Entry<Downloader, Long> entry : downloaders.entrySet()) {
+            Downloader downloader = entry.getKey();
+            long downloaded = downloader.getDownloadedLength();
+            total += downloaded;
+
+            // replace() won't add back a downloader that was just removed
+            if (downloaded != entry.getValue() &&
+                    downloaders.replace(downloader, entry.getValue(), downloaded)) {
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            fireDownloadProgress(total);
+        }
+    }
+
+    /**
+     * Fire a download progress event.
+     *
+     * @param downloaded number of bytes downloaded so far by all downloaders
+     */
+    private void fireDownloadProgress(long downloaded) {
+        Object[] listeners = listenerList.getListenerList();
+        for (int i = listeners.length - 2; i >= 0; i -= 2) {
+            ((DownloadListener) listeners[i + 1]).downloadProgress(
+                    new DownloadProgressEvent(this, downloaded));
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.mclauncher.util;
+
+/**
+ * Where the time of a download went: looking up the host, connecting,
+ * waiting for the response and calculating the digest.
+ *
+ * <p>All times are in nanoseconds, and are -1 if not known. Connecting is
+ * not timed for a connection that was reused. The lookup is part of the
+ * connect time for downloaders that can't time it on its own.</p>
+ *
+ * @author sk89q
+ */
+public class DownloadTimings {
+
+    private volatile long start;
+    private volatile long resolveTime = -1;
+    private volatile long connectTime = -1;
+    private volatile long firstByteTime = -1;
+    private volatile long digestTime = 0;
+
+    /**
+     * Reset the timings at the start of a request.
+     */
+    public void start() {
+        start = System.nanoTime();
+        resolveTime = -1;
+        connectTime = -1;
+        firstByteTime = -1;
+        digestTime = 0;
+    }
+
+    /**
+     * Get the time taken to look up the host.
+     *
+     * @return time in nanoseconds, or -1
+     */
+    public long getResolveTime() {
+        return resolveTime;
+    }
+
+    /**
+     * Set the time taken to look up the host.
+     *
+     * @param resolveTime time in nanoseconds
+     */
+    public void setResolveTime(long resolveTime) {
+        this.resolveTime = resolveTime;
+    }
+
+    /**
+     * Get the time taken to connect.
+     *
+     * @return time in nanoseconds, or -1
+     */
+    public long getConnectTime() {
+        return connectTime;
+    }
+
+    /**
+     * Set the time taken to connect.
+     *
+     * @param connectTime time in nanoseconds
+     */
+    public void setConnectTime(long connectTime) {
+        this.connectTime = connectTime;
+    }
+
+    /**
+     * Get the time from the start of the request until the response head
+     * arrived.
+     *
+     * @return time in nanoseconds, or -1
+     */
+    public long getFirstByteTime() {
+        return firstByteTime;
+    }
+
+    /**
+     * Record that the response head has arrived.
+     */
+    public void markFirstByte() {
+        if (firstByteTime == -1) {
+            firstByteTime = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Get the time spent calculating the digest of the file.
+     *
+     * @return time in nanoseconds
+     */
+    public long getDigestTime() {
+        return digestTime;
+    }
+
+    /**
+     * Add time spent calculating the digest. Only called by the thread
+     * that feeds the digest.
+     *
+     * @param time time in nanoseconds
+     */
+    public void addDigestTime(long time) {
+        digestTime += time;
+    }
+
+}
@@ -30,7 +30,9 @@ public interface Downloader {
     public abstract long getTotalLength();
 
     /**
-     * Get the total downloaded length of the file.
+     * Get the total downloaded length of the file. Progress is not fired
+     * as events; this counter can be polled instead, for example with a
+     * {@link DownloadProgressAggregator}.
      * 
      * @return length in bytes
      */
@@ -51,6 +53,34 @@ public interface Downloader {
      */
     public abstract void setEtagCheck(String etag);
 
+    /**
+     * Only download the file if it has changed since the response that the
+     * given validators came from. Its ETag is sent as If-None-Match and its
+     * date as If-Modified-Since. If the server returns a 304 Not Modified,
+     * then the download will not take place.
+     * 
+     * @param validators validators of an earlier response, or null to disable
+     */
+    public abstract void setConditional(HttpValidators validators);
+
+    /**
+     * Get the validators of the file that was downloaded.
+     * 
+     * @return validators, or null if not known
+     */
+    public abstract HttpValidators getValidators();
+
+    /**
+     * Continue a partial download. The rest of the file is requested from
+     * the given offset onwards, but only if the file on the server still
+     * has the given etag. If the server sends the whole file instead, a
+     * {@link ResumeRefusedException} is thrown before anything is written.
+     * 
+     * @param offset number of bytes already downloaded, or 0 to disable
+     * @param etag etag of the partially downloaded file, or null to disable
+     */
+    public abstract void setResume(long offset, String etag);
+
     /**
      * Set a message digest to calculate a digest with.
      * 
@@ -58,6 +88,13 @@ public interface Downloader {
      */
     public abstract void setMessageDigest(MessageDigest digest);
 
+    /**
+     * Set a limiter to share bandwidth with other downloads.
+     * 
+     * @param limiter limiter, or null to disable
+     */
+    public abstract void setBandwidthLimiter(BandwidthLimiter limiter);
+
     /**
      * Initiate and complete the download. Events will be fired appropriately
      * during this period.
@@ -67,6 +104,13 @@ public interface Downloader {
      */
     public abstract boolean download() throws IOException;
 
+    /**
+     * Get where the time of the last download went.
+     * 
+     * @return timings
+     */
+    public abstract DownloadTimings getTimings();
+
     /**
      * Cancel the download.
      */
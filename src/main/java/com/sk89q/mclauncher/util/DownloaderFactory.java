@@ -0,0 +1,48 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+import java.io.OutputStream;
+import java.net.URL;
+
+/**
+ * Creates {@link Downloader}s.
+ * 
+ * @author sk89q
+ */
+public interface DownloaderFactory {
+    
+    /**
+     * Returns whether downloaders from this factory can fetch the given URL.
+     * 
+     * @param url url
+     * @return true if supported
+     */
+    public boolean supports(URL url);
+
+    /**
+     * Create a downloader.
+     * 
+     * @param url url to download
+     * @param output output stream to write to
+     * @return downloader
+     */
+    public Downloader createDownloader(URL url, OutputStream output);
+
+}
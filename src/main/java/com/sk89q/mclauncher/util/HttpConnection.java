@@ -0,0 +1,190 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * A plain socket connection to a HTTP server that can be kept open and
+ * handed out again by a {@link HttpConnectionPool}.
+ * 
+ * @author sk89q
+ */
+public class HttpConnection {
+    
+    private static final int HTTP_LINE_BUFFER_SIZE = 1024 * 4;
+
+    private final String host;
+    private final int port;
+    private final Socket socket;
+    private final MixedDataBufferedInputStream in;
+    private final OutputStream out;
+    private long lastUsed = System.currentTimeMillis();
+    private boolean reused = false;
+    private final long resolveTime;
+    private final long connectTime;
+    
+    /**
+     * Open a new connection.
+     * 
+     * @param host host name
+     * @param port port
+     * @param timeout read timeout in milliseconds
+     * @throws IOException on I/O error
+     */
+    public HttpConnection(String host, int port, int timeout) throws IOException {
+        this.host = host;
+        this.port = port;
+        long start = System.nanoTime();
+        InetAddress address = InetAddress.getByName(host);
+        long resolved = System.nanoTime();
+        this.socket = new Socket(address, port);
+        this.resolveTime = resolved - start;
+        this.connectTime = System.nanoTime() - resolved;
+        socket.setSoTimeout(timeout);
+        socket.setTcpNoDelay(true);
+        this.in = new MixedDataBufferedInputStream(socket.getInputStream(), HTTP_LINE_BUFFER_SIZE);
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+    
+    /**
+     * Get the time taken to look up the host.
+     * 
+     * @return time in nanoseconds
+     */
+    public long getResolveTime() {
+        return resolveTime;
+    }
+    
+    /**
+     * Get the time taken to connect, after the host was looked up.
+     * 
+     * @return time in nanoseconds
+     */
+    public long getConnectTime() {
+        return connectTime;
+    }
+    
+    /**
+     * Get the host name.
+     * 
+     * @return host
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Get the port.
+     * 
+     * @return port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Get the underlying socket.
+     * 
+     * @return socket
+     */
+    public Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Get the buffered input stream. Response data that was read ahead
+     * is kept in this buffer, so it must be used for all reads.
+     * 
+     * @return input stream
+     */
+    public MixedDataBufferedInputStream getInputStream() {
+        return in;
+    }
+
+    /**
+     * Get the buffered output stream.
+     * 
+     * @return output stream
+     */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+    
+    /**
+     * Returns whether this connection was previously used for another
+     * request, in which case the server may have closed it in the meantime.
+     * 
+     * @return true if reused
+     */
+    public boolean isReused() {
+        return reused;
+    }
+
+    /**
+     * Mark the connection as having been handed out again.
+     * 
+     * @param timeout read timeout in milliseconds
+     * @throws IOException on I/O error
+     */
+    void reuse(int timeout) throws IOException {
+        reused = true;
+        socket.setSoTimeout(timeout);
+    }
+    
+    /**
+     * Get the time that the connection was last returned.
+     * 
+     * @return time in milliseconds
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Update the last used time.
+     */
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+    
+    /**
+     * Returns whether the socket is still open.
+     * 
+     * @return true if open
+     */
+    public boolean isOpen() {
+        return !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown();
+    }
+
+    /**
+     * Close the connection.
+     */
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+    
+}
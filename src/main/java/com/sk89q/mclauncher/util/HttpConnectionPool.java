@@ -0,0 +1,164 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Keeps idle HTTP/1.1 connections open so that they can be reused for
+ * later requests to the same host.
+ * 
+ * @author sk89q
+ */
+public class HttpConnectionPool {
+    
+    private final Map<String, LinkedList<HttpConnection>> idle =
+            new HashMap<String, LinkedList<HttpConnection>>();
+    private final int maxConnections;
+    private final long idleTimeout;
+    private boolean closed = false;
+    
+    /**
+     * Construct the pool.
+     * 
+     * @param maxConnections maximum number of idle connections kept per host
+     * @param idleTimeout time in milliseconds after which an idle
+     *            connection is closed
+     */
+    public HttpConnectionPool(int maxConnections, long idleTimeout) {
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout;
+    }
+    
+    /**
+     * Get the key for a given host.
+     * 
+     * @param host host
+     * @param port port
+     * @return key
+     */
+    private static String getKey(String host, int port) {
+        return host.toLowerCase() + ":" + port;
+    }
+    
+    /**
+     * Get an open connection to the given host, reusing an idle connection
+     * if one is available.
+     * 
+     * @param host host name
+     * @param port port
+     * @param timeout read timeout in milliseconds
+     * @return connection
+     * @throws IOException on I/O error
+     */
+    public HttpConnection acquire(String host, int port, int timeout) throws IOException {
+        HttpConnection conn = null;
+        
+        synchronized (this) {
+            LinkedList<HttpConnection> connections = idle.get(getKey(host, port));
+            long now = System.currentTimeMillis();
+            
+            while (connections != null && !connections.isEmpty()) {
+                HttpConnection candidate = connections.removeFirst();
+                if (candidate.isOpen() && now - candidate.getLastUsed() < idleTimeout) {
+                    conn = candidate;
+                    break;
+                }
+                candidate.close();
+            }
+        }
+        
+        if (conn != null) {
+            conn.reuse(timeout);
+            return conn;
+        }
+        
+        return new HttpConnection(host, port, timeout);
+    }
+    
+    /**
+     * Return a connection whose response has been fully read back to
+     * the pool.
+     * 
+     * @param conn connection
+     */
+    public void release(HttpConnection conn) {
+        if (!conn.isOpen()) {
+            return;
+        }
+        
+        conn.touch();
+        
+        synchronized (this) {
+            if (!closed) {
+                String key = getKey(conn.getHost(), conn.getPort());
+                LinkedList<HttpConnection> connections = idle.get(key);
+                if (connections == null) {
+                    connections = new LinkedList<HttpConnection>();
+                    idle.put(key, connections);
+                }
+                
+                evictExpired(connections);
+                
+                if (connections.size() < maxConnections) {
+                    connections.addFirst(conn);
+                    return;
+                }
+            }
+        }
+        
+        conn.close();
+    }
+    
+    /**
+     * Close connections that have been idle for too long.
+     * 
+     * @param connections list of connections
+     */
+    private void evictExpired(LinkedList<HttpConnection> connections) {
+        long now = System.currentTimeMillis();
+        Iterator<HttpConnection> it = connections.iterator();
+        while (it.hasNext()) {
+            HttpConnection conn = it.next();
+            if (!conn.isOpen() || now - conn.getLastUsed() >= idleTimeout) {
+                conn.close();
+                it.remove();
+            }
+        }
+    }
+    
+    /**
+     * Close all idle connections. Connections released afterwards are
+     * closed immediately.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (LinkedList<HttpConnection> connections : idle.values()) {
+            for (HttpConnection conn : connections) {
+                conn.close();
+            }
+        }
+        idle.clear();
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The status line and headers of a HTTP response.
+ *
+ * @author sk89q
+ */
+public class HttpResponseHead {
+
+    private static final Pattern statusPattern = Pattern.compile("^HTTP/([0-9\\.]+) ([0-9]+)(?: (.*))?$");
+
+    private final String version;
+    private final int code;
+    private final Map<String, String> headers = new HashMap<String, String>();
+
+    /**
+     * Construct from a status line.
+     *
+     * @param statusLine the first line of the response
+     * @throws IOException thrown on a malformed status line
+     */
+    public HttpResponseHead(String statusLine) throws IOException {
+        Matcher m = statusPattern.matcher(statusLine.trim());
+        if (!m.matches()) {
+            throw new IOException("HTTP status line was unexpected ('" + dbgStr(statusLine) + "')");
+        }
+
+        version = m.group(1);
+        if (!version.equals("0.9") && !version.equals("1.0") && !version.equals("1.1")) {
+            throw new IOException("Unsupported HTTP version from server ('" + dbgStr(version) + "')");
+        }
+
+        code = Integer.parseInt(m.group(2));
+    }
+
+    /**
+     * Parse a complete response head, with lines separated by CRLF.
+     *
+     * @param head the response head
+     * @return parsed head
+     * @throws IOException thrown on a malformed response
+     */
+    public static HttpResponseHead parse(String head) throws IOException {
+        String[] lines = head.split("\r?\n");
+        HttpResponseHead response = new HttpResponseHead(lines[0]);
+        for (int i = 1; i < lines.length; i++) {
+            if (lines[i].trim().length() > 0) {
+                response.addHeader(lines[i]);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Shorten a string for an error message.
+     *
+     * @param s string
+     * @return string
+     */
+    static String dbgStr(String s) {
+        if (s.length() < 200) {
+            return s;
+        } else {
+            return "<string too long>";
+        }
+    }
+
+    /**
+     * Add a header line.
+     *
+     * @param line line in the form of "Key: value"
+     * @throws IOException thrown on a malformed line
+     */
+    public void addHeader(String line) throws IOException {
+        int colonIndex = line.indexOf(':');
+        if (colonIndex == -1) {
+            throw new IOException("Malformed HTTP response header ('" + dbgStr(line) + "')");
+        }
+        String key = line.substring(0, colonIndex).trim().toLowerCase(); // SHOULD decode this, but we won't
+        String value = line.substring(colonIndex + 1).trim(); // SHOULD decode this, but we won't
+
+        String existing = headers.get(key);
+        headers.put(key, existing != null ? existing + ", " + value : value);
+    }
+
+    /**
+     * Get the HTTP version of the response.
+     *
+     * @return version, such as "1.1"
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the status code.
+     *
+     * @return code
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Get a header.
+     *
+     * @param key case-insensitive name
+     * @return value or null
+     */
+    public String getHeader(String key) {
+        return headers.get(key.toLowerCase());
+    }
+
+    /**
+     * Get the Content-Length header.
+     *
+     * @return length, or -1 if not given
+     */
+    public long getContentLength() {
+        String value = getHeader("Content-Length");
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the strong etag, without quotes.
+     *
+     * @return etag, or null if not given or if it is a weak etag
+     */
+    public String getEtag() {
+        String value = getHeader("Etag");
+        if (value == null || value.startsWith("W/") || value.length() <= 2) {
+            return null;
+        }
+        return value.substring(1, value.length() - 1);
+    }
+
+    /**
+     * Returns whether the body is sent with a transfer encoding other than
+     * identity.
+     *
+     * @return true if encoded
+     */
+    public boolean isTransferEncoded() {
+        String value = getHeader("Transfer-Encoding");
+        return value != null && !value.equalsIgnoreCase("identity");
+    }
+
+    /**
+     * Returns whether the body is sent with the chunked transfer encoding
+     * and no other.
+     *
+     * @return true if chunked
+     */
+    public boolean isChunked() {
+        String value = getHeader("Transfer-Encoding");
+        return value != null && value.equalsIgnoreCase("chunked");
+    }
+
+    /**
+     * Returns whether the response is a redirect to another location.
+     *
+     * @return true if a redirect
+     */
+    public boolean isRedirect() {
+        return (code == 301 || code == 302 || code == 303 || code == 307 || code == 308)
+                && getHeader("Location") != null;
+    }
+
+    /**
+     * Returns whether the server will keep the connection open after
+     * this response.
+     *
+     * @return true if the connection can be reused
+     */
+    public boolean isKeepAlive() {
+        String value = getHeader("Connection");
+        if (value != null && value.equalsIgnoreCase("close")) {
+            return false;
+        } else if (value != null && value.equalsIgnoreCase("keep-alive")) {
+            return true;
+        }
+        return version.equals("1.1");
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+/**
+ * The headers of a response that identify the version of a file, which can
+ * be sent back in a later request to only get the file if it has changed.
+ *
+ * <p>The ETag is kept exactly as the server sent it, quotes and weak
+ * prefix included, because that is the form it has to be sent back in.</p>
+ *
+ * @author sk89q
+ */
+public class HttpValidators {
+
+    private final String etag;
+    private final String lastModified;
+    private final long contentLength;
+
+    /**
+     * Construct the validators.
+     *
+     * @param etag ETag header, or null
+     * @param lastModified Last-Modified header, or null
+     * @param contentLength length of the whole file, or -1 if not known
+     */
+    public HttpValidators(String etag, String lastModified, long contentLength) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * Get the ETag header.
+     *
+     * @return etag, or null
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * Get the Last-Modified header.
+     *
+     * @return date, or null
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Get the length of the whole file.
+     *
+     * @return length in bytes, or -1 if not known
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Returns whether there is anything that a request can be made
+     * conditional on.
+     *
+     * @return true if there is an ETag or a Last-Modified date
+     */
+    public boolean isUsable() {
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * Make the value of an If-None-Match header that lists the ETag of the
+     * given validators and another strong etag, if there are any.
+     *
+     * @param validators validators, or null
+     * @param strongEtag etag without quotes, or null
+     * @return header value, or null to not send one
+     */
+    public static String toIfNoneMatch(HttpValidators validators, String strongEtag) {
+        String etag = validators != null ? validators.getEtag() : null;
+        String quoted = strongEtag != null ? "\"" + strongEtag + "\"" : null;
+
+        if (etag == null) {
+            return quoted;
+        } else if (quoted == null || quoted.equals(etag)) {
+            return etag;
+        } else {
+            return etag + ", " + quoted;
+        }
+    }
+
+}
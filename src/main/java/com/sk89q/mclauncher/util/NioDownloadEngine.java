@@ -0,0 +1,222 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drives many HTTP downloads from a single thread using a {@link Selector}.
+ * Downloaders created by this engine hand their transfer over to the
+ * engine's thread and only wait for it to complete, so no socket or
+ * progress thread is needed per download.
+ *
+ * <p>Only plain HTTP is supported. Output is written on the engine's
+ * thread, so it should go to a stream that doesn't block, such as a
+ * file.</p>
+ *
+ * @author sk89q
+ */
+public class NioDownloadEngine implements DownloaderFactory {
+
+    private static final Logger logger = Logger.getLogger(NioDownloadEngine.class.getCanonicalName());
+    private static final int READ_BUFFER_SIZE = 1024 * 32;
+    private static final long SELECT_TIMEOUT = 100;
+
+    private final Queue<NioDownloader> pending = new ConcurrentLinkedQueue<NioDownloader>();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running = false;
+    private boolean closed = false;
+
+    public boolean supports(URL url) {
+        return url.getProtocol().equalsIgnoreCase("http");
+    }
+
+    public Downloader createDownloader(URL url, OutputStream output) {
+        return new NioDownloader(this, url, output);
+    }
+
+    /**
+     * Start the engine thread if it is not yet running.
+     *
+     * @throws IOException thrown if the selector cannot be opened
+     */
+    private synchronized void start() throws IOException {
+        if (closed) {
+            throw new IOException("The download engine has been shut down");
+        }
+
+        if (thread != null) {
+            return;
+        }
+
+        selector = Selector.open();
+        running = true;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    loop();
+                } finally {
+                    shutdownTransfers();
+                }
+            }
+        }, "NioDownloadEngine");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a transfer to be started by the engine thread.
+     *
+     * @param downloader the downloader
+     * @throws IOException thrown if the engine is shut down
+     */
+    void submit(NioDownloader downloader) throws IOException {
+        synchronized (this) {
+            start();
+            pending.add(downloader);
+        }
+        wakeup();
+    }
+
+    /**
+     * Wake up the engine thread so that it notices new or cancelled
+     * transfers right away.
+     */
+    void wakeup() {
+        Selector selector = this.selector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Stop the engine thread. Transfers that are still running fail.
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            running = false;
+            thread = this.thread;
+        }
+
+        if (thread != null) {
+            wakeup();
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    /**
+     * The main loop of the engine thread.
+     */
+    private void loop() {
+        Set<NioDownloader> active = new HashSet<NioDownloader>();
+
+        while (running) {
+            try {
+                selector.select(SELECT_TIMEOUT);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Selector failed", e);
+                break;
+            }
+
+            // Start new transfers
+            NioDownloader downloader;
+            while ((downloader = pending.poll()) != null) {
+                try {
+                    downloader.register(selector);
+                    active.add(downloader);
+                } catch (IOException e) {
+                    downloader.fail(e);
+                }
+            }
+
+            // Move the transfers along
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                downloader = (NioDownloader) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        downloader.handle(key, buffer);
+                    }
+                } catch (IOException e) {
+                    downloader.fail(e);
+                }
+            }
+
+            // Timeouts and cancellation
+            long now = System.currentTimeMillis();
+            List<NioDownloader> finished = new ArrayList<NioDownloader>();
+            for (NioDownloader transfer : active) {
+                transfer.tick(now);
+                if (transfer.isDone()) {
+                    finished.add(transfer);
+                }
+            }
+            active.removeAll(finished);
+        }
+
+        for (NioDownloader remaining : active) {
+            remaining.fail(new IOException("The download engine was shut down"));
+        }
+    }
+
+    /**
+     * Fail the transfers that never started and close the selector.
+     */
+    private void shutdownTransfers() {
+        synchronized (this) {
+            running = false;
+            closed = true;
+
+            NioDownloader downloader;
+            while ((downloader = pending.poll()) != null) {
+                downloader.fail(new IOException("The download engine was shut down"));
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+        }
+    }
+
+}
@@ -0,0 +1,452 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+
+import com.sk89q.mclauncher.Launcher;
+
+/**
+ * A HTTP/1.0 download that is carried out by a {@link NioDownloadEngine}.
+ * Apart from {@link #download()}, which only waits for the transfer, all
+ * the work is done on the engine's thread.
+ *
+ * @author sk89q
+ */
+public class NioDownloader extends AbstractDownloader {
+
+    private static final int MAX_HEAD_SIZE = 1024 * 64;
+
+    private final NioDownloadEngine engine;
+    private volatile long length = -1;
+    private volatile long readLength;
+    private volatile String etag;
+
+    // Used by the engine thread only
+    private InetSocketAddress address;
+    private long connectStart;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer request;
+    private ByteArrayOutputStream head;
+    private WritableByteChannel out;
+    private long contentLength;
+    private long bodyRead;
+    private long lastActivity;
+    private boolean receivingBody;
+    private long pausedUntil;
+
+    private CountDownLatch done;
+    private volatile boolean finished;
+    private volatile boolean notModified;
+    private volatile IOException error;
+
+    /**
+     * Construct the downloader instance.
+     *
+     * @param engine the engine to run on
+     * @param url url to download
+     * @param output output stream to write to
+     */
+    NioDownloader(NioDownloadEngine engine, URL url, OutputStream output) {
+        super(url, output);
+        this.engine = engine;
+    }
+
+    public long getTotalLength() {
+        return length;
+    }
+
+    public long getDownloadedLength() {
+        return readLength;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public void cancel() {
+        super.cancel();
+        engine.wakeup();
+    }
+
+    public boolean download() throws IOException {
+        length = -1;
+        readLength = 0;
+        finished = false;
+        notModified = false;
+        error = null;
+        setValidators(null);
+
+        int port = getUrl().getPort();
+        if (port == -1) port = getUrl().getDefaultPort();
+        if (port == -1) port = 80;
+
+        // Resolve here so that DNS lookups never block the engine thread
+        getTimings().start();
+        long resolveStart = System.nanoTime();
+        address = new InetSocketAddress(getUrl().getHost(), port);
+        getTimings().setResolveTime(System.nanoTime() - resolveStart);
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(getUrl().getHost());
+        }
+
+        request = ByteBuffer.wrap(buildRequest().getBytes("US-ASCII"));
+        head = new ByteArrayOutputStream();
+        out = getOutputChannel();
+        contentLength = -1;
+        bodyRead = 0;
+        receivingBody = false;
+        pausedUntil = 0;
+        done = new CountDownLatch(1);
+
+        engine.submit(this);
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                // Stop the transfer, but wait until the engine lets go of
+                // the output stream
+                interrupted = true;
+                cancel();
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading");
+        }
+
+        if (error != null) {
+            throw error;
+        }
+
+        if (notModified) {
+            return false;
+        }
+
+        if (isRunning()) {
+            fireDownloadCompleted();
+        }
+
+        getOutput().close();
+
+        return true;
+    }
+
+    /**
+     * Build the request.
+     *
+     * @return request text
+     * @throws IOException on a bad URL
+     */
+    private String buildRequest() throws IOException {
+        StringBuilder s = new StringBuilder();
+        s.append("GET ").append(getRequestTarget(getUrl())).append(" HTTP/1.0\r\n");
+        s.append("Host: ").append(getHostHeader(getUrl())).append("\r\n");
+        s.append("User-Agent: SKMCLauncher/").append(Launcher.VERSION).append("\r\n");
+        s.append("Accept: */*\r\n");
+        if (getIfNoneMatchHeader() != null) {
+            s.append("If-None-Match: ").append(getIfNoneMatchHeader()).append("\r\n");
+        }
+        if (getIfModifiedSinceHeader() != null) {
+            s.append("If-Modified-Since: ").append(getIfModifiedSinceHeader()).append("\r\n");
+        }
+        if (isResuming()) {
+            s.append("Range: ").append(getRangeHeader()).append("\r\n");
+            s.append("If-Range: ").append(getIfRangeHeader()).append("\r\n");
+        }
+        s.append("Connection: close\r\n");
+        s.append("\r\n");
+        return s.toString();
+    }
+
+    /**
+     * Open the connection and register it with the selector. Called on
+     * the engine thread.
+     *
+     * @param selector selector
+     * @throws IOException on I/O error
+     */
+    void register(Selector selector) throws IOException {
+        lastActivity = System.currentTimeMillis();
+        connectStart = System.nanoTime();
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        boolean connected = channel.connect(address);
+        key = channel.register(selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+        if (connected) {
+            getTimings().setConnectTime(System.nanoTime() - connectStart);
+            fireConnectionStarted();
+        }
+    }
+
+    /**
+     * Handle a ready key. Called on the engine thread.
+     *
+     * @param key key
+     * @param buffer shared buffer to read into
+     * @throws IOException on I/O error
+     */
+    void handle(SelectionKey key, ByteBuffer buffer) throws IOException {
+        lastActivity = System.currentTimeMillis();
+
+        if (key.isConnectable()) {
+            if (channel.finishConnect()) {
+                getTimings().setConnectTime(System.nanoTime() - connectStart);
+                key.interestOps(SelectionKey.OP_WRITE);
+                fireConnectionStarted();
+            }
+        } else if (key.isWritable()) {
+            channel.write(request);
+            if (!request.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } else if (key.isReadable()) {
+            buffer.clear();
+            int len = channel.read(buffer);
+
+            if (len < 0) {
+                if (!receivingBody) {
+                    throw new IOException("Connection closed before a response was received");
+                } else if (contentLength >= 0 && bodyRead < contentLength) {
+                    throw new IOException("Connection closed after " + bodyRead +
+                            " of " + contentLength + " bytes");
+                }
+                finish();
+                return;
+            }
+
+            buffer.flip();
+
+            if (!receivingBody) {
+                readHead(buffer);
+            }
+
+            if (receivingBody && !finished) {
+                readBody(buffer);
+            }
+        }
+    }
+
+    /**
+     * Collect the response head and act on it once it is complete.
+     *
+     * @param buffer buffer with data, positioned after the head once done
+     * @throws IOException on I/O error
+     */
+    private void readHead(ByteBuffer buffer) throws IOException {
+        int scanFrom = Math.max(0, head.size() - 3);
+        byte[] chunk = new byte[buffer.remaining()];
+        buffer.get(chunk);
+        head.write(chunk, 0, chunk.length);
+
+        byte[] data = head.toByteArray();
+        for (int i = scanFrom; i <= data.length - 4; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+                // Leave whatever came after the head in the buffer
+                buffer.position(buffer.limit() - (data.length - (i + 4)));
+                startBody(HttpResponseHead.parse(new String(data, 0, i, "ISO-8859-1")));
+                return;
+            }
+        }
+
+        if (data.length > MAX_HEAD_SIZE) {
+            throw new IOException("HTTP response head is too long");
+        }
+    }
+
+    /**
+     * Check the response head and prepare to receive the body.
+     *
+     * @param response the response head
+     * @throws IOException on an unacceptable response
+     */
+    private void startBody(HttpResponseHead response) throws IOException {
+        getTimings().markFirstByte();
+        int code = response.getCode();
+        etag = response.getEtag();
+
+        if (code == 304) {
+            if (!isConditional()) {
+                throw new IOException("Got unexpected 304 code");
+            }
+            notModified = true;
+            finish();
+            return;
+        } else if (code == 416 && isResuming()) {
+            throw new ResumeRefusedException("Server could not satisfy the range request");
+        } else if (code == 200 && isResuming()) {
+            throw new ResumeRefusedException("Server sent the whole file instead of the requested range");
+        } else if (code != 200 && code != 206) {
+            throw new IOException("Server did not give a 200 'EVERYTHING OK' code (server gave code " + code + " instead)");
+        }
+
+        if (response.isTransferEncoded()) {
+            throw new IOException("Unsupported transfer encoding from server ('" +
+                    HttpResponseHead.dbgStr(response.getHeader("Transfer-Encoding")) + "')");
+        }
+
+        contentLength = response.getContentLength();
+
+        // Partial content continues where the last download left off
+        if (code == 206) {
+            length = checkContentRange(response.getHeader("Content-Range"));
+            readLength = getResumeOffset();
+
+            if (!getResumeEtag().equals(etag)) {
+                throw new ResumeRefusedException("Server sent a range of a different file");
+            }
+        } else {
+            length = contentLength;
+        }
+
+        setValidators(new HttpValidators(response.getHeader("ETag"),
+                response.getHeader("Last-Modified"), length));
+
+        receivingBody = true;
+        fireLengthKnown();
+
+        if (contentLength == 0) {
+            finish();
+        }
+    }
+
+    /**
+     * Write body data to the output.
+     *
+     * @param buffer buffer with data
+     * @throws IOException on I/O error
+     */
+    private void readBody(ByteBuffer buffer) throws IOException {
+        if (contentLength >= 0) {
+            long remaining = contentLength - bodyRead;
+            if (buffer.remaining() > remaining) {
+                buffer.limit(buffer.position() + (int) remaining);
+            }
+        }
+
+        int len = writeBody(buffer, out);
+        bodyRead += len;
+        readLength += len;
+
+        if (contentLength >= 0 && bodyRead >= contentLength) {
+            finish();
+            return;
+        }
+
+        // Stop reading until the limiter has tokens again; the engine
+        // thread can't sleep as it serves every other transfer too
+        BandwidthLimiter limiter = getBandwidthLimiter();
+        if (limiter != null) {
+            long wait = limiter.reserve(len);
+            if (wait > 0) {
+                key.interestOps(0);
+                pausedUntil = System.nanoTime() + wait;
+            }
+        }
+    }
+
+    /**
+     * Check for cancellation and time outs, and continue reading once a
+     * pause for the bandwidth limiter is over. Called on the engine thread.
+     *
+     * @param now the current time
+     */
+    void tick(long now) {
+        if (finished) {
+            return;
+        }
+
+        if (!isRunning()) {
+            finish();
+        } else if (pausedUntil != 0) {
+            if (System.nanoTime() - pausedUntil >= 0) {
+                pausedUntil = 0;
+                lastActivity = now;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } else if (now - lastActivity > getTimeout()) {
+            fail(new SocketTimeoutException("Read timed out"));
+        }
+    }
+
+    /**
+     * Returns whether the transfer has ended.
+     *
+     * @return true if done
+     */
+    boolean isDone() {
+        return finished;
+    }
+
+    /**
+     * End the transfer with an error.
+     *
+     * @param e the error
+     */
+    void fail(IOException e) {
+        if (!finished) {
+            error = e;
+            finish();
+        }
+    }
+
+    /**
+     * End the transfer and wake up {@link #download()}.
+     */
+    private void finish() {
+        if (finished) {
+            return;
+        }
+
+        finished = true;
+
+        if (key != null) {
+            key.cancel();
+        }
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+
+        done.countDown();
+    }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a partial download could not be resumed because the server
+ * does not support ranges or the file has changed. Nothing has been written
+ * to the output when this is thrown, and the download has to be restarted
+ * from the beginning.
+ * 
+ * @author sk89q
+ */
+public class ResumeRefusedException extends IOException {
+
+    private static final long serialVersionUID = 4180925447263413364L;
+
+    public ResumeRefusedException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,506 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads a large file over several connections at once, with each
+ * connection fetching a different byte range straight into its place in
+ * the target file. If the server does not support ranges, or the file is
+ * too small to be worth splitting, the file is downloaded over a single
+ * connection.
+ *
+ * <p>If a {@link HttpConnectionPool} is set, the other segments of a plain
+ * HTTP download are fetched over pooled connections, which are given back
+ * to the pool for later downloads.</p>
+ *
+ * <p>This downloader writes to a file rather than to an output stream, and
+ * partial downloads cannot be resumed with
+ * {@link #setResume(long, String)}.</p>
+ *
+ * @author sk89q
+ */
+public class SegmentedDownloader extends AbstractDownloader {
+
+    /**
+     * The smallest size of a segment, unless it is changed with
+     * {@link #setMinSegmentSize(long)}.
+     */
+    public static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 1024 * 16;
+    private static final Pattern contentRangePattern =
+            Pattern.compile("^bytes ([0-9]+)-([0-9]+)/([0-9]+)$", Pattern.CASE_INSENSITIVE);
+
+    private final File file;
+    private int segments = 4;
+    private long minSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+    private long length = -1;
+    private final AtomicLong readLength = new AtomicLong();
+    private String etag;
+    private final List<HttpURLConnection> connections = new ArrayList<HttpURLConnection>();
+    private final List<Downloader> segmentDownloaders = new ArrayList<Downloader>();
+    private HttpConnectionPool pool;
+
+    /**
+     * Construct the downloader instance.
+     *
+     * @param url url to download
+     * @param file file to write to
+     */
+    public SegmentedDownloader(URL url, File file) {
+        super(url, null);
+        this.file = file;
+    }
+
+    /**
+     * Get the maximum number of connections to use.
+     *
+     * @return number of segments
+     */
+    public int getSegments() {
+        return segments;
+    }
+
+    /**
+     * Set the maximum number of connections to use.
+     *
+     * @param segments number of segments
+     */
+    public void setSegments(int segments) {
+        this.segments = Math.max(1, segments);
+    }
+
+    /**
+     * Set the connection pool to fetch the other segments with.
+     *
+     * @param pool pool, or null to open a new connection for each segment
+     */
+    public void setConnectionPool(HttpConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Get the smallest size of a segment. Files smaller than twice this
+     * size are not split.
+     *
+     * @return size in bytes
+     */
+    public long getMinSegmentSize() {
+        return minSegmentSize;
+    }
+
+    /**
+     * Set the smallest size of a segment.
+     *
+     * @param minSegmentSize size in bytes
+     */
+    public void setMinSegmentSize(long minSegmentSize) {
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    public long getTotalLength() {
+        return length;
+    }
+
+    public long getDownloadedLength() {
+        return readLength.get();
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public void cancel() {
+        super.cancel();
+        synchronized (connections) {
+            for (HttpURLConnection conn : connections) {
+                conn.disconnect();
+            }
+            for (Downloader downloader : segmentDownloaders) {
+                downloader.cancel();
+            }
+        }
+    }
+
+    /**
+     * Open a connection for the given range.
+     *
+     * @param range value of the Range header
+     * @param ifRange value of the If-Range header, or null
+     * @return connection
+     * @throws IOException on I/O error
+     */
+    private HttpURLConnection openConnection(String range, String ifRange) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) getUrl().openConnection();
+        conn.setRequestMethod("GET");
+        conn.setReadTimeout(getTimeout());
+        conn.setRequestProperty("Range", range);
+        if (ifRange != null) {
+            conn.setRequestProperty("If-Range", ifRange);
+        }
+
+        synchronized (connections) {
+            connections.add(conn);
+        }
+
+        return conn;
+    }
+
+    public boolean download() throws IOException {
+        RandomAccessFile raf = null;
+        HttpURLConnection conn = null;
+        ExecutorService executor = null;
+        readLength.set(0);
+        length = -1;
+        setValidators(null);
+        getTimings().start();
+
+        try {
+            // The first request asks for the whole file, and its response
+            // tells us whether ranges are supported and how long the file is
+            conn = openConnection("bytes=0-", null);
+            if (getIfNoneMatchHeader() != null) {
+                conn.setRequestProperty("If-None-Match", getIfNoneMatchHeader());
+            }
+            if (getIfModifiedSinceHeader() != null) {
+                conn.setRequestProperty("If-Modified-Since", getIfModifiedSinceHeader());
+            }
+            long connectStart = System.nanoTime();
+            conn.connect();
+            getTimings().setConnectTime(System.nanoTime() - connectStart);
+
+            int code = conn.getResponseCode();
+            getTimings().markFirstByte();
+            if (code == 304) {
+                if (!isConditional()) {
+                    throw new IOException("Got unexpected 304 code");
+                }
+                return false;
+            } else if (code != 200 && code != 206) {
+                throw new IOException("Did not get expected 200 code");
+            }
+
+            fireConnectionStarted();
+
+            // Get etag
+            etag = conn.getHeaderField("Etag");
+            if (etag != null) {
+                if (etag.startsWith("W/")) {
+                    etag = null;
+                } else {
+                    etag = etag.substring(1, etag.length() - 1);
+                }
+            }
+
+            if (code == 206) {
+                Matcher m = contentRangePattern.matcher(
+                        Util.defaultValue(conn.getHeaderField("Content-Range"), "").trim());
+                if (!m.matches() || Long.parseLong(m.group(1)) != 0) {
+                    throw new IOException("Unexpected Content-Range from server");
+                }
+                length = Long.parseLong(m.group(3));
+            } else {
+                String s = conn.getHeaderField("Content-Length");
+                if (s != null) {
+                    try {
+                        length = Long.parseLong(s);
+                    } catch (NumberFormatException e) {
+                    }
+                }
+            }
+
+            setValidators(new HttpValidators(conn.getHeaderField("ETag"),
+                    conn.getHeaderField("Last-Modified"), length));
+
+            fireLengthKnown();
+
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(Math.max(0, length));
+            FileChannel channel = raf.getChannel();
+
+            // Work out how to split the file; the other segments are only
+            // fetched if the server can make sure they are of the same file
+            int count = 1;
+            if (code == 206 && etag != null) {
+                count = (int) Math.max(1, Math.min(segments, length / minSegmentSize));
+            }
+            long segmentSize = count > 1 ? (length + count - 1) / count : length;
+
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+            if (count > 1) {
+                executor = Executors.newFixedThreadPool(count - 1);
+
+                for (int i = 1; i < count; i++) {
+                    final long start = i * segmentSize;
+                    final long end = Math.min(length, start + segmentSize) - 1;
+                    final FileChannel target = channel;
+
+                    futures.add(executor.submit(new Callable<Void>() {
+                        public Void call() throws IOException {
+                            downloadSegment(start, end, target);
+                            return null;
+                        }
+                    }));
+                }
+            }
+
+            // The first segment continues on the first connection
+            InputStream in = new BufferedInputStream(conn.getInputStream());
+            try {
+                transfer(in, channel, 0, count > 1 ? segmentSize : -1);
+            } catch (IOException e) {
+                cancel();
+                throw e;
+            } finally {
+                Util.close(in);
+            }
+
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    cancel();
+                    throw new IOException("Interrupted while downloading");
+                } catch (ExecutionException e) {
+                    cancel();
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException("Segment download failed", e.getCause());
+                }
+            }
+
+            if (!isRunning()) {
+                return true;
+            }
+
+            if (length >= 0 && readLength.get() != length) {
+                throw new IOException("Only received " + readLength.get() +
+                        " of " + length + " bytes");
+            }
+
+            raf.close();
+            raf = null;
+
+            // Now that the file is whole, calculate its digest
+            if (getDigest() != null) {
+                updateDigest();
+            }
+
+            fireDownloadCompleted();
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            Util.close(raf);
+            synchronized (connections) {
+                for (HttpURLConnection c : connections) {
+                    c.disconnect();
+                }
+                connections.clear();
+                segmentDownloaders.clear();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Download a range of the file on its own connection.
+     *
+     * @param start first byte
+     * @param end last byte, inclusive
+     * @param channel channel to write to
+     * @throws IOException on I/O error
+     */
+    private void downloadSegment(long start, long end, FileChannel channel) throws IOException {
+        if (pool != null && getUrl().getProtocol().equalsIgnoreCase("http")) {
+            SocketDownloader downloader = new SocketDownloader(getUrl(),
+                    new SegmentOutputStream(channel, start));
+            downloader.setConnectionPool(pool);
+            downloader.setTimeout(getTimeout());
+            downloader.setResume(start, etag);
+            downloader.setResumeEnd(end);
+
+            synchronized (connections) {
+                segmentDownloaders.add(downloader);
+            }
+            if (!isRunning()) {
+                return;
+            }
+
+            downloader.download();
+            if (isRunning() && downloader.getDownloadedLength() != end + 1) {
+                throw new IOException("Connection closed after " +
+                        (downloader.getDownloadedLength() - start) + " of " +
+                        (end - start + 1) + " bytes");
+            }
+            return;
+        }
+
+        HttpURLConnection conn = openConnection(
+                "bytes=" + start + "-" + end, "\"" + etag + "\"");
+        conn.connect();
+
+        if (conn.getResponseCode() != 206) {
+            throw new IOException("Server did not send the requested range (code " +
+                    conn.getResponseCode() + ")");
+        }
+
+        Matcher m = contentRangePattern.matcher(
+                Util.defaultValue(conn.getHeaderField("Content-Range"), "").trim());
+        if (!m.matches() || Long.parseLong(m.group(1)) != start) {
+            throw new IOException("Server sent a different range than requested");
+        }
+
+        InputStream in = new BufferedInputStream(conn.getInputStream());
+        try {
+            transfer(in, channel, start, end - start + 1);
+        } finally {
+            Util.close(in);
+        }
+    }
+
+    /**
+     * Copy data from the stream into the file at the given position.
+     *
+     * @param in input stream
+     * @param channel channel to write to
+     * @param position position in the file
+     * @param limit number of bytes to copy, or -1 to copy until the end
+     * @throws IOException on I/O error
+     */
+    private void transfer(InputStream in, FileChannel channel,
+            long position, long limit) throws IOException {
+        byte[] data = new byte[READ_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long copied = 0;
+
+        while (isRunning() && (limit < 0 || copied < limit)) {
+            int want = READ_BUFFER_SIZE;
+            if (limit >= 0) {
+                want = (int) Math.min(want, limit - copied);
+            }
+
+            int len = in.read(data, 0, want);
+            if (len < 0) {
+                break;
+            }
+
+            buffer.clear();
+            buffer.limit(len);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+
+            copied += len;
+            readLength.addAndGet(len);
+            throttle(len);
+        }
+
+        if (isRunning() && limit >= 0 && copied < limit) {
+            throw new IOException("Connection closed after " + copied + " of " + limit + " bytes");
+        }
+    }
+
+    /**
+     * Writes the body of a segment into its place in the file.
+     */
+    private class SegmentOutputStream extends OutputStream {
+
+        private final FileChannel channel;
+        private long position;
+
+        /**
+         * Construct the stream.
+         *
+         * @param channel channel to write to
+         * @param position position of the segment in the file
+         */
+        public SegmentOutputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            readLength.addAndGet(len);
+            throttle(len);
+        }
+
+        @Override
+        public void close() {
+            // The file is closed once every segment is done
+        }
+
+    }
+
+    /**
+     * Feed the downloaded file into the digest.
+     *
+     * @throws IOException on I/O error
+     */
+    private void updateDigest() throws IOException {
+        long start = System.nanoTime();
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            byte[] data = new byte[READ_BUFFER_SIZE];
+            int len;
+            while ((len = in.read(data)) != -1) {
+                getDigest().update(data, 0, len);
+            }
+        } finally {
+            Util.close(in);
+            getTimings().addDigestTime(System.nanoTime() - start);
+        }
+    }
+
+}
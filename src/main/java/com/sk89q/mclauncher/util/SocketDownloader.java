@@ -23,33 +23,33 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.Socket;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import com.sk89q.mclauncher.Launcher;
 
 /**
- * Used for downloading files via HTTP 1.0 manually with a {@link Socket}.
+ * Used for downloading files via HTTP 1.1 manually with a {@link Socket}.
  * Re-inventin' the wheel to keep the launcher small. No SSL support yet.
+ * Chunked bodies and redirects to other plain HTTP URLs are handled. If a
+ * {@link HttpConnectionPool} is set, connections are kept alive and reused.
  * 
  * @author sk89q
  */
 public class SocketDownloader extends AbstractDownloader {
 
-    private static final int HTTP_LINE_BUFFER_SIZE = 1024 * 4;
-    private static final int READ_BUFFER_SIZE = 1024 * 4;
+    private static final int READ_BUFFER_SIZE = 1024 * 16;
+    private static final int MAX_REDIRECTS = 5;
+    private static final long MAX_DISCARD_LENGTH = 1024 * 64;
     
     private long length;
     private long readLength;
     private String etag;
-    private Socket conn;
-    private Pattern statusPattern = Pattern.compile("^HTTP/([0-9\\.]+) ([0-9]+) (.+)$");
+    private volatile HttpConnection conn;
+    private HttpConnectionPool pool;
     
     /**
      * Construct the downloader instance.
@@ -61,11 +61,24 @@ public class SocketDownloader extends AbstractDownloader {
         super(url, output);
     }
     
+    /**
+     * Set the connection pool to use. With a pool, persistent connections
+     * are used and returned to the pool once the response has been fully
+     * read. Without one, a new connection is opened and closed for every
+     * download.
+     * 
+     * @param pool pool, or null to disable
+     */
+    public void setConnectionPool(HttpConnectionPool pool) {
+        this.pool = pool;
+    }
+    
     public Socket getConnection() {
+        HttpConnection conn = this.conn;
         if (conn == null) {
             throw new IllegalArgumentException("Connection does not currently exist");
         }
-        return conn;
+        return conn.getSocket();
     }
     
     public long getTotalLength() {
@@ -80,136 +93,303 @@ public class SocketDownloader extends AbstractDownloader {
         return etag;
     }
     
-    private String dbgStr(String s) {
-        if (s.length() < 200) {
-            return s;
-        } else {
-            return "<string too long>";
+    /**
+     * Get the port to connect to for a URL.
+     * 
+     * @param url url
+     * @return port
+     */
+    private static int getPort(URL url) {
+        int port = url.getPort();
+        if (port == -1) port = url.getDefaultPort();
+        if (port == -1) port = 80;
+        return port;
+    }
+    
+    /**
+     * Send the request for the file.
+     * 
+     * @param conn connection
+     * @param url url to request
+     * @throws IOException on I/O error
+     */
+    private void writeRequest(HttpConnection conn, URL url) throws IOException {
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(conn.getOutputStream()));
+        
+        out.write("GET " + getRequestTarget(url) + " HTTP/1.1\r\n");
+        out.write("Host: " + getHostHeader(url) + "\r\n");
+        out.write("User-Agent: SKMCLauncher/" + Launcher.VERSION + "\r\n");
+        out.write("Accept: */*\r\n");
+        out.write("Accept-Encoding: identity\r\n");
+        if (getIfNoneMatchHeader() != null) {
+            out.write("If-None-Match: " + getIfNoneMatchHeader() + "\r\n");
+        }
+        if (getIfModifiedSinceHeader() != null) {
+            out.write("If-Modified-Since: " + getIfModifiedSinceHeader() + "\r\n");
         }
+        if (isResuming()) {
+            out.write("Range: " + getRangeHeader() + "\r\n");
+            out.write("If-Range: " + getIfRangeHeader() + "\r\n");
+        }
+        out.write(pool != null ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+        out.write("\r\n");
+        out.flush();
     }
-
-    public boolean download() throws IOException {
-        conn = null;
-        length = -1;
-
-        try {
-            int port = getUrl().getPort();
-            if (port == -1) port = getUrl().getDefaultPort();
-            if (port == -1) port = 80;
-            
-            conn = new Socket(getUrl().getHost(), port);
-            conn.setSoTimeout(getTimeout());
-            
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(conn.getOutputStream()));
-            @SuppressWarnings("resource")
-			MixedDataBufferedInputStream in = new MixedDataBufferedInputStream(conn.getInputStream(), HTTP_LINE_BUFFER_SIZE);
-            
-            out.write("GET ");
-            out.write(new URI(getUrl().getPath()).toASCIIString());
-            out.write(" HTTP/1.0\r\n");
-            out.write("Host: " + getUrl().getHost() + "\r\n");
-            out.write("User-Agent: SKMCLauncher/" + Launcher.VERSION + "\r\n");
-            out.write("Accept: */*\r\n");
-            if (getEtagCheck() != null) {
-                // Should encode/munge this...
-                out.write("If-None-Match: \"" + getEtagCheck() + "\"");
-            }
-            out.write("Connection: close\r\n");
-            out.write("\r\n");
-            out.flush();
+    
+    /**
+     * Read the status line and headers of the response. Interim responses,
+     * such as 100 Continue, are skipped.
+     * 
+     * @param conn connection
+     * @return the final response head
+     * @throws IOException on I/O error
+     */
+    private HttpResponseHead readResponseHead(HttpConnection conn) throws IOException {
+        MixedDataBufferedInputStream in = conn.getInputStream();
+        
+        while (true) {
+            HttpResponseHead response = new HttpResponseHead(in.readLine());
+            getTimings().markFirstByte();
             
-            String line = in.readLine();
-            Matcher m = statusPattern.matcher(line.trim());
-            if (!m.matches()) {
-                // This is a problem!
-                throw new IOException("HTTP status line was unexpected ('" + dbgStr(line) + "')");
+            // Read headers
+            while (true) {
+                String line = in.readLine();
+                
+                // No more headers
+                if (line.trim().length() == 0) {
+                    break;
+                }
+                
+                response.addHeader(line);
             }
             
-            // Check HTTP version
-            String httpVersion = m.group(1);
-            if (!httpVersion.equals("0.9") && !httpVersion.equals("1.0") && !httpVersion.equals("1.1")) {
-                throw new IOException("Unsupported HTTP version from server ('" + dbgStr(httpVersion) + "')");
+            int code = response.getCode();
+            if (code < 100 || code >= 200 || code == 101) {
+                return response;
             }
-            
-            // Check HTTP response code
-            int code = Integer.parseInt(m.group(2));
-            if (code == 304) {
-                if (getEtagCheck() == null) {
-                    throw new IOException("Got unexpected 304 code");
-                }
-                return false;
-            } else if (code != 200) {
-                throw new IOException("Server did not give a 200 'EVERYTHING OK' code (server gave code " + code + " instead)");
+        }
+    }
+    
+    /**
+     * Open a connection to the host of the URL, send the request and read
+     * the response head. The connection is kept in {@link #conn}.
+     * 
+     * @param url url to request
+     * @return the response head
+     * @throws IOException on I/O error
+     */
+    private HttpResponseHead request(URL url) throws IOException {
+        getTimings().start();
+        if (pool != null) {
+            conn = pool.acquire(url.getHost(), getPort(url), getTimeout());
+        } else {
+            conn = new HttpConnection(url.getHost(), getPort(url), getTimeout());
+        }
+        
+        try {
+            recordConnect(conn);
+            writeRequest(conn, url);
+            return readResponseHead(conn);
+        } catch (IOException e) {
+            if (!conn.isReused()) {
+                throw e;
             }
             
-            fireConnectionStarted();
+            // The server closed the idle connection on us, so try again
+            // on a fresh connection
+            conn.close();
+            conn = new HttpConnection(url.getHost(), getPort(url), getTimeout());
+            recordConnect(conn);
+            writeRequest(conn, url);
+            return readResponseHead(conn);
+        }
+    }
+    
+    /**
+     * Record how long it took to open a connection, unless it was reused.
+     * 
+     * @param conn connection
+     */
+    private void recordConnect(HttpConnection conn) {
+        if (!conn.isReused()) {
+            getTimings().setResolveTime(conn.getResolveTime());
+            getTimings().setConnectTime(conn.getConnectTime());
+        }
+    }
+    
+    /**
+     * Read and throw away the body of a response that is not wanted, so
+     * that the connection can be used for the next request. Long bodies
+     * are not read.
+     * 
+     * @param response the response head
+     * @param in the connection's input stream
+     * @return true if the whole body was read
+     * @throws IOException on I/O error
+     */
+    private boolean discardBody(HttpResponseHead response,
+            MixedDataBufferedInputStream in) throws IOException {
+        InputStream body;
+        long limit;
+        
+        if (response.isChunked()) {
+            body = new ChunkedInputStream(in);
+            limit = MAX_DISCARD_LENGTH;
+        } else if (!response.isTransferEncoded() && response.getContentLength() >= 0
+                && response.getContentLength() <= MAX_DISCARD_LENGTH) {
+            body = in;
+            limit = response.getContentLength();
+        } else {
+            return false;
+        }
+        
+        byte[] data = new byte[1024 * 4];
+        long read = 0;
+        int len;
+        while (read < limit && (len = body.read(data, 0, (int) Math.min(data.length, limit - read))) >= 0) {
+            read += len;
+        }
+        
+        if (body instanceof ChunkedInputStream) {
+            return ((ChunkedInputStream) body).isComplete();
+        }
+        return read == limit;
+    }
+
+    public boolean download() throws IOException {
+        length = -1;
+        readLength = 0;
+        etag = null;
+        setValidators(null);
+        
+        URL url = getUrl();
+        
+        for (int redirects = 0; ; redirects++) {
+            boolean reusable = false;
+            conn = null;
             
-            // Read headers
-            while (true) {
-                line = in.readLine();
+            try {
+                HttpResponseHead response = request(url);
+                MixedDataBufferedInputStream in = conn.getInputStream();
+                boolean keepAlive = pool != null && response.isKeepAlive();
+                int code = response.getCode();
                 
-                // No more headers
-                if (line.trim().length() == 0) {
-                    break;
+                // Follow redirects that stay on plain HTTP; anything else
+                // is left to another downloader
+                if (response.isRedirect()) {
+                    if (redirects >= MAX_REDIRECTS) {
+                        throw new IOException("Too many redirects (last was to " +
+                                HttpResponseHead.dbgStr(response.getHeader("Location")) + ")");
+                    }
+                    
+                    URL location = new URL(url, response.getHeader("Location"));
+                    if (!location.getProtocol().equalsIgnoreCase("http")) {
+                        throw new IOException("Redirected to unsupported URL " + location);
+                    }
+                    
+                    reusable = keepAlive && discardBody(response, in);
+                    url = location;
+                    continue;
                 }
                 
-                int colonIndex = line.indexOf(':');
-                if (colonIndex == -1) {
-                    throw new IOException("Malformed HTTP response header ('" + dbgStr(line) + "')");
+                // Check HTTP response code
+                if (code == 416 && isResuming()) {
+                    throw new ResumeRefusedException("Server could not satisfy the range request");
+                } else if (code == 200 && isResuming()) {
+                    throw new ResumeRefusedException("Server sent the whole file instead of the requested range");
+                } else if (code != 304 && code != 200 && code != 206) {
+                    throw new IOException("Server did not give a 200 'EVERYTHING OK' code (server gave code " + code + " instead)");
                 }
-                String key = line.substring(0, colonIndex).trim(); // SHOULD decode this, but we won't
-                String value = line.substring(colonIndex + 1).trim(); // SHOULD decode this, but we won't
                 
-                if (key.equalsIgnoreCase("Content-Length")) {
-                    try {
-                        length = Long.parseLong(value);
-                    } catch (NumberFormatException e) {
+                etag = response.getEtag();
+                
+                if (code == 304) {
+                    if (!isConditional()) {
+                        throw new IOException("Got unexpected 304 code");
                     }
+                    reusable = keepAlive; // No body follows a 304
+                    return false;
                 }
                 
-                if (key.equalsIgnoreCase("Etag")) {
-                    if (value.matches("^W/")) {
-                        etag = null;
-                    } else if (value.length() > 2) {
-                        etag = value.substring(1, value.length() - 1);
+                InputStream body = in;
+                long contentLength = response.getContentLength();
+                if (response.isChunked()) {
+                    body = new ChunkedInputStream(in);
+                    contentLength = -1;
+                } else if (response.isTransferEncoded()) {
+                    throw new IOException("Unsupported transfer encoding from server ('" +
+                            HttpResponseHead.dbgStr(response.getHeader("Transfer-Encoding")) + "')");
+                }
+                
+                // Partial content continues where the last download left off
+                long bodyRead = 0;
+                if (code == 206) {
+                    length = checkContentRange(response.getHeader("Content-Range"));
+                    readLength = getResumeOffset();
+                    
+                    if (!getResumeEtag().equals(etag)) {
+                        throw new ResumeRefusedException("Server sent a range of a different file");
                     }
+                } else {
+                    length = contentLength;
                 }
-            }
-            
-            fireLengthKnown();
-            
-            ProgressEventUpdater progressUpdater = new ProgressEventUpdater();
-            (new Thread(progressUpdater)).start();
-            
-            try {
+                
+                setValidators(new HttpValidators(response.getHeader("ETag"),
+                        response.getHeader("Last-Modified"), length));
+                
+                fireConnectionStarted();
+                fireLengthKnown();
+                
                 byte[] data = new byte[READ_BUFFER_SIZE];
                 int len = 0;
-                while ((len = in.read(data, 0, READ_BUFFER_SIZE)) >= 0 && isRunning()) {
-                    getOutput().write(data, 0, len);
-                    if (getDigest() != null) {
-                        getDigest().update(data, 0, len);
+                while (isRunning()) {
+                    int want = READ_BUFFER_SIZE;
+                    if (contentLength >= 0) {
+                        if (bodyRead >= contentLength) {
+                            break;
+                        }
+                        want = (int) Math.min(READ_BUFFER_SIZE, contentLength - bodyRead);
+                    }
+                    
+                    if ((len = body.read(data, 0, want)) < 0) {
+                        break;
                     }
+                    
+                    writeBody(data, len);
+                    bodyRead += len;
                     readLength += len;
+                    throttle(len);
                 }
+                
+                if (isRunning()) {
+                    if (contentLength >= 0 && bodyRead < contentLength) {
+                        throw new IOException("Connection closed after " + bodyRead +
+                                " of " + contentLength + " bytes");
+                    }
+                    
+                    // The body has to be delimited for the connection to be reused
+                    reusable = keepAlive && (contentLength >= 0 || body instanceof ChunkedInputStream);
+                    fireDownloadCompleted();
+                }
+                
+                getOutput().close();
+                
+                return true;
             } finally {
-                progressUpdater.stop();
-            }
-            
-            if (isRunning()) {
-                fireDownloadCompleted();
+                HttpConnection conn = this.conn;
+                this.conn = null;
+                if (conn != null) {
+                    if (reusable) {
+                        pool.release(conn);
+                    } else {
+                        conn.close();
+                    }
+                }
             }
-            
-            getOutput().close();
-        } catch (URISyntaxException e) {
-            throw new IOException("Failed to parse path", e);
-        } finally {
-            conn.close();
-            conn = null;
         }
-        
-        return true;
     }
     
+
     public static void main(String[] args) throws Throwable {
         URL url = new URL(args[0]);
         File file = new File(args[1]);
@@ -33,7 +33,7 @@ import java.net.URL;
  */
 public class URLConnectionDownloader extends AbstractDownloader {
 
-    private static final int READ_BUFFER_SIZE = 1024 * 8;
+    private static final int READ_BUFFER_SIZE = 1024 * 16;
     
     private long length;
     private long readLength;
@@ -73,25 +73,45 @@ public class URLConnectionDownloader extends AbstractDownloader {
         conn = null;
         BufferedInputStream buffInput = null;
         length = -1;
+        setValidators(null);
+        getTimings().start();
 
         try {
             conn = (HttpURLConnection) getUrl().openConnection();
             conn.setRequestMethod("GET");
-            if (getEtagCheck() != null) {
-                conn.setRequestProperty("If-None-Match", "\"" + getEtagCheck() + "\"");
+            if (getIfNoneMatchHeader() != null) {
+                conn.setRequestProperty("If-None-Match", getIfNoneMatchHeader());
+            }
+            if (getIfModifiedSinceHeader() != null) {
+                conn.setRequestProperty("If-Modified-Since", getIfModifiedSinceHeader());
+            }
+            if (isResuming()) {
+                conn.setRequestProperty("Range", getRangeHeader());
+                conn.setRequestProperty("If-Range", getIfRangeHeader());
             }
             conn.setDoOutput(true);
             conn.setReadTimeout(getTimeout());
 
+            long connectStart = System.nanoTime();
             conn.connect();
+            getTimings().setConnectTime(System.nanoTime() - connectStart);
             
-            if (conn.getResponseCode() == 304) {
-                if (getEtagCheck() == null) {
+            int code = conn.getResponseCode();
+            getTimings().markFirstByte();
+            boolean partial = false;
+            if (code == 304) {
+                if (!isConditional()) {
                     throw new IOException("Got unexpected 304 code");
                 }
                 return false;
-            } else if (conn.getResponseCode() != 200) {
+            } else if (code == 206) {
+                partial = true;
+            } else if (code == 416 && isResuming()) {
+                throw new ResumeRefusedException("Server could not satisfy the range request");
+            } else if (code != 200) {
                 throw new IOException("Did not get expected 200 code");
+            } else if (isResuming()) {
+                throw new ResumeRefusedException("Server sent the whole file instead of the requested range");
             }
             
             fireConnectionStarted();
@@ -104,36 +124,41 @@ public class URLConnectionDownloader extends AbstractDownloader {
                 } catch (NumberFormatException e) {
                 }
             }
+            
+            // Partial content continues where the last download left off
+            if (partial) {
+                long total = checkContentRange(conn.getHeaderField("Content-Range"));
+                length = total >= 0 ? total : -1;
+                readLength = getResumeOffset();
+            }
+
+            setValidators(new HttpValidators(conn.getHeaderField("ETag"),
+                    conn.getHeaderField("Last-Modified"), length));
 
             // Get etag
             etag = conn.getHeaderField("Etag");
             if (etag != null) {
-                if (etag.matches("^W/")) {
+                if (etag.startsWith("W/")) {
                     etag = null;
                 } else {
                     etag = etag.substring(1, etag.length() - 1);
                 }
             }
             
-            fireLengthKnown();
+            if (partial && !getResumeEtag().equals(etag)) {
+                throw new ResumeRefusedException("Server sent a range of a different file");
+            }
             
-            ProgressEventUpdater progressUpdater = new ProgressEventUpdater();
-            (new Thread(progressUpdater)).start();
+            fireLengthKnown();
             
-            try {
-                buffInput = new BufferedInputStream(conn.getInputStream());
+            buffInput = new BufferedInputStream(conn.getInputStream());
     
-                byte[] data = new byte[READ_BUFFER_SIZE];
-                int len = 0;
-                while ((len = buffInput.read(data, 0, READ_BUFFER_SIZE)) >= 0 && isRunning()) {
-                    getOutput().write(data, 0, len);
-                    if (getDigest() != null) {
-                        getDigest().update(data, 0, len);
-                    }
-                    readLength += len;
-                }
-            } finally {
-                progressUpdater.stop();
+            byte[] data = new byte[READ_BUFFER_SIZE];
+            int len = 0;
+            while ((len = buffInput.read(data, 0, READ_BUFFER_SIZE)) >= 0 && isRunning()) {
+                writeBody(data, len);
+                readLength += len;
+                throttle(len);
             }
             
             if (isRunning()) {
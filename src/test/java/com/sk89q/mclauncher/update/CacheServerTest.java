@@ -0,0 +1,260 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class CacheServerTest {
+
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Mon, 01 Jan 2024 00:00:00 GMT";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] data = new byte[100];
+    private final AtomicInteger originRequests = new AtomicInteger();
+    private HttpServer origin;
+    private CacheServer cacheServer;
+    private int port;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        origin = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        origin.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                originRequests.incrementAndGet();
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    exchange.sendResponseHeaders(200, data.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(data);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        origin.start();
+
+        ServerSocket socket = new ServerSocket(0);
+        port = socket.getLocalPort();
+        socket.close();
+
+        cacheServer = new CacheServer(port, new CacheStore(folder.newFolder("cache"), 1024 * 1024));
+        cacheServer.allowHost("127.0.0.1");
+        cacheServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        cacheServer.stop();
+        origin.stop(0);
+    }
+
+    private HttpURLConnection request(String method, String... headers) throws IOException {
+        URL url = CacheServer.toCacheURL(new URL("http://127.0.0.1:" + port),
+                new URL("http://127.0.0.1:" + origin.getAddress().getPort() + "/f.bin"));
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod(method);
+        conn.setUseCaches(false);
+        for (int i = 0; i < headers.length; i += 2) {
+            conn.setRequestProperty(headers[i], headers[i + 1]);
+        }
+        return conn;
+    }
+
+    private HttpURLConnection get(String... headers) throws IOException {
+        return request("GET", headers);
+    }
+
+    private static byte[] body(HttpURLConnection conn) throws IOException {
+        InputStream in = conn.getResponseCode() >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (in != null) {
+            byte[] buffer = new byte[1024];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] range(int start, int end) {
+        return Arrays.copyOfRange(data, start, end + 1);
+    }
+
+    @Test
+    public void testStored() throws IOException {
+        HttpURLConnection conn = get();
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("MISS", conn.getHeaderField("X-Cache"));
+        assertArrayEquals(data, body(conn));
+
+        conn = get();
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("HIT", conn.getHeaderField("X-Cache"));
+        assertEquals(ETAG, conn.getHeaderField("ETag"));
+        assertEquals("bytes", conn.getHeaderField("Accept-Ranges"));
+        assertArrayEquals(data, body(conn));
+        assertEquals(1, originRequests.get());
+    }
+
+    @Test
+    public void testRange() throws IOException {
+        HttpURLConnection conn = get("Range", "bytes=10-19");
+        assertEquals(206, conn.getResponseCode());
+        assertEquals("bytes 10-19/100", conn.getHeaderField("Content-Range"));
+        assertArrayEquals(range(10, 19), body(conn));
+
+        conn = get("Range", "bytes=90-");
+        assertEquals(206, conn.getResponseCode());
+        assertEquals("bytes 90-99/100", conn.getHeaderField("Content-Range"));
+        assertArrayEquals(range(90, 99), body(conn));
+
+        conn = get("Range", "bytes=-5");
+        assertEquals(206, conn.getResponseCode());
+        assertEquals("bytes 95-99/100", conn.getHeaderField("Content-Range"));
+        assertArrayEquals(range(95, 99), body(conn));
+
+        conn = get("Range", "bytes=98-500");
+        assertEquals(206, conn.getResponseCode());
+        assertEquals("bytes 98-99/100", conn.getHeaderField("Content-Range"));
+        assertArrayEquals(range(98, 99), body(conn));
+    }
+
+    @Test
+    public void testUnsatisfiableRange() throws IOException {
+        HttpURLConnection conn = get("Range", "bytes=100-");
+        assertEquals(416, conn.getResponseCode());
+        assertEquals("bytes */100", conn.getHeaderField("Content-Range"));
+
+        conn = get("Range", "bytes=50-40");
+        assertEquals(416, conn.getResponseCode());
+    }
+
+    @Test
+    public void testUnsupportedRange() throws IOException {
+        HttpURLConnection conn = get("Range", "bytes=0-1,5-6");
+        assertEquals(200, conn.getResponseCode());
+        assertArrayEquals(data, body(conn));
+    }
+
+    @Test
+    public void testIfRange() throws IOException {
+        HttpURLConnection conn = get("Range", "bytes=10-19", "If-Range", ETAG);
+        assertEquals(206, conn.getResponseCode());
+        assertArrayEquals(range(10, 19), body(conn));
+
+        conn = get("Range", "bytes=10-19", "If-Range", LAST_MODIFIED);
+        assertEquals(206, conn.getResponseCode());
+        body(conn);
+
+        // A range of another version of the file gets the whole file
+        conn = get("Range", "bytes=10-19", "If-Range", "\"v0\"");
+        assertEquals(200, conn.getResponseCode());
+        assertArrayEquals(data, body(conn));
+    }
+
+    @Test
+    public void testNotModified() throws IOException {
+        HttpURLConnection conn = get("If-None-Match", ETAG);
+        assertEquals(304, conn.getResponseCode());
+        assertEquals(ETAG, conn.getHeaderField("ETag"));
+
+        conn = get("If-None-Match", "\"v0\", W/" + ETAG);
+        assertEquals(304, conn.getResponseCode());
+
+        conn = get("If-Modified-Since", LAST_MODIFIED);
+        assertEquals(304, conn.getResponseCode());
+
+        conn = get("If-Modified-Since", "Tue, 02 Jan 2024 00:00:00 GMT");
+        assertEquals(304, conn.getResponseCode());
+    }
+
+    @Test
+    public void testModified() throws IOException {
+        HttpURLConnection conn = get("If-None-Match", "\"v0\"");
+        assertEquals(200, conn.getResponseCode());
+        assertArrayEquals(data, body(conn));
+
+        conn = get("If-Modified-Since", "Sun, 31 Dec 2023 00:00:00 GMT");
+        assertEquals(200, conn.getResponseCode());
+        assertArrayEquals(data, body(conn));
+
+        // If-None-Match wins over If-Modified-Since
+        conn = get("If-None-Match", "\"v0\"", "If-Modified-Since", LAST_MODIFIED);
+        assertEquals(200, conn.getResponseCode());
+        body(conn);
+    }
+
+    @Test
+    public void testHead() throws IOException {
+        HttpURLConnection conn = request("HEAD");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("100", conn.getHeaderField("Content-Length"));
+
+        conn = request("HEAD", "Range", "bytes=10-19");
+        assertEquals(206, conn.getResponseCode());
+        assertEquals("10", conn.getHeaderField("Content-Length"));
+    }
+
+    @Test
+    public void testRefused() throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:" + port +
+                "/example.com/f.bin").openConnection();
+        assertEquals(403, conn.getResponseCode());
+
+        conn = request("DELETE");
+        assertEquals(405, conn.getResponseCode());
+        assertEquals(0, originRequests.get());
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeltaPatchTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(0);
+
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private File write(byte[] data) throws IOException {
+        File file = folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private byte[] create(byte[] base, byte[] target) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeltaPatch.create(base, target, out);
+        return out.toByteArray();
+    }
+
+    private byte[] apply(byte[] base, byte[] patch) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeltaPatch.apply(write(base), new ByteArrayInputStream(patch), out);
+        return out.toByteArray();
+    }
+
+    private void assertRoundTrip(byte[] base, byte[] target) throws IOException {
+        assertArrayEquals(target, apply(base, create(base, target)));
+    }
+
+    @Test
+    public void testIdentical() throws IOException {
+        byte[] data = randomBytes(100000);
+        byte[] patch = create(data, data);
+        assertTrue("patch of " + patch.length + " bytes", patch.length < 100);
+        assertArrayEquals(data, apply(data, patch));
+    }
+
+    @Test
+    public void testInsertAndChange() throws IOException {
+        byte[] base = randomBytes(300000);
+        byte[] target = new byte[310000];
+        System.arraycopy(base, 0, target, 0, 100000);
+        System.arraycopy(randomBytes(10000), 0, target, 100000, 10000);
+        System.arraycopy(base, 100000, target, 110000, 200000);
+        target[250000] ^= 1;
+
+        byte[] patch = create(base, target);
+        assertTrue("patch of " + patch.length + " bytes", patch.length < 12000);
+        assertArrayEquals(target, apply(base, patch));
+    }
+
+    @Test
+    public void testRemoveAndReorder() throws IOException {
+        byte[] base = randomBytes(50000);
+        byte[] target = new byte[40000];
+        System.arraycopy(base, 30000, target, 0, 20000);
+        System.arraycopy(base, 0, target, 20000, 20000);
+        assertRoundTrip(base, target);
+    }
+
+    @Test
+    public void testUnrelated() throws IOException {
+        assertRoundTrip(randomBytes(5000), randomBytes(7000));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        assertRoundTrip(new byte[0], randomBytes(1000));
+        assertRoundTrip(randomBytes(1000), new byte[0]);
+        assertRoundTrip(randomBytes(10), randomBytes(20));
+    }
+
+    @Test
+    public void testFiles() throws IOException {
+        byte[] base = randomBytes(20000);
+        byte[] target = Arrays.copyOf(base, 25000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeltaPatch.create(write(base), write(target), out);
+        assertArrayEquals(target, apply(base, out.toByteArray()));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncated() throws IOException {
+        byte[] base = randomBytes(20000);
+        byte[] target = randomBytes(20000);
+        byte[] patch = create(base, target);
+        apply(base, Arrays.copyOf(patch, patch.length / 2));
+    }
+
+    @Test(expected = IOException.class)
+    public void testWithoutEnd() throws IOException {
+        byte[] base = randomBytes(20000);
+        byte[] patch = create(base, base);
+        apply(base, Arrays.copyOf(patch, patch.length - 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAPatch() throws IOException {
+        apply(randomBytes(100), randomBytes(100));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownOperation() throws IOException {
+        byte[] base = randomBytes(20000);
+        byte[] patch = create(base, base);
+        patch[13] = 9;
+        apply(base, patch);
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrongBase() throws IOException {
+        byte[] base = randomBytes(20000);
+        byte[] patch = create(base, base);
+        apply(randomBytes(10000), patch);
+    }
+
+}
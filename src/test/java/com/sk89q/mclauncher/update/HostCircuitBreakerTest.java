@@ -0,0 +1,94 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HostCircuitBreakerTest {
+
+    @Test
+    public void testOpens() {
+        HostCircuitBreaker breaker = new HostCircuitBreaker(3, 60000);
+        breaker.recordFailure("a.example.com");
+        breaker.recordFailure("a.example.com");
+        assertTrue(breaker.allowRequest("a.example.com"));
+        assertFalse(breaker.isOpen("a.example.com"));
+
+        breaker.recordFailure("A.example.com");
+        assertTrue(breaker.isOpen("a.example.com"));
+        assertFalse(breaker.allowRequest("a.example.com"));
+        assertTrue(breaker.getRemainingCoolDown("a.example.com") > 50000);
+
+        // Other hosts are not affected
+        assertTrue(breaker.allowRequest("b.example.com"));
+        assertEquals(0, breaker.getRemainingCoolDown("b.example.com"));
+    }
+
+    @Test
+    public void testSuccessResets() {
+        HostCircuitBreaker breaker = new HostCircuitBreaker(2, 60000);
+        breaker.recordFailure("a");
+        breaker.recordSuccess("a");
+        breaker.recordFailure("a");
+        assertFalse(breaker.isOpen("a"));
+    }
+
+    @Test
+    public void testOneTestRequest() throws InterruptedException {
+        HostCircuitBreaker breaker = new HostCircuitBreaker(1, 50);
+        breaker.recordFailure("a");
+        assertFalse(breaker.allowRequest("a"));
+
+        Thread.sleep(100);
+        assertEquals(0, breaker.getRemainingCoolDown("a"));
+        assertTrue(breaker.allowRequest("a"));
+        assertFalse(breaker.allowRequest("a"));
+
+        // A failed test request opens the breaker for another cool down
+        breaker.recordFailure("a");
+        assertFalse(breaker.allowRequest("a"));
+        assertTrue(breaker.getRemainingCoolDown("a") > 0);
+
+        Thread.sleep(100);
+        assertTrue(breaker.allowRequest("a"));
+        breaker.recordSuccess("a");
+        assertFalse(breaker.isOpen("a"));
+        assertTrue(breaker.allowRequest("a"));
+        assertTrue(breaker.allowRequest("a"));
+    }
+
+    @Test
+    public void testRelease() throws InterruptedException {
+        HostCircuitBreaker breaker = new HostCircuitBreaker(1, 50);
+        breaker.recordFailure("a");
+        Thread.sleep(100);
+        assertTrue(breaker.allowRequest("a"));
+        assertFalse(breaker.allowRequest("a"));
+
+        // A test request that was given up lets another one through
+        breaker.release("a");
+        assertTrue(breaker.isOpen("a"));
+        assertTrue(breaker.allowRequest("a"));
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    private static void assertDelay(RetryPolicy policy, int retry, long max) {
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.getDelay(retry);
+            assertTrue("retry " + retry + " waited " + delay, delay >= max / 2 && delay <= max);
+        }
+    }
+
+    @Test
+    public void testBackoff() {
+        RetryPolicy policy = new RetryPolicy(1000, 30000);
+        assertDelay(policy, 1, 1000);
+        assertDelay(policy, 2, 2000);
+        assertDelay(policy, 3, 4000);
+        assertDelay(policy, 5, 16000);
+        assertDelay(policy, 6, 30000);
+        assertDelay(policy, 100, 30000);
+    }
+
+    @Test
+    public void testBounds() {
+        RetryPolicy policy = new RetryPolicy(-10, -20);
+        assertEquals(0, policy.getBaseDelay());
+        assertEquals(0, policy.getMaxDelay());
+        assertEquals(0, policy.getDelay(3));
+
+        policy = new RetryPolicy(5000, 1000);
+        assertEquals(5000, policy.getMaxDelay());
+        assertDelay(policy, 4, 5000);
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class StagingQueueTest {
+
+    private static PackageFile file(int i) throws MalformedURLException {
+        return new SingleFile(new URL("http://example.com/" + i), new File("temp" + i),
+                new File("file" + i), 1);
+    }
+
+    @Test
+    public void testProcessesAll() throws Exception {
+        final Set<PackageFile> processed = Collections.synchronizedSet(new HashSet<PackageFile>());
+        StagingQueue queue = new StagingQueue(2, 3, new StagingQueue.Stage() {
+            public void process(PackageFile file) {
+                processed.add(file);
+            }
+        });
+        queue.start();
+        for (int i = 0; i < 20; i++) {
+            queue.put(file(i));
+        }
+        queue.finish();
+        assertEquals(20, processed.size());
+        assertEquals(20, queue.getQueuedCount());
+    }
+
+    @Test
+    public void testError() throws Exception {
+        final UpdateException error = new UpdateException("broken");
+        final AtomicInteger processed = new AtomicInteger();
+        StagingQueue queue = new StagingQueue(1, new StagingQueue.Stage() {
+            public void process(PackageFile file) throws UpdateException {
+                processed.incrementAndGet();
+                throw error;
+            }
+        });
+        queue.start();
+        queue.put(file(0));
+
+        // Later files are thrown away, and putting one gives the error
+        try {
+            for (int i = 1; i < 100; i++) {
+                queue.put(file(i));
+                Thread.sleep(10);
+            }
+            fail("The error was not thrown");
+        } catch (UpdateException e) {
+            assertSame(error, e);
+        }
+
+        try {
+            queue.finish();
+            fail("The error was not thrown");
+        } catch (UpdateException e) {
+            assertSame(error, e);
+        }
+        assertEquals(1, processed.get());
+    }
+
+    @Test
+    public void testRuntimeException() throws Exception {
+        StagingQueue queue = new StagingQueue(1, new StagingQueue.Stage() {
+            public void process(PackageFile file) {
+                throw new IllegalStateException("bug");
+            }
+        });
+        queue.start();
+        queue.put(file(0));
+        try {
+            queue.finish();
+            fail("The error was not thrown");
+        } catch (UpdateException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger processed = new AtomicInteger();
+        StagingQueue queue = new StagingQueue(10, new StagingQueue.Stage() {
+            public void process(PackageFile file) {
+                processed.incrementAndGet();
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        queue.start();
+        for (int i = 0; i < 5; i++) {
+            queue.put(file(i));
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        queue.abort();
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(1, processed.get());
+
+        try {
+            queue.put(file(5));
+            fail("A file was queued after an abort");
+        } catch (CancelledUpdateException e) {
+        }
+        try {
+            queue.finish();
+            fail("Finished after an abort");
+        } catch (CancelledUpdateException e) {
+        }
+    }
+
+    @Test
+    public void testPutWaitsForRoom() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final StagingQueue queue = new StagingQueue(1, new StagingQueue.Stage() {
+            public void process(PackageFile file) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        queue.start();
+        queue.put(file(0));
+        queue.put(file(1));
+
+        final CountDownLatch put = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    queue.put(file(2));
+                    put.countDown();
+                } catch (Exception e) {
+                }
+            }
+        });
+        thread.start();
+        assertFalse(put.await(200, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertTrue(put.await(5, TimeUnit.SECONDS));
+        queue.finish();
+    }
+
+}
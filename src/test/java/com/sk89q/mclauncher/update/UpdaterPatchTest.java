@@ -0,0 +1,214 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks that the updater patches files when it can and downloads them in
+ * full when it can't.
+ */
+public class UpdaterPatchTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Map<String, byte[]> served =
+            Collections.synchronizedMap(new HashMap<String, byte[]>());
+    private final List<String> requested =
+            Collections.synchronizedList(new ArrayList<String>());
+    private HttpServer server;
+    private File root;
+    private UpdateCache cache;
+    private byte[] oldVersion;
+    private byte[] newVersion;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                requested.add(exchange.getRequestMethod() + " " + path);
+                byte[] data = served.get(path);
+                if (data == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else if (exchange.getRequestMethod().equals("HEAD")) {
+                    exchange.getResponseHeaders().set("Content-Length", String.valueOf(data.length));
+                    exchange.sendResponseHeaders(200, -1);
+                } else {
+                    exchange.sendResponseHeaders(200, data.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(data);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+
+        root = folder.newFolder("root");
+        cache = new UpdateCache(new File(root, "cache.xml"));
+
+        Random random = new Random(0);
+        oldVersion = new byte[200000];
+        random.nextBytes(oldVersion);
+        newVersion = new byte[210000];
+        System.arraycopy(oldVersion, 0, newVersion, 0, 100000);
+        System.arraycopy(oldVersion, 90000, newVersion, 100000, 110000);
+
+        // Install the old version
+        served.put("/v.bin", oldVersion);
+        update("<file>v.bin</file>");
+        requested.clear();
+        served.put("/v.bin", newVersion);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private String packageXml(String files) {
+        return "<package version=\"1.1\"><filegroup source=\"http://127.0.0.1:" +
+                server.getAddress().getPort() + "/\" dest=\"bin\">" + files +
+                "</filegroup></package>";
+    }
+
+    private void update(String files) throws UpdateException {
+        Updater updater = new Updater(new ByteArrayInputStream(
+                packageXml(files).getBytes()), root, cache);
+        updater.setVerifying(false);
+        updater.performUpdate();
+    }
+
+    private String patchXml(byte[] from, byte[] to, byte[] patch) throws Exception {
+        served.put("/v.patch.gz", patch);
+        return "<file>v.bin<patch from=\"" + md5(from) + "\" to=\"" + md5(to) +
+                "\" size=\"" + patch.length + "\">v.patch.gz</patch></file>";
+    }
+
+    private static String md5(byte[] data) throws Exception {
+        return new BigInteger(1, MessageDigest.getInstance("MD5").digest(data)).toString(16);
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(data);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private byte[] createPatch(byte[] base, byte[] target) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeltaPatch.create(base, target, out);
+        return gzip(out.toByteArray());
+    }
+
+    private byte[] installed() throws IOException {
+        File file = new File(root, "bin/v.bin");
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    @Test
+    public void testPatched() throws Exception {
+        update(patchXml(oldVersion, newVersion, createPatch(oldVersion, newVersion)));
+        assertArrayEquals(newVersion, installed());
+        assertTrue(requested.contains("GET /v.patch.gz"));
+        assertFalse(requested.contains("GET /v.bin"));
+    }
+
+    @Test
+    public void testOtherBaseDownloaded() throws Exception {
+        // The installed file isn't the one that the patch is for
+        byte[] changed = oldVersion.clone();
+        changed[0] ^= 1;
+        FileOutputStream out = new FileOutputStream(new File(root, "bin/v.bin"));
+        out.write(changed);
+        out.close();
+
+        update(patchXml(oldVersion, newVersion, createPatch(oldVersion, newVersion)));
+        assertArrayEquals(newVersion, installed());
+        assertEquals(Collections.singletonList("GET /v.bin"), requested);
+    }
+
+    @Test
+    public void testTruncatedPatchDownloaded() throws Exception {
+        byte[] patch = createPatch(oldVersion, newVersion);
+        byte[] truncated = new byte[patch.length / 2];
+        System.arraycopy(patch, 0, truncated, 0, truncated.length);
+
+        update(patchXml(oldVersion, newVersion, truncated));
+        assertArrayEquals(newVersion, installed());
+        assertEquals(Arrays.asList("GET /v.patch.gz", "GET /v.bin"), requested);
+    }
+
+    @Test
+    public void testCorruptPatchDownloaded() throws Exception {
+        // A patch that applies but doesn't give the new version
+        byte[] other = newVersion.clone();
+        other[150000] ^= 1;
+
+        update(patchXml(oldVersion, newVersion, createPatch(oldVersion, other)));
+        assertArrayEquals(newVersion, installed());
+        assertEquals(Arrays.asList("GET /v.patch.gz", "GET /v.bin"), requested);
+    }
+
+}
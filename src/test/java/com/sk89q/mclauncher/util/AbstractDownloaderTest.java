@@ -0,0 +1,116 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class AbstractDownloaderTest {
+
+    private static class TestDownloader extends AbstractDownloader {
+        public TestDownloader() {
+            super(null, null);
+        }
+
+        public long getTotalLength() {
+            return -1;
+        }
+
+        public long getDownloadedLength() {
+            return 0;
+        }
+
+        public String getEtag() {
+            return null;
+        }
+
+        public boolean download() {
+            return false;
+        }
+    }
+
+    private static TestDownloader resuming(long offset) {
+        TestDownloader downloader = new TestDownloader();
+        downloader.setResume(offset, "abc");
+        return downloader;
+    }
+
+    private static void assertRefused(TestDownloader downloader, String value) throws IOException {
+        try {
+            downloader.checkContentRange(value);
+            fail("Accepted " + value);
+        } catch (ResumeRefusedException e) {
+        }
+    }
+
+    @Test
+    public void testContentRange() throws IOException {
+        assertEquals(1000, resuming(100).checkContentRange("bytes 100-999/1000"));
+        assertEquals(1000, resuming(100).checkContentRange(" BYTES 100-999/1000 "));
+        assertEquals(-1, resuming(100).checkContentRange("bytes 100-999/*"));
+    }
+
+    @Test
+    public void testContentRangeEnd() throws IOException {
+        TestDownloader downloader = resuming(100);
+        downloader.setResumeEnd(199);
+        assertEquals("bytes=100-199", downloader.getRangeHeader());
+        assertEquals(1000, downloader.checkContentRange("bytes 100-199/1000"));
+        assertRefused(downloader, "bytes 100-999/1000");
+    }
+
+    @Test
+    public void testRangeHeader() {
+        assertEquals("bytes=100-", resuming(100).getRangeHeader());
+        assertEquals("\"abc\"", resuming(100).getIfRangeHeader());
+    }
+
+    @Test
+    public void testContentRangeRefused() throws IOException {
+        assertRefused(resuming(100), "bytes 0-999/1000");
+        assertRefused(resuming(100), "bytes 101-999/1000");
+        assertRefused(resuming(100), "bytes */1000");
+        assertRefused(resuming(100), "items 100-999/1000");
+        assertRefused(resuming(100), "");
+        assertRefused(resuming(100), null);
+    }
+
+    @Test
+    public void testContentRangeNotResuming() {
+        try {
+            new TestDownloader().checkContentRange("bytes 0-999/1000");
+            fail("Accepted a range that wasn't asked for");
+        } catch (ResumeRefusedException e) {
+            fail("A range that wasn't asked for is not a refused resume");
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testResumeNeedsEtag() {
+        TestDownloader downloader = new TestDownloader();
+        downloader.setResume(100, null);
+        assertEquals(0, downloader.getResumeOffset());
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BandwidthLimiterTest {
+
+    @Test
+    public void testUnlimited() {
+        BandwidthLimiter limiter = new BandwidthLimiter(0);
+        assertEquals(0, limiter.reserve(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testBurst() {
+        // A quarter second at 100 KB/s is 25 KB
+        BandwidthLimiter limiter = new BandwidthLimiter(100 * 1024);
+        assertEquals(0, limiter.reserve(20 * 1024));
+        assertTrue(limiter.reserve(20 * 1024) > 0);
+    }
+
+    @Test
+    public void testWait() {
+        BandwidthLimiter limiter = new BandwidthLimiter(1000, 0);
+        long wait = limiter.reserve(500);
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(400));
+        assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(500));
+
+        // The next read waits behind the first
+        wait = limiter.reserve(500);
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(900));
+        assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(1000));
+    }
+
+    @Test
+    public void testSetRate() {
+        BandwidthLimiter limiter = new BandwidthLimiter(1000, 0);
+        limiter.setRate(0);
+        assertEquals(0, limiter.getRate());
+        assertEquals(0, limiter.reserve(100000));
+        limiter.setRate(-5);
+        assertEquals(0, limiter.getRate());
+    }
+
+    @Test
+    public void testAcquireRate() throws InterruptedIOException {
+        BandwidthLimiter limiter = new BandwidthLimiter(100 * 1024, 0);
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire(4 * 1024);
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("took " + elapsed + " ms", elapsed >= 350 && elapsed < 2000);
+    }
+
+    @Test(expected = InterruptedIOException.class)
+    public void testInterrupted() throws InterruptedIOException {
+        BandwidthLimiter limiter = new BandwidthLimiter(1, 0);
+        Thread.currentThread().interrupt();
+        try {
+            limiter.acquire(1000);
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class ChunkedInputStreamTest {
+
+    private static MixedDataBufferedInputStream stream(String data) throws IOException {
+        return new MixedDataBufferedInputStream(new ByteArrayInputStream(data.getBytes("US-ASCII")));
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return out.toString("US-ASCII");
+    }
+
+    @Test
+    public void testChunks() throws IOException {
+        MixedDataBufferedInputStream in = stream("5\r\nhello\r\n7\r\n, world\r\n0\r\n\r\nNEXT");
+        ChunkedInputStream chunked = new ChunkedInputStream(in);
+        assertEquals("hello, world", readAll(chunked));
+        assertTrue(chunked.isComplete());
+        assertEquals("NEXT", readAll(in));
+    }
+
+    @Test
+    public void testExtensions() throws IOException {
+        ChunkedInputStream chunked = new ChunkedInputStream(
+                stream("a;name=value\r\n0123456789\r\n0; last\r\n\r\n"));
+        assertEquals("0123456789", readAll(chunked));
+        assertTrue(chunked.isComplete());
+    }
+
+    @Test
+    public void testTrailer() throws IOException {
+        MixedDataBufferedInputStream in = stream(
+                "3\r\nabc\r\n0\r\nX-Checksum: 1234\r\nX-Other: 5\r\n\r\nNEXT");
+        ChunkedInputStream chunked = new ChunkedInputStream(in);
+        assertEquals("abc", readAll(chunked));
+        assertTrue(chunked.isComplete());
+        assertEquals("NEXT", readAll(in));
+    }
+
+    @Test
+    public void testUpperCaseSize() throws IOException {
+        StringBuilder data = new StringBuilder("1A\r\n");
+        for (int i = 0; i < 26; i++) {
+            data.append((char) ('a' + i));
+        }
+        data.append("\r\n0\r\n\r\n");
+        assertEquals(26, readAll(new ChunkedInputStream(stream(data.toString()))).length());
+    }
+
+    @Test(expected = EOFException.class)
+    public void testClosedInChunk() throws IOException {
+        readAll(new ChunkedInputStream(stream("a\r\n01234")));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testClosedBeforeLastChunk() throws IOException {
+        readAll(new ChunkedInputStream(stream("3\r\nabc\r\n")));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testClosedInTrailer() throws IOException {
+        readAll(new ChunkedInputStream(stream("3\r\nabc\r\n0\r\nX-Checksum: 1")));
+    }
+
+    @Test
+    public void testIncomplete() throws IOException {
+        ChunkedInputStream chunked = new ChunkedInputStream(stream("3\r\nabc"));
+        byte[] buffer = new byte[3];
+        assertEquals(3, chunked.read(buffer));
+        assertFalse(chunked.isComplete());
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedSize() throws IOException {
+        readAll(new ChunkedInputStream(stream("zz\r\nabc\r\n0\r\n\r\n")));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingCrlf() throws IOException {
+        readAll(new ChunkedInputStream(stream("3\r\nabcd\r\n0\r\n\r\n")));
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class HttpResponseHeadTest {
+
+    @Test
+    public void testParse() throws IOException {
+        HttpResponseHead head = HttpResponseHead.parse(
+                "HTTP/1.1 200 OK\r\nContent-Length: 42\r\nETag: \"abc\"\r\n" +
+                "Cache-Control: no-cache\r\nCache-Control: private\r\n\r\n");
+        assertEquals("1.1", head.getVersion());
+        assertEquals(200, head.getCode());
+        assertEquals(42, head.getContentLength());
+        assertEquals("abc", head.getEtag());
+        assertEquals("no-cache, private", head.getHeader("cache-control"));
+        assertTrue(head.isKeepAlive());
+        assertFalse(head.isTransferEncoded());
+        assertFalse(head.isRedirect());
+    }
+
+    @Test
+    public void testStatusWithoutReason() throws IOException {
+        assertEquals(204, new HttpResponseHead("HTTP/1.1 204").getCode());
+    }
+
+    @Test
+    public void testContinue() throws IOException {
+        HttpResponseHead head = HttpResponseHead.parse("HTTP/1.1 100 Continue\r\n\r\n");
+        assertEquals(100, head.getCode());
+        assertEquals(-1, head.getContentLength());
+    }
+
+    @Test
+    public void testRedirect() throws IOException {
+        for (int code : new int[] { 301, 302, 303, 307, 308 }) {
+            HttpResponseHead head = HttpResponseHead.parse(
+                    "HTTP/1.1 " + code + " Moved\r\nLocation: /other\r\n\r\n");
+            assertTrue(String.valueOf(code), head.isRedirect());
+            assertEquals("/other", head.getHeader("Location"));
+        }
+
+        assertFalse(HttpResponseHead.parse("HTTP/1.1 302 Found\r\n\r\n").isRedirect());
+        assertFalse(HttpResponseHead.parse("HTTP/1.1 304 Not Modified\r\nLocation: /x\r\n\r\n").isRedirect());
+    }
+
+    @Test
+    public void testKeepAlive() throws IOException {
+        assertFalse(HttpResponseHead.parse("HTTP/1.1 200 OK\r\nConnection: close\r\n\r\n").isKeepAlive());
+        assertFalse(HttpResponseHead.parse("HTTP/1.0 200 OK\r\n\r\n").isKeepAlive());
+        assertTrue(HttpResponseHead.parse("HTTP/1.0 200 OK\r\nConnection: Keep-Alive\r\n\r\n").isKeepAlive());
+    }
+
+    @Test
+    public void testTransferEncoding() throws IOException {
+        HttpResponseHead head = HttpResponseHead.parse(
+                "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n");
+        assertTrue(head.isChunked());
+        assertTrue(head.isTransferEncoded());
+
+        head = HttpResponseHead.parse("HTTP/1.1 200 OK\r\nTransfer-Encoding: gzip, chunked\r\n\r\n");
+        assertFalse(head.isChunked());
+        assertTrue(head.isTransferEncoded());
+    }
+
+    @Test
+    public void testWeakEtag() throws IOException {
+        assertNull(HttpResponseHead.parse("HTTP/1.1 200 OK\r\nETag: W/\"abc\"\r\n\r\n").getEtag());
+    }
+
+    @Test
+    public void testBadContentLength() throws IOException {
+        assertEquals(-1, HttpResponseHead.parse(
+                "HTTP/1.1 200 OK\r\nContent-Length: lots\r\n\r\n").getContentLength());
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedStatus() throws IOException {
+        new HttpResponseHead("ICY 200 OK");
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnsupportedVersion() throws IOException {
+        new HttpResponseHead("HTTP/2.0 200 OK");
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedHeader() throws IOException {
+        HttpResponseHead.parse("HTTP/1.1 200 OK\r\nNo colon here\r\n\r\n");
+    }
+
+}
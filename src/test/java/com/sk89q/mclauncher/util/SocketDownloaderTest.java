@@ -0,0 +1,211 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs {@link SocketDownloader} against a server that sends canned
+ * responses, one connection per request.
+ */
+public class SocketDownloaderTest {
+
+    private final Map<String, String> responses =
+            Collections.synchronizedMap(new HashMap<String, String>());
+    private final List<String> requests =
+            Collections.synchronizedList(new ArrayList<String>());
+    private ServerSocket server;
+    private Thread thread;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0);
+        thread = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Socket socket = server.accept();
+                        try {
+                            answer(socket);
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        thread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        thread.join();
+    }
+
+    private void answer(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+        String requestLine = in.readLine();
+        StringBuilder request = new StringBuilder(requestLine);
+        String line;
+        while ((line = in.readLine()) != null && line.length() > 0) {
+            request.append("\n").append(line);
+        }
+        requests.add(request.toString());
+
+        String path = requestLine.split(" ")[1];
+        String response = responses.get(path);
+        if (response == null) {
+            response = "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n";
+        }
+        OutputStream out = socket.getOutputStream();
+        out.write(response.getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://127.0.0.1:" + server.getLocalPort() + path);
+    }
+
+    @Test
+    public void testPlain() throws IOException {
+        responses.put("/a", "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nETag: \"e1\"\r\n\r\nhello");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SocketDownloader downloader = new SocketDownloader(url("/a"), out);
+        assertTrue(downloader.download());
+        assertEquals("hello", out.toString("US-ASCII"));
+        assertEquals(5, downloader.getTotalLength());
+        assertEquals("e1", downloader.getEtag());
+        assertTrue(requests.get(0).contains("Host: 127.0.0.1:" + server.getLocalPort()));
+    }
+
+    @Test
+    public void testContinue() throws IOException {
+        responses.put("/a", "HTTP/1.1 100 Continue\r\n\r\n" +
+                "HTTP/1.1 102 Processing\r\nX-Ignored: yes\r\n\r\n" +
+                "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(new SocketDownloader(url("/a"), out).download());
+        assertEquals("hello", out.toString("US-ASCII"));
+    }
+
+    @Test
+    public void testRedirect() throws IOException {
+        responses.put("/a", "HTTP/1.1 301 Moved\r\nLocation: /b\r\nContent-Length: 0\r\n\r\n");
+        responses.put("/b", "HTTP/1.1 302 Found\r\nLocation: " + url("/c") +
+                "\r\nContent-Length: 3\r\n\r\nxyz");
+        responses.put("/c", "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(new SocketDownloader(url("/a"), out).download());
+        assertEquals("hello", out.toString("US-ASCII"));
+        assertEquals(3, requests.size());
+        assertTrue(requests.get(2).startsWith("GET /c "));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRedirectLoop() throws IOException {
+        responses.put("/a", "HTTP/1.1 302 Found\r\nLocation: /a\r\nContent-Length: 0\r\n\r\n");
+        new SocketDownloader(url("/a"), new ByteArrayOutputStream()).download();
+    }
+
+    @Test(expected = IOException.class)
+    public void testRedirectToHttps() throws IOException {
+        responses.put("/a", "HTTP/1.1 302 Found\r\nLocation: https://127.0.0.1/a\r\n\r\n");
+        new SocketDownloader(url("/a"), new ByteArrayOutputStream()).download();
+    }
+
+    @Test
+    public void testChunked() throws IOException {
+        responses.put("/a", "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                "5;ext=1\r\nhello\r\n7\r\n, world\r\n0\r\nX-Trailer: 1\r\n\r\n");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(new SocketDownloader(url("/a"), out).download());
+        assertEquals("hello, world", out.toString("US-ASCII"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testClosedEarly() throws IOException {
+        responses.put("/a", "HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nhello");
+        new SocketDownloader(url("/a"), new ByteArrayOutputStream()).download();
+    }
+
+    @Test
+    public void testNotModified() throws IOException {
+        responses.put("/a", "HTTP/1.1 304 Not Modified\r\nETag: \"e1\"\r\n\r\n");
+        SocketDownloader downloader = new SocketDownloader(url("/a"), new ByteArrayOutputStream());
+        downloader.setConditional(new HttpValidators("\"e1\"", null, 5));
+        assertFalse(downloader.download());
+        assertTrue(requests.get(0).contains("If-None-Match: \"e1\""));
+    }
+
+    @Test
+    public void testRange() throws IOException {
+        responses.put("/a", "HTTP/1.1 206 Partial Content\r\nETag: \"e1\"\r\n" +
+                "Content-Range: bytes 5-9/10\r\nContent-Length: 5\r\n\r\nworld");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SocketDownloader downloader = new SocketDownloader(url("/a"), out);
+        downloader.setResume(5, "e1");
+        assertTrue(downloader.download());
+        assertEquals("world", out.toString("US-ASCII"));
+        assertEquals(10, downloader.getTotalLength());
+        assertEquals(10, downloader.getDownloadedLength());
+        assertTrue(requests.get(0).contains("Range: bytes=5-"));
+        assertTrue(requests.get(0).contains("If-Range: \"e1\""));
+    }
+
+    @Test(expected = ResumeRefusedException.class)
+    public void testRangeOfOtherFile() throws IOException {
+        responses.put("/a", "HTTP/1.1 206 Partial Content\r\nETag: \"e2\"\r\n" +
+                "Content-Range: bytes 5-9/10\r\nContent-Length: 5\r\n\r\nworld");
+        SocketDownloader downloader = new SocketDownloader(url("/a"), new ByteArrayOutputStream());
+        downloader.setResume(5, "e1");
+        downloader.download();
+    }
+
+    @Test(expected = ResumeRefusedException.class)
+    public void testWholeFileInsteadOfRange() throws IOException {
+        responses.put("/a", "HTTP/1.1 200 OK\r\nETag: \"e2\"\r\nContent-Length: 5\r\n\r\nhello");
+        SocketDownloader downloader = new SocketDownloader(url("/a"), new ByteArrayOutputStream());
+        downloader.setResume(5, "e1");
+        downloader.download();
+    }
+
+}